@@ -62,7 +62,8 @@ public interface GraphConnector extends Plugin {
 	@Nullable String getDescription();	
 
 	/**
-	 * Creates a new graph.
+	 * Creates a new graph. This method is called every time that a new graph store is attached to the connector, 
+	 * and it is the place where the connector declares the schema (constraints and indexes) of the graph.
 	 */
 	void create();
 	
@@ -72,6 +73,14 @@ public interface GraphConnector extends Plugin {
 	 */
 	void clear();
 
+	/**
+	 * Prepares the current graph to add a document, creating the objects that are shared with other documents. 
+	 * This method is called outside any transaction, before the transaction that adds the document is opened, 
+	 * so the objects created here are committed before the document is added.
+	 * @param document the document that will be added.
+	 */
+	void prepare(Document document);
+
 	/**
 	 * Adds a new document to the current graph.
 	 * @param document the document to be added.
@@ -32,11 +32,13 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.grycap.gpf4med.Group;
 import org.grycap.gpf4med.model.util.AvailableGraphs;
 import org.grycap.gpf4med.model.util.AvailableReports;
 import org.grycap.gpf4med.model.util.AvailableTemplates;
+import org.grycap.gpf4med.model.util.DownloadStatistics;
 import org.grycap.gpf4med.model.util.GraphStatistics;
 import org.grycap.gpf4med.model.util.LinkSet;
 import org.grycap.gpf4med.model.util.PingResponse;
@@ -63,6 +65,16 @@ public interface Gpf4MedResource {
 	 * Resource path that includes API version.
 	 */
 	public final static String RESOURCE_PATH = Gpf4MedResource.class.getAnnotation(Path.class).value();	
+
+	/**
+	 * Newline-delimited JSON: one JSON object per line.
+	 */
+	public final static String APPLICATION_NDJSON = "application/x-ndjson";
+
+	/**
+	 * Default number of reports per page.
+	 */
+	public final static String DEFAULT_PAGE_SIZE = "100";
 	
 	/**
 	 * Checks service availability: connectivity and correct configuration on the 
@@ -123,6 +135,42 @@ public interface Gpf4MedResource {
 	@Produces(MediaType.APPLICATION_JSON)
 	AvailableReports listReports(@PathParam("center") int idCenter, @PathParam("ontology") String idOntology);
 
+	/**
+	 * Lists a page of the medical reports (e.g. DICOM-SR) available to this service that match all the 
+	 * specified filters. Dates can be written as the dates of the reports (<tt>dd/MM/yyyy HH:mm:ss</tt>)
+	 * or as the number of milliseconds since the epoch.
+	 * @param idCenter optional center where the reports are stored.
+	 * @param idOntology optional ontology.
+	 * @param modality optional modality (e.g. RID10357@RADLEX).
+	 * @param from optional start of the interval where the reports started (inclusive).
+	 * @param to optional end of the interval where the reports started (exclusive).
+	 * @param offset position of the first report of the page.
+	 * @param limit maximum number of reports in the page.
+	 * @return a page of the medical reports, including the offset of the next page.
+	 */
+	@Path("query/reports")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	AvailableReports listReports(@DefaultValue("-1") @QueryParam("center") int idCenter, 
+			@QueryParam("ontology") String idOntology, @QueryParam("modality") String modality, 
+			@QueryParam("from") String from, @QueryParam("to") String to, 
+			@DefaultValue("0") @QueryParam("offset") int offset, 
+			@DefaultValue(DEFAULT_PAGE_SIZE) @QueryParam("limit") int limit);
+
+	/**
+	 * Same as {@link #listReports(int, String, String, String, String, int, int)}, but writes the reports as 
+	 * newline-delimited JSON while they are listed. All the reports from the offset are written when no
+	 * limit is passed.
+	 */
+	@Path("query/reports")
+	@GET
+	@Produces(APPLICATION_NDJSON)
+	StreamingOutput streamReports(@DefaultValue("-1") @QueryParam("center") int idCenter, 
+			@QueryParam("ontology") String idOntology, @QueryParam("modality") String modality, 
+			@QueryParam("from") String from, @QueryParam("to") String to, 
+			@DefaultValue("0") @QueryParam("offset") int offset, 
+			@DefaultValue("-1") @QueryParam("limit") int limit);
+
 	/**
 	 * Lists graph connectors available to this service.
 	 * @return graph connectors available to this service.
@@ -172,4 +220,14 @@ public interface Gpf4MedResource {
 	@Produces(MediaType.APPLICATION_JSON)
 	GraphStatistics getGraphStatistics(@DefaultValue(Group.DEFAULT_GROUP) @QueryParam("group") Group group);
 
+	/**
+	 * Gets the live progress of the reports downloads in this service: reports downloaded and indexed, 
+	 * bytes transferred, throughput, retries, failed reports and estimated time to completion per hospital.
+	 * @return progress of the running downloads and the last completed download.
+	 */
+	@Path("stats/downloads")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	DownloadStatistics getDownloadStatistics();
+
 }
\ No newline at end of file
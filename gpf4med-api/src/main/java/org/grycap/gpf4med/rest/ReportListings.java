@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+
+package org.grycap.gpf4med.rest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.lang.StringUtils;
+import org.grycap.gpf4med.ReportSummary;
+import org.grycap.gpf4med.model.util.AvailableReport;
+import org.grycap.gpf4med.model.util.AvailableReports;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+/**
+ * Utility methods to write the lists of reports returned by the implementations of {@link Gpf4MedResource}.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public final class ReportListings {
+
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	private ReportListings() { }
+
+	public static AvailableReport toAvailableReport(final ReportSummary item) {
+		final AvailableReport report = new AvailableReport();
+		report.setIdOntology(Integer.parseInt(item.getIdOntology()));
+		report.setIdReport(item.getIdReport());
+		report.setIdTrencadisReport(item.getId());
+		report.setDateStart(item.getDateStart());
+		report.setDateEnd(item.getDateEnd());
+		return report;
+	}
+
+	public static AvailableReports toAvailableReports(final @Nullable Iterable<ReportSummary> items) {
+		final AvailableReports reports = new AvailableReports();
+		reports.setReports(new ArrayList<AvailableReport>());
+		if (items != null) {
+			for (final ReportSummary item : items) {
+				reports.getReports().add(toAvailableReport(item));
+			}
+		}
+		return reports;
+	}
+
+	/**
+	 * Creates a page of the specified list of reports. Only the reports in the page are converted.
+	 * @param items the complete list of reports.
+	 * @param offset position of the first report of the page.
+	 * @param limit maximum number of reports in the page, up to {@link #MAX_PAGE_SIZE}.
+	 * @return a page of the list, including the total number of reports and the offset of the next page.
+	 * @throws WebApplicationException with status 400 (Bad Request) when the offset or the limit are not valid.
+	 */
+	public static AvailableReports page(final ImmutableList<ReportSummary> items, final int offset, final int limit) {
+		final List<ReportSummary> page = subList(items, offset, limit);
+		final AvailableReports reports = toAvailableReports(page);
+		reports.setTotal(items.size());
+		reports.setOffset(offset);
+		final int next = offset + page.size();
+		reports.setNextOffset(next < items.size() ? next : null);
+		return reports;
+	}
+
+	/**
+	 * Writes the reports as newline-delimited JSON (one report per line) while the reports are iterated, instead
+	 * of building the complete response in memory. Reports without ontology are written with a {@code null} 
+	 * ontology.
+	 * @param items the reports, which can be filtered while they are iterated.
+	 * @param offset position of the first report that is written.
+	 * @param limit maximum number of reports that are written, or a negative value to write all the reports
+	 *        from the offset.
+	 * @return an output that writes the reports to the response.
+	 * @throws WebApplicationException with status 400 (Bad Request) when the offset or the limit are not valid.
+	 */
+	public static StreamingOutput stream(final Iterable<ReportSummary> items, final int offset, final int limit) {
+		checkOffset(offset);
+		if (limit >= 0) {
+			checkLimit(limit);
+		}
+		final Iterable<ReportSummary> skipped = Iterables.skip(items, offset);
+		final Iterable<ReportSummary> page = limit < 0 ? skipped : Iterables.limit(skipped, limit);
+		return new StreamingOutput() {
+			@Override
+			public void write(final OutputStream output) throws IOException {
+				final Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+				for (final ReportSummary item : page) {
+					writer.write("{\"dateStart\":");
+					writeString(item.getDateStart(), writer);
+					writer.write(",\"dateEnd\":");
+					writeString(item.getDateEnd(), writer);
+					writer.write(",\"idOntology\":");
+					writer.write(formatOntology(item.getIdOntology()));
+					writer.write(",\"idReport\":");
+					writeString(item.getIdReport(), writer);
+					writer.write(",\"idTrencadisReport\":");
+					writeString(item.getId(), writer);
+					writer.write("}\n");
+				}
+				writer.flush();
+			}
+		};
+	}
+
+	/**
+	 * Parses a date passed as query parameter, which can be written as the dates of the reports 
+	 * (<tt>dd/MM/yyyy HH:mm:ss</tt>) or as the number of milliseconds since the epoch.
+	 * @param date the date to be parsed.
+	 * @return the date, or {@code null} when no date is passed.
+	 * @throws WebApplicationException with status 400 (Bad Request) when the date is not valid.
+	 */
+	public static @Nullable Date parseDate(final @Nullable String date) {
+		if (StringUtils.isBlank(date)) {
+			return null;
+		}
+		long time = ReportSummary.NO_DATE;
+		if (StringUtils.isNumeric(date.trim())) {
+			try {
+				time = Long.parseLong(date.trim());
+			} catch (NumberFormatException e) {
+				throw badRequest("Invalid date: " + date);
+			}
+		} else {
+			time = ReportSummary.parseDate(date);
+			if (time == ReportSummary.NO_DATE) {
+				throw badRequest("Invalid date: " + date);
+			}
+		}
+		return new Date(time);
+	}
+
+	private static List<ReportSummary> subList(final ImmutableList<ReportSummary> items, final int offset, 
+			final int limit) {
+		checkOffset(offset);
+		checkLimit(limit);
+		final int from = Math.min(offset, items.size());
+		return items.subList(from, (int)Math.min((long)from + limit, items.size()));
+	}
+
+	private static void checkOffset(final int offset) {
+		if (offset < 0) {
+			throw badRequest("Invalid offset");
+		}
+	}
+
+	private static void checkLimit(final int limit) {
+		if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+			throw badRequest("Invalid limit, must be in the range [1, " + MAX_PAGE_SIZE + "]");
+		}
+	}
+
+	private static WebApplicationException badRequest(final String message) {
+		return new WebApplicationException(Response.status(Status.BAD_REQUEST).entity(message)
+				.type(MediaType.TEXT_PLAIN).build());
+	}
+
+	/**
+	 * Writes the ontology as a number, or {@code null} when the report has no valid ontology.
+	 */
+	private static String formatOntology(final @Nullable String idOntology) {
+		if (idOntology != null) {
+			try {
+				return Integer.toString(Integer.parseInt(idOntology.trim()));
+			} catch (NumberFormatException e) {
+				// not a number
+			}
+		}
+		return "null";
+	}
+
+	private static void writeString(final @Nullable String value, final Writer writer) throws IOException {
+		if (value == null) {
+			writer.write("null");
+			return;
+		}
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				writer.write("\\\"");
+				break;
+			case '\\':
+				writer.write("\\\\");
+				break;
+			case '\n':
+				writer.write("\\n");
+				break;
+			case '\r':
+				writer.write("\\r");
+				break;
+			case '\t':
+				writer.write("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					writer.write(String.format("\\u%04x", (int)c));
+				} else {
+					writer.write(c);
+				}
+			}
+		}
+		writer.write('"');
+	}
+
+}
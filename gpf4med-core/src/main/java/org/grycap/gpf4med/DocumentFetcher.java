@@ -24,14 +24,16 @@ package org.grycap.gpf4med;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 
 import org.apache.commons.io.FileUtils;
 import org.grycap.gpf4med.DownloadService.DownloadConfiguration;
 import org.grycap.gpf4med.conf.ConfigurationManager;
-import org.grycap.gpf4med.exec.PostProcessTask;
 import org.grycap.gpf4med.util.NamingUtils;
 import org.grycap.gpf4med.util.URLUtils;
 import org.slf4j.Logger;
@@ -39,15 +41,15 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.util.concurrent.SimpleTimeLimiter;
 
 /**
- * Fetches documents from remote repositories. This class uses a cached thread pool, which over-performs 
- * for most cases. See {@link SimpleTimeLimiter} for a comprehensive explanation.
+ * Fetches documents from remote repositories. Documents are submitted to the {@link IngestionPipeline}, 
+ * which calls back this class from the workers of its fetch stage. All the documents are downloaded with
+ * the same {@link DownloadService}, so the connections to the repositories are reused between documents.
  * @author Erik Torres <ertorser@upv.es>
  *
  */
-public enum DocumentFetcher {
+public enum DocumentFetcher implements Closeable {
 
 	INSTANCE;	
 
@@ -57,51 +59,89 @@ public enum DocumentFetcher {
 	public static final int READ_TIMEOUT_MILLIS = 180000;      // 3 minutes
 	public static final int RETRIES = 3;
 	public static final double TIMEOUT_INCREMENT_PERCENTAGE = 0.5d;
+	public static final long BACKOFF_MILLIS = 2000l;            // 2 seconds
+	public static final long MAX_BACKOFF_MILLIS = 60000l;       // 1 minute
+	public static final long DEADLINE_MILLIS = 900000l;         // 15 minutes
+
+	private DownloadService downloadService = null;
 
 	private DocumentFetcher() { }
 
+	@Override
+	public synchronized void close() throws IOException {
+		if (downloadService != null) {
+			downloadService.close();
+		}
+		downloadService = null;
+	}
+
+	/**
+	 * Submits the URLs to the ingestion pipeline. This method blocks when the pipeline is full. The URLs 
+	 * that cannot be submitted are counted as failed downloads, so they are completed in the pipeline.
+	 * @param urls the URLs where the documents are located.
+	 */
 	public void fetch(final ImmutableList<URL> urls) {
 		checkArgument(urls != null, "Uninitialized URLs");
-		final ImmutableMap.Builder<URI, File> pendingBuilder = new ImmutableMap.Builder<URI, File>();
-		try {
-			final File cacheDir = new File(ConfigurationManager.INSTANCE.getLocalCacheDir(), "reports");						
-			final ImmutableMap.Builder<URI, File> requestBuilder = new ImmutableMap.Builder<URI, File>();
-			for (final URL url : urls) {
-				try {
-					if (URLUtils.isRemoteProtocol(url)) {					
-						final URI source = url.toURI().normalize();
-						final File destination = new File(cacheDir, NamingUtils
-								.genSafeFilename(new String[] { source.toString() }, null, ".xml"));
-						requestBuilder.put(source, destination);						
-					} else if (URLUtils.isFileProtocol(url)) {
-						FileQueue.INSTANCE.add(FileUtils.toFile(url));
-					} else {
-						FileQueue.INSTANCE.failed(1);
-						LOGGER.warn("Ignoring unsupported URL: " + url.toString());
-					}
-				} catch (Exception e2) {
-					FileQueue.INSTANCE.failed();
-				}
+		int submitted = 0;
+		for (final URL url : urls) {
+			try {
+				IngestionPipeline.INSTANCE.submit(url);
+				submitted++;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Exception e) {
+				Statistics.INSTANCE.incFailedDownloads(1);
+				submitted++;
+				LOGGER.warn("Failed to submit document: " + url, e);
 			}
-			final DownloadConfiguration downloadConfig = new DownloadConfiguration(CONNECTION_TIMEOUT_MILLIS,
-					READ_TIMEOUT_MILLIS, RETRIES, TIMEOUT_INCREMENT_PERCENTAGE);
-			final ImmutableMap<URI, File> pending = new DownloadService().download(requestBuilder.build(), 
-					null, downloadConfig, ConfigurationManager.INSTANCE.getFileEncryptionProvider(),
-					new PostProcessTask<File>() {						
-				@Override
-				public void apply(final File object) {
-					FileQueue.INSTANCE.add(object);
-				}
-			});
-			if (pending != null) {
-				pendingBuilder.putAll(pending);
+		}
+		if (submitted < urls.size()) {
+			Statistics.INSTANCE.incFailedDownloads(urls.size() - submitted);
+			LOGGER.warn("Interrupted before submitting " + (urls.size() - submitted) + " documents");
+		}
+	}
+
+	/**
+	 * Fetches a single document to the local cache. Files are not copied.
+	 * @param url the URL where the document is located.
+	 * @return a local file with the content of the document.
+	 * @throws IOException if the document cannot be fetched.
+	 */
+	public File fetch(final URL url) throws IOException {
+		checkArgument(url != null, "Uninitialized URL");
+		File file = null;
+		if (URLUtils.isRemoteProtocol(url)) {
+			final URI source;
+			try {
+				source = url.toURI().normalize();
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid URL: " + url.toString(), e);
 			}
-		} catch (Exception e) {
-			final ImmutableMap<URI, File> pending = pendingBuilder.build();
-			if (pending != null && pending.size() > 0) {
-				FileQueue.INSTANCE.failed(pending.size());				
+			final File destination = new File(new File(ConfigurationManager.INSTANCE.getLocalCacheDir(), "reports"), 
+					NamingUtils.genSafeFilename(new String[] { source.toString() }, null, ".xml"));
+			final DownloadConfiguration downloadConfig = new DownloadConfiguration(CONNECTION_TIMEOUT_MILLIS,
+					READ_TIMEOUT_MILLIS, RETRIES, TIMEOUT_INCREMENT_PERCENTAGE, BACKOFF_MILLIS, MAX_BACKOFF_MILLIS, 
+					DEADLINE_MILLIS);
+			final ImmutableMap<URI, File> pending = downloadService().download(ImmutableMap.of(source, destination), 
+					null, downloadConfig, ConfigurationManager.INSTANCE.getFileEncryptionProvider(), null);
+			if (pending != null && !pending.isEmpty()) {
+				throw new IOException("Download failed: " + url.toString());
 			}
+			file = destination;
+		} else if (URLUtils.isFileProtocol(url)) {
+			file = FileUtils.toFile(url);
+		} else {
+			throw new IOException("Unsupported URL: " + url.toString());
+		}
+		return file;
+	}
+
+	private synchronized DownloadService downloadService() {
+		if (downloadService == null) {
+			downloadService = new DownloadService();
 		}
+		return downloadService;
 	}
 
 }
\ No newline at end of file
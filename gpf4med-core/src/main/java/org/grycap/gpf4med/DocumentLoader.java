@@ -23,25 +23,42 @@
 package org.grycap.gpf4med;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static org.grycap.gpf4med.xml.ReportXmlBinder.REPORT_XMLB;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.apache.commons.io.FileUtils;
 import org.grycap.gpf4med.conf.ConfigurationManager;
+import org.grycap.gpf4med.model.document.Children;
+import org.grycap.gpf4med.model.document.Code;
+import org.grycap.gpf4med.model.document.ConceptName;
+import org.grycap.gpf4med.model.document.Container;
+import org.grycap.gpf4med.model.document.Date;
 import org.grycap.gpf4med.model.document.Document;
+import org.grycap.gpf4med.model.document.Num;
+import org.grycap.gpf4med.model.document.Text;
+import org.grycap.gpf4med.model.document.UnitMeasurement;
+import org.grycap.gpf4med.model.document.Value;
 import org.grycap.gpf4med.security.FileEncryptionProvider;
-import org.grycap.gpf4med.util.MimeUtils;
+import org.grycap.gpf4med.xml.XmlBinder;
 import org.grycap.gpf4med.xml.XmlParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * TRENCADIS report loader. This class uses a StAX parser to load the report from
- * an XML document.
+ * TRENCADIS report loader. This class uses a StAX parser to load the report from an XML document. 
+ * Reports are built while the document is read, without the intermediate representation created by 
+ * the XML binding. Files that contain a bundle of reports (<tt>DICOM_REPORTS</tt>) are streamed: each 
+ * report is passed to the handler as soon as it is parsed, so only one report is kept in memory.
  * @author Erik Torres <ertorser@upv.es>
  * @author Lorena Calabuig <locamo@inf.upv.es>
  */
@@ -49,39 +66,296 @@ public class DocumentLoader extends XmlParser<Document> implements DocumentLoade
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(DocumentLoader.class);
 
+	public static final String REPORTS_ELEMENT = "DICOM_REPORTS";
+	public static final String REPORT_ELEMENT = "DICOM_SR";
+
+	private static final Object BUNDLE = new Object();
+
+	private final byte[] data;
+
 	public static DocumentLoader create(final File file) {
-		return new DocumentLoader(file);
+		return new DocumentLoader(file, null);
 	}
 
-	private DocumentLoader(final File file) {
+	/**
+	 * Creates a loader that reads the content of the file from memory (e.g. the content of an encrypted file 
+	 * that was decrypted in memory). The file is only used to identify the document.
+	 */
+	public static DocumentLoader create(final File file, final @Nullable byte[] data) {
+		return new DocumentLoader(file, data);
+	}
+
+	private DocumentLoader(final File file, final @Nullable byte[] data) {
 		super(file);
+		this.data = data;
 	}
 
+	/**
+	 * Streams the reports read from the specified source to the handler, without writing them to a file.
+	 * @param reader the source of the reports.
+	 * @param handler the handler that receives the reports.
+	 * @return the number of reports found in the source.
+	 */
+	public static int load(final Reader reader, final Handler<Document> handler) throws IOException {
+		checkArgument(reader != null, "Uninitialized reader");
+		checkArgument(handler != null, "Uninitialized handler");
+		try {
+			return new DocumentLoader(null, null).parse(createReader(reader), handler);
+		} catch (IOException ioe) {
+			throw ioe;
+		} catch (Exception e) {
+			throw new IOException("Failed to load documents", e);
+		}
+	}
+
+	/**
+	 * Loads the report from the file. When the file contains a bundle, the first report is returned.
+	 */
 	@Override
 	public Document load() throws IOException {
-		checkArgument(file != null && file.canRead(), "Uninitialized or invalid file");
-		File clearFile = file;		
-		Document document = null;
-		try {			
-			// get input from encrypted file			
-			if (!MimeUtils.isTextFile(file) && ConfigurationManager.INSTANCE.getEncryptLocalStorage()) {
-				clearFile = new File(file.getPath() + ".tmp");
-				final FileEncryptionProvider encryptionProvider = ConfigurationManager.INSTANCE.getFileEncryptionProvider();
-				encryptionProvider.decrypt(new FileInputStream(file), new FileOutputStream(clearFile));
-			}
-			final String filename = clearFile.getCanonicalPath();
-			LOGGER.trace("Loading document from file: " + filename);			
-			document = REPORT_XMLB.typeFromFile(clearFile);			
+		final Document[] first = { null };
+		load(new Handler<Document>() {
+			@Override
+			public void handle(final Document document) {
+				if (first[0] == null) {
+					first[0] = document;
+				} else {
+					LOGGER.warn("Ignoring additional report found in file: " + file + ", report: " + document.getIDReport());
+				}
+			}
+		});
+		if (first[0] == null) {
+			throw new IOException("No report found in file: " + file);
+		}
+		return first[0];
+	}
+
+	/**
+	 * Streams the reports of the file to the specified handler.
+	 * @param handler the handler that receives the reports.
+	 * @return the number of reports found in the file.
+	 */
+	@Override
+	public int load(final Handler<Document> handler) throws IOException {
+		checkArgument(data != null || (file != null && file.canRead()), "Uninitialized or invalid file");
+		checkArgument(handler != null, "Uninitialized handler");
+		if (data != null) {
+			try (final InputStream is = new ByteArrayInputStream(data)) {
+				return parse(createReader(is), handler);
+			} catch (IOException ioe) {
+				throw ioe;
+			} catch (Exception e) {
+				throw new IOException("Failed to load document", e);
+			}
+		}
+		try {
+			LOGGER.trace("Loading document from file: " + file.getCanonicalPath());
+			// the header is checked before the file is opened, so a failed check doesn't leave the file open
+			final boolean encrypted = ConfigurationManager.INSTANCE.getEncryptLocalStorage() 
+					&& FileEncryptionProvider.isEncrypted(file);
+			InputStream is = new BufferedInputStream(new FileInputStream(file), XmlBinder.BUFFER_SIZE);
+			// encrypted files are decrypted while they are parsed, without writing the plain text to disk
+			if (encrypted) {
+				try {
+					is = ConfigurationManager.INSTANCE.getFileEncryptionProvider().newDecryptingStream(is);
+				} catch (Exception e) {
+					is.close();
+					throw e;
+				}
+			}
+			try (final InputStream is2 = is) {
+				return parse(createReader(is2), handler);
+			}
 		} catch (IOException ioe) {
 			throw ioe;
 		} catch (Exception e) {
 			throw new IOException("Failed to load document", e);
+		}
+	}
+
+	private int parse(final XMLStreamReader reader, final Handler<Document> handler) throws Exception {
+		int count = 0;
+		stack.clear();
+		try {
+			while (reader.hasNext()) {
+				final int eventType = reader.next();
+				if (eventType == XMLStreamConstants.START_ELEMENT) {
+					startElement(reader);
+				} else if (eventType == XMLStreamConstants.END_ELEMENT) {
+					final Object item = endElement();
+					if (item instanceof Document) {
+						handler.handle((Document)item);
+						count++;
+					}
+				}
+			}
 		} finally {
-			if (clearFile != file) {
-				FileUtils.deleteQuietly(clearFile);
+			stack.clear();
+			reader.close();
+		}
+		return count;
+	}
+
+	private void startElement(final XMLStreamReader reader) throws XMLStreamException {
+		final String name = reader.getLocalName();
+		final Object parent = stack.peek();
+		if (parent == null) {
+			if (REPORTS_ELEMENT.equals(name)) {
+				stack.push(BUNDLE);
+			} else if (REPORT_ELEMENT.equals(name)) {
+				stack.push(newDocument(reader));
+			} else {
+				throw new XMLStreamException("Unsupported root element: " + name, reader.getLocation());
 			}
+			return;
 		}
+		switch (name) {
+		case REPORT_ELEMENT:
+			if (parent == BUNDLE) {
+				stack.push(newDocument(reader));
+			} else {
+				skipElement(reader);
+			}
+			break;
+		case "CONTAINER":
+			stack.push(new Container());
+			break;
+		case "CONCEPT_NAME":
+			stack.push(new ConceptName());
+			break;
+		case "CHILDREN":
+			stack.push(new Children());
+			break;
+		case "TEXT":
+			stack.push(new Text());
+			break;
+		case "DATE":
+			stack.push(new Date());
+			break;
+		case "CODE":
+			stack.push(new Code());
+			break;
+		case "NUM":
+			stack.push(new Num());
+			break;
+		case "UNIT_MEASUREMENT":
+			stack.push(new UnitMeasurement());
+			break;
+		case "VALUE":
+			if (parent instanceof Code) {
+				stack.push(new Value());
+			} else {
+				setValue(parent, reader.getElementText());
+			}
+			break;
+		case "CODE_VALUE":
+		case "CODE_SCHEMA":
+		case "CODE_MEANING":
+		case "CODE_MEANING2":
+			setCode(parent, name, reader.getElementText());
+			break;
+		default:
+			// unknown elements are ignored, as the XML binding does
+			skipElement(reader);
+			break;
+		}
+	}
+
+	private Object endElement() {
+		final Object item = stack.pop();
+		final Object parent = stack.peek();
+		if (item instanceof Container) {
+			if (parent instanceof Document) {
+				((Document)parent).setCONTAINER((Container)item);
+			} else if (parent instanceof Children) {
+				((Children)parent).getCONTAINER().add((Container)item);
+			}
+		} else if (item instanceof ConceptName) {
+			final ConceptName conceptName = (ConceptName)item;
+			if (parent instanceof Container) {
+				((Container)parent).setCONCEPTNAME(conceptName);
+			} else if (parent instanceof Text) {
+				((Text)parent).setCONCEPTNAME(conceptName);
+			} else if (parent instanceof Date) {
+				((Date)parent).setCONCEPTNAME(conceptName);
+			} else if (parent instanceof Code) {
+				((Code)parent).setCONCEPTNAME(conceptName);
+			} else if (parent instanceof Num) {
+				((Num)parent).setCONCEPTNAME(conceptName);
+			}
+		} else if (item instanceof Children) {
+			if (parent instanceof Container) {
+				((Container)parent).setCHILDREN((Children)item);
+			}
+		} else if (parent instanceof Children) {
+			final Children children = (Children)parent;
+			if (item instanceof Text) {
+				children.getTEXT().add((Text)item);
+			} else if (item instanceof Date) {
+				children.getDATE().add((Date)item);
+			} else if (item instanceof Code) {
+				children.getCODE().add((Code)item);
+			} else if (item instanceof Num) {
+				children.getNUM().add((Num)item);
+			}
+		} else if (item instanceof UnitMeasurement) {
+			if (parent instanceof Num) {
+				((Num)parent).setUNITMEASUREMENT((UnitMeasurement)item);
+			}
+		} else if (item instanceof Value) {
+			if (parent instanceof Code) {
+				((Code)parent).setVALUE((Value)item);
+			}
+		}
+		return item;
+	}
+
+	private static Document newDocument(final XMLStreamReader reader) {
+		final Document document = new Document();
+		document.setIDReport(reader.getAttributeValue(null, "IDReport"));
+		document.setIDOntology(reader.getAttributeValue(null, "IDOntology"));
+		document.setDateTimeStart(reader.getAttributeValue(null, "DateTimeStart"));
+		document.setDateTimeEnd(reader.getAttributeValue(null, "DateTimeEnd"));
+		document.setIDTRENCADISReport(reader.getAttributeValue(null, "IDTRENCADISReport"));
 		return document;
 	}
 
-}
\ No newline at end of file
+	private static void setValue(final Object parent, final String value) {
+		if (parent instanceof Text) {
+			((Text)parent).setVALUE(value);
+		} else if (parent instanceof Date) {
+			((Date)parent).setVALUE(value);
+		} else if (parent instanceof Num) {
+			((Num)parent).setVALUE(value);
+		}
+	}
+
+	private static void setCode(final Object parent, final String name, final String value) {
+		if (parent instanceof ConceptName) {
+			final ConceptName conceptName = (ConceptName)parent;
+			switch (name) {
+			case "CODE_VALUE": conceptName.setCODEVALUE(value); break;
+			case "CODE_SCHEMA": conceptName.setCODESCHEMA(value); break;
+			case "CODE_MEANING": conceptName.setCODEMEANING(value); break;
+			default: conceptName.setCODEMEANING2(value); break;
+			}
+		} else if (parent instanceof Value) {
+			final Value code = (Value)parent;
+			switch (name) {
+			case "CODE_VALUE": code.setCODEVALUE(value); break;
+			case "CODE_SCHEMA": code.setCODESCHEMA(value); break;
+			case "CODE_MEANING": code.setCODEMEANING(value); break;
+			default: code.setCODEMEANING2(value); break;
+			}
+		} else if (parent instanceof UnitMeasurement) {
+			final UnitMeasurement unit = (UnitMeasurement)parent;
+			switch (name) {
+			case "CODE_VALUE": unit.setCODEVALUE(value); break;
+			case "CODE_SCHEMA": unit.setCODESCHEMA(value); break;
+			case "CODE_MEANING": unit.setCODEMEANING(value); break;
+			default: unit.setCODEMEANING2(value); break;
+			}
+		}
+	}
+
+}
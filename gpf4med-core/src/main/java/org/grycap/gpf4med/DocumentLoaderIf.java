@@ -25,6 +25,7 @@ package org.grycap.gpf4med;
 import java.io.IOException;
 
 import org.grycap.gpf4med.model.document.Document;
+import org.grycap.gpf4med.xml.XmlParser;
 
 /**
  * Document loader interface.
@@ -33,5 +34,7 @@ import org.grycap.gpf4med.model.document.Document;
 public interface DocumentLoaderIf {
 
 	Document load() throws IOException;
-	
+
+	int load(XmlParser.Handler<Document> handler) throws IOException;
+
 }
\ No newline at end of file
@@ -24,39 +24,63 @@ package org.grycap.gpf4med;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static org.grycap.gpf4med.xml.ReportXmlBinder.REPORT_XMLB;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.commons.lang.StringUtils;
 import org.grycap.gpf4med.akka.AkkaApplication;
 import org.grycap.gpf4med.conf.ConfigurationManager;
-import org.grycap.gpf4med.event.FileEnqueuedEvent;
 import org.grycap.gpf4med.model.document.ConceptName;
 import org.grycap.gpf4med.model.document.Document;
 import org.grycap.gpf4med.model.util.Id;
 import org.grycap.gpf4med.util.TRENCADISUtils;
+import org.grycap.gpf4med.xml.XmlParser.Handler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import trencadis.infrastructure.services.DICOMStorage.impl.wrapper.xmlOutputDownloadAllReportsID.DICOM_SR_ID;
 import trencadis.middleware.operations.DICOMStorage.TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE;
 
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.eventbus.Subscribe;
-import com.google.common.util.concurrent.SimpleTimeLimiter;
-import com.google.common.util.concurrent.UncheckedTimeoutException;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /**
  * Manages the DICOM-SR documents.
@@ -69,55 +93,38 @@ public enum DocumentManager implements Closeable2 {
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(DocumentManager.class);
 	
-	public static final int TIMEOUT_SECONDS = 60;
-	public static final int SHUTDOWN_TIMEOUT_SECONDS = 5;
+	public static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
+	public static final int DEFAULT_DOCUMENT_CACHE_SIZE = 1000;
+	public static final int DEFAULT_MANIFEST_SAVE_INTERVAL = 500;
 
-	private final ExecutorService executor;
-	private final SimpleTimeLimiter limiter;
-	
 	private Collection<URL> urls = null;
-	private ImmutableMap<String, Document> dont_use = null;
+	private volatile ReportCatalogue dont_use = null;
+	private final ConcurrentMap<Integer, ImmutableList<ReportSummary>> centers = new ConcurrentHashMap<Integer, ImmutableList<ReportSummary>>();
 
-	private DocumentManager() {
-		executor = Executors.newCachedThreadPool();
-		limiter = new SimpleTimeLimiter(executor);		
-	}
+	private volatile LocalCache cache = null;
+	private volatile DocumentSnapshot snapshot = null;
+	private volatile ImmutableMap<String, File> files = ImmutableMap.of();
+	private volatile LoadingCache<String, Document> documents = null;
+	private final ConcurrentMap<String, ReportSummary> downloaded = new ConcurrentHashMap<String, ReportSummary>();
+	private final ConcurrentMap<String, Document> unwritten = new ConcurrentHashMap<String, Document>();
+	private ExecutorService cacheWriter = null;
+	private final AtomicInteger cacheWrites = new AtomicInteger();
 
-	@Subscribe
-	public void processFileEvent(final FileEnqueuedEvent event) {
-		// parse file		
-		final File file = FileQueue.INSTANCE.remove();
-		if (file != null) {
-			String filename = null;
-			Document document = null;
-			try {			
-				filename = file.getCanonicalPath();
-				final DocumentLoaderIf proxy = limiter.newProxy(DocumentLoader.create(file), DocumentLoaderIf.class, 
-						TIMEOUT_SECONDS, TimeUnit.SECONDS);				
-				document = proxy.load();
-			} catch (UncheckedTimeoutException ignore) {
-				document = null;
-				LOGGER.warn("File cannot be parsed, timeout has expired: " + filename);
-			} catch (IOException e) {
-				LOGGER.warn("Failed to parse file" + filename, e);
-			}
-			checkState(document != null, "Failed to load document from file: " + filename);
-			DocumentQueue.INSTANCE.add(document);
-		}
-	}
+	private DocumentManager() { }
 
 	@Override
 	public void setup(final @Nullable Collection<URL> urls) {
 		this.urls = urls;
 		this.dont_use = null;
+		this.centers.clear();
 	}
 	
 	@Override
 	public void preload() {
 		// lazy load, so initial access is needed
-		final ImmutableCollection<Document> documents = listDocuments();		
-		if (documents != null && documents.size() > 0) {
-			LOGGER.info(documents.size() + " DICOM-SR Documents loaded");
+		final ImmutableCollection<ReportSummary> reports = listReports();		
+		if (reports != null && reports.size() > 0) {
+			LOGGER.info(reports.size() + " DICOM-SR Documents loaded");
 		} else {
 			LOGGER.warn("No DICOM-SR Documents loaded");
 		}
@@ -125,60 +132,282 @@ public enum DocumentManager implements Closeable2 {
 
 	@Override
 	public void close() throws IOException {
-		// disable new jobs from being submitted
-		executor.shutdown();			
+		final ExecutorService cacheWriter;
+		synchronized (this) {
+			cacheWriter = this.cacheWriter;
+			this.cacheWriter = null;
+		}
+		if (cacheWriter != null) {
+			closeCacheWriter(cacheWriter);
+		}
+		if (cache != null) {
+			cache.save();
+		}
+	}
+
+	/**
+	 * Gets the executor that writes the local cache, creating a new executor the first time that the cache
+	 * is written after the manager is created or closed.
+	 */
+	private synchronized ExecutorService cacheWriter() {
+		if (cacheWriter == null) {
+			cacheWriter = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+					.setNameFormat("gpf4med-report-cache-%d").setDaemon(true).build());
+		}
+		return cacheWriter;
+	}
+
+	private static void closeCacheWriter(final ExecutorService cacheWriter) {
+		cacheWriter.shutdown();
 		try {
-			// wait a while for existing jobs to terminate
-			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
-				executor.shutdownNow(); // cancel currently executing jobs
-				// wait a while for jobs to respond to being cancelled
-				if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
-					LOGGER.warn("Document fetcher did not terminate");
-				}
+			if (!cacheWriter.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				LOGGER.warn("Pending reports were not written to the local cache");
+				cacheWriter.shutdownNow();
 			}
 		} catch (InterruptedException ie) {
-			// (re-)cancel if current thread also interrupted
-			executor.shutdownNow();
-			// preserve interrupt status
+			cacheWriter.shutdownNow();
 			Thread.currentThread().interrupt();
-		} finally {
-			LOGGER.trace("Document fetcher terminated");
+		}
+	}
+
+	/**
+	 * Adds a report that was downloaded from the storage to the index. Optionally, the report is also 
+	 * submitted to the ingestion pipeline (<tt>pipeline.ingest-downloads</tt>) and written to the local 
+	 * cache (<tt>storage.cache-downloads</tt>). Cache writes are asynchronous, and reports are only 
+	 * written when they are new or their content changed. Reports are kept in memory until they are 
+	 * written to the cache, which never happens when the cache is disabled. The manifest of the cache is saved 
+	 * every <tt>storage.manifest-save-interval</tt> written reports, so the reports written before the 
+	 * application stops are not lost.
+	 * @param report the report.
+	 * @param cacheDir the directory of the local cache where the report is written.
+	 * @throws InterruptedException if interrupted while waiting for the ingestion pipeline.
+	 */
+	public void add(final Document report, final File cacheDir) throws InterruptedException {
+		checkArgument(report != null && report.getCONTAINER() != null 
+				&& report.getCONTAINER().getCONCEPTNAME() != null
+				&& report.getCONTAINER().getCONCEPTNAME().getCODEVALUE() != null, "No report found");
+		final String id = report.getIDTRENCADISReport();
+		checkArgument(StringUtils.isNotBlank(id), "Uninitialized or invalid TRENCADIS identifier");
+		checkArgument(cacheDir != null, "Uninitialized cache directory");
+		downloaded.put(id, ReportSummary.of(report));
+		// the report is kept in memory until it is written to the local cache
+		unwritten.put(id, report);
+		if (Boolean.parseBoolean(ConfigurationManager.INSTANCE.getProperty("pipeline.ingest-downloads", "false"))) {
+			IngestionPipeline.INSTANCE.submit(report);
+		}
+		final LocalCache cache = this.cache;
+		if (cache != null && Boolean.parseBoolean(ConfigurationManager.INSTANCE.getProperty("storage.cache-downloads", 
+				"true"))) {
+			final int manifestSaveInterval = Math.max(1, ConfigurationManager.INSTANCE.getIntProperty(
+					"storage.manifest-save-interval", DEFAULT_MANIFEST_SAVE_INTERVAL));
+			try {
+				cacheWriter().execute(new Runnable() {
+					@Override
+					public void run() {
+						final File dir = new File(cacheDir, "ontology_" + report.getIDOntology());
+						try {
+							final boolean written = cache.put(id, new File(dir, id + ".xml"), REPORT_XMLB.typeToBytes(report));
+							unwritten.remove(id, report);
+							if (!written || cacheWrites.incrementAndGet() % manifestSaveInterval != 0) {
+								return;
+							}
+						} catch (Exception e) {
+							LOGGER.warn("Failed to write report to the local cache: " + id, e);
+							return;
+						}
+						try {
+							cache.save();
+						} catch (IOException e) {
+							LOGGER.warn("Failed to save the manifest of the local cache", e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.warn("Report was not written to the local cache, the manager is closed: " + id);
+			}
 		}
 	}
 	
 	public @Nullable Document getDocument(final ConceptName conceptName) {
 		checkArgument(conceptName != null, "Unninitialized or invalid concept name");
-		final ImmutableMap<String, Document> documents = documents(-1, null);
-		return documents != null ? documents.get(Id.getId(conceptName)) : null;
+		return getDocument(Id.getId(conceptName));
+	}
+
+	/**
+	 * Gets the full content of a report. Reports are loaded on demand from the local cache, and the most
+	 * recently used reports are kept in memory (<tt>storage.document-cache-size</tt>).
+	 * @param id the TRENCADIS identifier of the report.
+	 * @return the report, or {@code null} when the report is not found or cannot be loaded.
+	 */
+	public @Nullable Document getDocument(final String id) {
+		checkArgument(StringUtils.isNotBlank(id), "Uninitialized or invalid TRENCADIS identifier");
+		if (!catalogue().contains(id)) {
+			return null;
+		}
+		try {
+			return documents.get(id);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			LOGGER.warn("Failed to load report: " + id, e.getCause());
+			return null;
+		}
 	}
 	
-	public ImmutableCollection<Document> listDocuments() {
-		final ImmutableMap<String, Document> documents = documents(-1, null);
-		return documents != null ? documents.values() : new ImmutableList.Builder<Document>().build();
+	public ImmutableCollection<ReportSummary> listReports() {
+		return catalogue().list();
+	}
+	public ImmutableCollection<ReportSummary> listReports(int idCenter) {
+		return listByCenter(catalogue(), idCenter);
+	}
+	public ImmutableCollection<ReportSummary> listReports(String idOntology) {
+		return catalogue().listByOntology(idOntology);
+	}
+	public ImmutableCollection<ReportSummary> listReports(int idCenter, String idOntology) {
+		final ImmutableList.Builder<ReportSummary> builder = new ImmutableList.Builder<ReportSummary>();
+		for (final ReportSummary report : listByCenter(catalogue(), idCenter)) {
+			if (idOntology != null && idOntology.trim().equals(report.getIdOntology())) {
+				builder.add(report);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Lists the reports of a modality.
+	 * @param modality the identifier of the concept name of the report's container (e.g. RID10357@RADLEX).
+	 * @return the reports of the specified modality.
+	 */
+	public ImmutableCollection<ReportSummary> listReportsByModality(final String modality) {
+		return catalogue().listByModality(modality);
 	}
-	public ImmutableCollection<Document> listDocuments(int idCenter) {
-		final ImmutableMap<String, Document> documents = documents(idCenter, null);
-		return documents != null ? documents.values() : new ImmutableList.Builder<Document>().build();
+
+	/**
+	 * Lists the reports that started in the specified interval.
+	 * @param from (optional) start of the interval (inclusive).
+	 * @param to (optional) end of the interval (exclusive).
+	 * @return the reports that started in the specified interval, sorted by start date.
+	 */
+	public ImmutableCollection<ReportSummary> listReports(final @Nullable Date from, final @Nullable Date to) {
+		return catalogue().listByDate(from, to);
+	}
+
+	/**
+	 * Lists the reports that match all the specified filters. The most selective index of the catalogue is used
+	 * to find the candidates, which are then checked against the rest of the filters. The order of the reports
+	 * is stable between calls with the same filters, so the result can be paged.
+	 * @param idCenter (optional) center where the reports are stored, or -1 for all the centers.
+	 * @param idOntology (optional) ontology of the reports.
+	 * @param modality (optional) the identifier of the concept name of the report's container (e.g. RID10357@RADLEX).
+	 * @param from (optional) start of the interval (inclusive).
+	 * @param to (optional) end of the interval (exclusive).
+	 * @return the reports that match all the specified filters.
+	 */
+	public ImmutableList<ReportSummary> listReports(final int idCenter, final @Nullable String idOntology,
+			final @Nullable String modality, final @Nullable Date from, final @Nullable Date to) {
+		return ImmutableList.copyOf(filterReports(idCenter, idOntology, modality, from, to));
 	}
-	public ImmutableCollection<Document> listDocuments(String idOntology) {
-		final ImmutableMap<String, Document> documents = documents(-1, idOntology);
-		return documents != null ? documents.values() : new ImmutableList.Builder<Document>().build();
+
+	/**
+	 * Same as {@link #listReports(int, String, String, Date, Date)}, but the reports are checked against the 
+	 * filters while the result is iterated, instead of collecting the result in a new list.
+	 */
+	public Iterable<ReportSummary> filterReports(final int idCenter, final @Nullable String idOntology,
+			final @Nullable String modality, final @Nullable Date from, final @Nullable Date to) {
+		final ReportCatalogue catalogue = catalogue();
+		final List<ImmutableList<ReportSummary>> candidates = new ArrayList<ImmutableList<ReportSummary>>();
+		if (idCenter != -1) {
+			candidates.add(listByCenter(catalogue, idCenter));
+		}
+		if (StringUtils.isNotBlank(idOntology)) {
+			candidates.add(catalogue.listByOntology(idOntology));
+		}
+		if (StringUtils.isNotBlank(modality)) {
+			candidates.add(catalogue.listByModality(modality.trim()));
+		}
+		if (from != null || to != null) {
+			candidates.add(catalogue.listByDate(from, to));
+		}
+		if (candidates.isEmpty()) {
+			return catalogue.list().asList();
+		}
+		ImmutableList<ReportSummary> smallest = candidates.get(0);
+		for (final ImmutableList<ReportSummary> list : candidates) {
+			if (list.size() < smallest.size()) {
+				smallest = list;
+			}
+		}
+		if (candidates.size() == 1) {
+			return smallest;
+		}
+		final List<ImmutableSet<ReportSummary>> others = new ArrayList<ImmutableSet<ReportSummary>>();
+		for (final ImmutableList<ReportSummary> list : candidates) {
+			if (list != smallest) {
+				others.add(ImmutableSet.copyOf(list));
+			}
+		}
+		return Iterables.filter(smallest, new Predicate<ReportSummary>() {
+			@Override
+			public boolean apply(final ReportSummary report) {
+				for (final ImmutableSet<ReportSummary> other : others) {
+					if (!other.contains(report)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
 	}
-	public ImmutableCollection<Document> listDocuments(int idCenter, String idOntology) {
-		final ImmutableMap<String, Document> documents = documents(idCenter, idOntology);
-		return documents != null ? documents.values() : new ImmutableList.Builder<Document>().build();
+
+	/**
+	 * Reports don't include the center where they are stored, so the reports of a center are resolved the first 
+	 * time that the center is requested, listing the identifiers of the reports stored in the center. Reports are
+	 * not downloaded again. When TRENCADIS is not used, the center is ignored and all the reports are returned.
+	 */
+	private ImmutableList<ReportSummary> listByCenter(final ReportCatalogue catalogue, final int idCenter) {
+		if (idCenter == -1 || ConfigurationManager.INSTANCE.getTrencadisConfigFile() == null) {
+			return catalogue.list().asList();
+		}
+		ImmutableList<ReportSummary> reports = centers.get(idCenter);
+		if (reports == null) {
+			synchronized (DocumentManager.class) {
+				reports = centers.get(idCenter);
+				if (reports == null) {
+					TRENCADISUtils.INSTANCE.getReportsID(idCenter);
+					final List<TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE> dicomStorages = TRENCADISUtils.INSTANCE.getDicomStorages();
+					if (dicomStorages == null) {
+						LOGGER.warn("Failed to list the reports of the center: " + idCenter);
+						return ImmutableList.of();
+					}
+					final ImmutableList.Builder<ReportSummary> builder = new ImmutableList.Builder<ReportSummary>();
+					for (final TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE dicomStorage : dicomStorages) {
+						for (final DICOM_SR_ID id : dicomStorage.getDICOM_DSR_IDS()) {
+							final ReportSummary report = catalogue.get(id.getValue());
+							if (report != null) {
+								builder.add(report);
+							}
+						}
+					}
+					reports = builder.build();
+					centers.put(idCenter, reports);
+				}
+			}
+		}
+		return reports;
 	}
 	
 	/**
-	 * Lazy load -> Adapted to consider TRENCADIS storage
-	 * @return the list of available document Documents.
+	 * Lazy load -> Adapted to consider TRENCADIS storage. All the available reports are loaded the first time 
+	 * that the catalogue is accessed, and the filters are later resolved with the indexes of the catalogue.
+	 * Only the summaries of the reports are kept in the catalogue.
+	 * @return the catalogue of available reports.
 	 */
-	public ImmutableMap<String, Document> documents(int idCenter, String idOntology) {
+	private ReportCatalogue catalogue() {
 		if (dont_use == null) {
 			synchronized (DocumentManager.class) {
 				if (dont_use == null) {
 					// Documents can be loaded from class-path, local files, through HTTP or through TRENCADIS plug-in 
 					File documentsCacheDir = null;
+					File snapshotFile = null;
+					int fromSnapshot = 0;
 					try {
 						// prepare local cache directory
 						documentsCacheDir = new File(ConfigurationManager.INSTANCE.getLocalCacheDir(), 
@@ -190,23 +419,59 @@ public enum DocumentManager implements Closeable2 {
 								&& ConfigurationManager.INSTANCE.getTrencadisPassword() != null) {
 							urls = null;
 						}
-						FileUtils.deleteQuietly(documentsCacheDir);
-						FileUtils.forceMkdir(documentsCacheDir);
+						// open the local cache, keeping the reports downloaded in previous executions
+						cache = LocalCache.open(documentsCacheDir);
+						snapshot = null;
+						downloaded.clear();
+						unwritten.clear();
 						if  (urls == null) {
 							try {
 								
-								if (idCenter == -1 && idOntology == null) {
-									TRENCADISUtils.INSTANCE.getReportsID();
-								} else if(idCenter != -1 && idOntology == null) {
-									TRENCADISUtils.INSTANCE.getReportsID(idCenter);
-								} else if(idCenter == -1 && idOntology != null) {
-									TRENCADISUtils.INSTANCE.getReportsID(idOntology);
-								} else if(idCenter != -1 && idOntology != null){
-									TRENCADISUtils.INSTANCE.getReportsID(idCenter, idOntology);
+								TRENCADISUtils.INSTANCE.getReportsID();
+								
+								// reports that are no longer listed by the storage are removed from the local cache
+								final List<TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE> dicomStorages = TRENCADISUtils.INSTANCE.getDicomStorages();
+								checkState(dicomStorages != null, "Failed to list the reports");
+								final Set<String> listed = new HashSet<String>();
+								for (final TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE dicomStorage : dicomStorages) {
+									for (final DICOM_SR_ID id : dicomStorage.getDICOM_DSR_IDS()) {
+										listed.add(id.getValue());
+									}
+								}
+								final int before = cache.ids().size();
+								cache.retainAll(listed);
+								if (cache.ids().size() < before) {
+									LOGGER.info((before - cache.ids().size()) + " reports removed from the local cache, they are no longer listed");
+									cache.save();
 								}
 								
-								for (TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE dicomStorage : TRENCADISUtils.INSTANCE.getDicomStorages())
+								// only the reports that are not found in the local cache are downloaded, reports that 
+								// didn't change since the last snapshot are not parsed
+								if (Boolean.parseBoolean(ConfigurationManager.INSTANCE.getProperty("storage.snapshot", "true"))) {
+									snapshotFile = new File(documentsCacheDir, DocumentSnapshot.SNAPSHOT_FILENAME);
+									snapshot = DocumentSnapshot.open(snapshotFile);
+								}
+								int cached = 0;
+								for (TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE dicomStorage : dicomStorages) {
+									final Iterator<DICOM_SR_ID> it = dicomStorage.getDICOM_DSR_IDS().iterator();
+									while (it.hasNext()) {
+										final String id = it.next().getValue();
+										Document report = snapshot != null ? snapshot.get(id, cache.getHash(id)) : null;
+										if (report != null) {
+											fromSnapshot++;
+										} else {
+											report = loadCached(id);
+										}
+										if (report != null) {
+											// only the summary of the report is kept in memory
+											downloaded.put(id, ReportSummary.of(report));
+											it.remove();
+											cached++;
+										}
+									}
 									LOGGER.info(dicomStorage.getDICOM_DSR_IDS().size() + " reports to download from " + dicomStorage.getCenterName());
+								}
+								LOGGER.info(cached + " reports loaded from the local cache (" + fromSnapshot + " from the snapshot)");
 								
 								/* 
 								 * Download reports using Akka
@@ -214,10 +479,11 @@ public enum DocumentManager implements Closeable2 {
 								long startAkka = System.currentTimeMillis();
 								// Initialize Akka Service
 								AkkaApplication.INSTANCE.setDocumentsCacheDir(documentsCacheDir);
-								AkkaApplication.INSTANCE.createService();								
+								AkkaApplication.INSTANCE.download();
 								long endAkka = System.currentTimeMillis();
 								
 								LOGGER.info("Time elapsed to download reports: " + (endAkka - startAkka) + " milliseconds.");
+								saveCache();
 								
 							} catch (Exception e3) {
 								LOGGER.warn("Failed to get reports from TRENCADIS" , e3);
@@ -228,9 +494,17 @@ public enum DocumentManager implements Closeable2 {
 					}
 					checkArgument(documentsCacheDir != null, "Uninitialized reports local cache directory");
 					
-					final ImmutableMap.Builder<String, Document> builder = new ImmutableMap.Builder<String, Document>();
-					
+					// reports downloaded from the storage are already parsed
+					final ImmutableMap.Builder<String, ReportSummary> builder = new ImmutableMap.Builder<String, ReportSummary>();
+					builder.putAll(downloaded);
+					final ImmutableMap.Builder<String, File> files = new ImmutableMap.Builder<String, File>();
+					final ImmutableSet<File> cachedFiles = cache != null ? cache.files() : ImmutableSet.<File>of();
 					for (final File file : FileUtils.listFiles(documentsCacheDir, TrueFileFilter.INSTANCE, DirectoryFileFilter.DIRECTORY)) {
+						// reports tracked by the cache are only loaded when they are requested
+						if (LocalCache.isManifest(file) || DocumentSnapshot.isSnapshot(file) || "tmp".equals(FilenameUtils.getExtension(file.getName())) 
+								|| cachedFiles.contains(file.getAbsoluteFile()) || downloaded.containsKey(FilenameUtils.getBaseName(file.getName()))) {
+							continue;
+						}
 						String filename = null;
 						try {
 							filename = file.getCanonicalPath();
@@ -239,18 +513,143 @@ public enum DocumentManager implements Closeable2 {
 									&& report.getCONTAINER().getCONCEPTNAME().getCODEVALUE() != null, "No report found");
 							final String id = report.getIDTRENCADISReport();
 							checkState(StringUtils.isNotBlank(id), "Uninitialized or invalid TRENCADIS identifier");
-							builder.put(id, report);
+							builder.put(id, ReportSummary.of(report));
+							files.put(id, file);
 							LOGGER.trace("New report " + report.getIDReport() + ", ontology " + report.getIDOntology() 
 									+ ", loaded from: " + filename);
 						} catch (Exception e) {						
 							LOGGER.error("Failed to load report: " + filename, e);
 						}
 					}
-					dont_use = builder.build();
+					this.files = files.build();
+					// full reports are loaded on demand, keeping the most recently used in memory
+					documents = CacheBuilder.newBuilder()
+							.maximumSize(ConfigurationManager.INSTANCE.getIntProperty("storage.document-cache-size", 
+									DEFAULT_DOCUMENT_CACHE_SIZE))
+							.build(new CacheLoader<String, Document>() {
+								@Override
+								public Document load(final String id) throws Exception {
+									final Document document = loadDocument(id);
+									if (document == null) {
+										throw new IOException("Report not found: " + id);
+									}
+									return document;
+								}
+							});
+					final ImmutableMap<String, ReportSummary> reports = builder.build();
+					// the snapshot is only rewritten when some report was parsed from XML or was removed
+					if (snapshotFile != null && (snapshot == null || fromSnapshot != reports.size() 
+							|| fromSnapshot != snapshot.size())) {
+						saveSnapshot(snapshotFile, reports.keySet());
+					}
+					dont_use = ReportCatalogue.of(reports);
+					downloaded.clear();
 				}
 			}
 		}
 		return dont_use;
 	}
-	
-}
\ No newline at end of file
+
+	/**
+	 * Loads a report from memory (reports that are not yet written to the local cache), from the snapshot, 
+	 * from the local cache or from the file where the report was found, in that order.
+	 */
+	private @Nullable Document loadDocument(final String id) {
+		final LocalCache cache = this.cache;
+		final DocumentSnapshot snapshot = this.snapshot;
+		Document document = unwritten.get(id);
+		if (document == null && snapshot != null && cache != null) {
+			document = snapshot.get(id, cache.getHash(id));
+		}
+		if (document == null && cache != null && cache.contains(id)) {
+			document = loadCached(id);
+		}
+		if (document == null) {
+			final File file = files.get(id);
+			if (file != null) {
+				try {
+					document = DocumentLoader.create(file).load();
+				} catch (Exception e) {
+					LOGGER.warn("Failed to load report: " + file, e);
+				}
+			}
+		}
+		return document;
+	}
+
+	private @Nullable Document loadCached(final String id) {
+		final byte[] content = cache != null ? cache.read(id) : null;
+		if (content == null) {
+			return null;
+		}
+		final List<Document> reports = new ArrayList<Document>(1);
+		try (final Reader reader = new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8)) {
+			DocumentLoader.load(reader, new Handler<Document>() {
+				@Override
+				public void handle(final Document report) {
+					reports.add(report);
+				}
+			});
+		} catch (Exception e) {
+			LOGGER.warn("Failed to load report from the local cache: " + id, e);
+		}
+		if (reports.size() != 1 || !id.equals(reports.get(0).getIDTRENCADISReport())) {
+			cache.remove(id);
+			return null;
+		}
+		return reports.get(0);
+	}
+
+	private void saveSnapshot(final File file, final ImmutableSet<String> ids) {
+		final LocalCache cache = this.cache;
+		if (cache != null) {
+			try {
+				// runs after the pending cache writes, so the hashes of the reports are up to date
+				cacheWriter().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							final long start = System.currentTimeMillis();
+							final int count = DocumentSnapshot.write(file, ids, cache, new Function<String, Document>() {
+								@Override
+								public Document apply(final String id) {
+									return loadDocument(id);
+								}
+							});
+							// reports are loaded from the new snapshot from now on
+							snapshot = DocumentSnapshot.open(file);
+							LOGGER.info("Snapshot of " + count + " reports written in " + (System.currentTimeMillis() - start) 
+									+ " milliseconds");
+						} catch (IOException e) {
+							LOGGER.warn("Failed to write the snapshot of the local cache", e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.warn("Snapshot of the local cache was not written, the manager is closed");
+			}
+		}
+	}
+
+	private void saveCache() {
+		final LocalCache cache = this.cache;
+		if (cache != null) {
+			try {
+				// runs after the pending cache writes
+				cacheWriter().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							cache.save();
+						} catch (IOException e) {
+							LOGGER.warn("Failed to save the manifest of the local cache", e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOGGER.warn("Manifest of the local cache was not saved, the manager is closed");
+			}
+		}
+	}
+
+}
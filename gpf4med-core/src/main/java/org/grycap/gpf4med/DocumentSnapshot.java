@@ -0,0 +1,510 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+
+package org.grycap.gpf4med;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.grycap.gpf4med.model.document.Children;
+import org.grycap.gpf4med.model.document.Code;
+import org.grycap.gpf4med.model.document.ConceptName;
+import org.grycap.gpf4med.model.document.Container;
+import org.grycap.gpf4med.model.document.Date;
+import org.grycap.gpf4med.model.document.Document;
+import org.grycap.gpf4med.model.document.Num;
+import org.grycap.gpf4med.model.document.Text;
+import org.grycap.gpf4med.model.document.UnitMeasurement;
+import org.grycap.gpf4med.model.document.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compact binary snapshot of the reports that are stored in the local cache, which avoids parsing the XML
+ * of the reports at startup. The snapshot is memory-mapped and the reports are decoded on demand. Each
+ * report is stored with the hash of its source, so that only the reports that changed since the snapshot
+ * was written need to be parsed. File layout:
+ * <ul>
+ * <li>Header: magic number and version.</li>
+ * <li>String table: all the distinct strings of the reports (identifiers, codes, meanings, values).</li>
+ * <li>Index: the TRENCADIS identifier, the hash of the source and the offset of each report.</li>
+ * <li>Data: the reports, where strings are referred to by their position in the string table.</li>
+ * </ul>
+ * Integers are written as variable-length quantities. Strings are written in UTF-8, prefixed by their length.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public final class DocumentSnapshot {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(DocumentSnapshot.class);
+
+	public static final String SNAPSHOT_FILENAME = ".snapshot";
+
+	private static final int MAGIC = 0x47344d53; // G4MS
+	private static final int VERSION = 1;
+
+	private static final Field TEXT_FIELD = field("text");
+	private static final Field DATE_FIELD = field("date");
+	private static final Field CONTAINER_FIELD = field("container");
+	private static final Field CODE_FIELD = field("code");
+	private static final Field NUM_FIELD = field("num");
+
+	private final ByteBuffer data;
+	private final String[] strings;
+	private final ImmutableMap<String, Entry> index;
+
+	private DocumentSnapshot(final ByteBuffer data, final String[] strings, final ImmutableMap<String, Entry> index) {
+		this.data = data;
+		this.strings = strings;
+		this.index = index;
+	}
+
+	public static boolean isSnapshot(final File file) {
+		return file != null && SNAPSHOT_FILENAME.equals(file.getName());
+	}
+
+	/**
+	 * Opens a snapshot, mapping the file into memory.
+	 * @param file the file where the snapshot is stored.
+	 * @return the snapshot, or {@code null} when the file doesn't exist or is not a valid snapshot.
+	 */
+	public static @Nullable DocumentSnapshot open(final File file) {
+		checkArgument(file != null, "Uninitialized file");
+		if (!file.isFile()) {
+			return null;
+		}
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				LOGGER.warn("Ignoring snapshot larger than 2GB: " + file);
+				return null;
+			}
+			// the mapping remains valid after the channel is closed
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				LOGGER.warn("Ignoring snapshot with unsupported format: " + file);
+				return null;
+			}
+			final String[] strings = new String[readInt(buffer)];
+			for (int i = 0; i < strings.length; i++) {
+				final byte[] bytes = new byte[readInt(buffer)];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			final int count = readInt(buffer);
+			final ImmutableMap.Builder<String, Entry> index = new ImmutableMap.Builder<String, Entry>();
+			for (int i = 0; i < count; i++) {
+				final String id = strings[readInt(buffer)];
+				final String hash = strings[readInt(buffer)];
+				index.put(id, new Entry(hash, readInt(buffer)));
+			}
+			final ByteBuffer data = buffer.slice();
+			return new DocumentSnapshot(data, strings, index.build());
+		} catch (Exception e) {
+			LOGGER.warn("Ignoring invalid snapshot: " + file, e);
+			return null;
+		}
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Gets a report from the snapshot.
+	 * @param id the TRENCADIS identifier of the report.
+	 * @param hash the current hash of the source of the report.
+	 * @return the report, or {@code null} when the report is not found in the snapshot or its source changed 
+	 *         after the snapshot was written.
+	 */
+	public @Nullable Document get(final String id, final @Nullable String hash) {
+		final Entry entry = index.get(id);
+		if (entry == null || hash == null || !entry.hash.equals(hash)) {
+			return null;
+		}
+		final ByteBuffer buffer = data.duplicate();
+		buffer.position(entry.offset);
+		return new Decoder(buffer).document();
+	}
+
+	/**
+	 * Writes a snapshot of the reports that are stored in the local cache. Reports that are not found in the 
+	 * cache are not included. The previous snapshot is replaced atomically.
+	 * @param file the file where the snapshot is written.
+	 * @param ids the TRENCADIS identifiers of the reports.
+	 * @param cache the local cache where the reports are stored.
+	 * @param loader loads the reports, which are encoded one by one, so they don't need to be in memory at 
+	 *        the same time. Reports that cannot be loaded ({@code null}) are not included.
+	 * @return the number of reports written to the snapshot.
+	 * @throws IOException if the snapshot cannot be written.
+	 */
+	public static int write(final File file, final Collection<String> ids, final LocalCache cache, 
+			final Function<String, Document> loader) throws IOException {
+		checkArgument(file != null, "Uninitialized file");
+		checkArgument(ids != null, "Uninitialized reports");
+		checkArgument(cache != null, "Uninitialized cache");
+		checkArgument(loader != null, "Uninitialized loader");
+		// encode the reports, collecting the strings
+		final Encoder encoder = new Encoder();
+		final Map<String, Entry> index = new LinkedHashMap<String, Entry>();
+		for (final String id : ids) {
+			final String hash = cache.getHash(id);
+			final Document document = hash != null ? loader.apply(id) : null;
+			if (document != null) {
+				encoder.string(id);
+				encoder.string(hash);
+				index.put(id, new Entry(hash, encoder.data.size()));
+				encoder.document(document);
+			}
+		}
+		// write the file
+		final Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+		try {
+			try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 
+					64 * 1024))) {
+				os.writeInt(MAGIC);
+				os.writeInt(VERSION);
+				writeInt(os, encoder.strings.size());
+				for (final String string : encoder.strings.keySet()) {
+					final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+					writeInt(os, bytes.length);
+					os.write(bytes);
+				}
+				writeInt(os, index.size());
+				for (final Map.Entry<String, Entry> entry : index.entrySet()) {
+					writeInt(os, encoder.strings.get(entry.getKey()));
+					writeInt(os, encoder.strings.get(entry.getValue().hash));
+					writeInt(os, entry.getValue().offset);
+				}
+				encoder.data.writeTo(os);
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		return index.size();
+	}
+
+	private static void writeInt(final OutputStream os, final int value) throws IOException {
+		int v = value;
+		while ((v & ~0x7f) != 0) {
+			os.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		os.write(v);
+	}
+
+	private static int readInt(final ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			final byte b = buffer.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalStateException("Malformed integer");
+	}
+
+	private static Field field(final String name) {
+		try {
+			final Field field = Children.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException("Field not found: " + name, e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static @Nullable <T> List<T> list(final Field field, final Children children) {
+		try {
+			return (List<T>)field.get(children);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Field is not accessible: " + field.getName(), e);
+		}
+	}
+
+	private static class Entry {
+
+		private final String hash;
+		private final int offset;
+
+		public Entry(final String hash, final int offset) {
+			this.hash = hash;
+			this.offset = offset;
+		}
+
+	}
+
+	/**
+	 * Writes the reports, replacing the strings with references to the string table. Reference zero is 
+	 * reserved to {@code null}. Lists are prefixed by their size plus one (zero is reserved to {@code null}), 
+	 * and optional elements by a presence flag. Lists are read directly from the fields, since the getters 
+	 * would create the lists that are missing, modifying the reports.
+	 */
+	private static class Encoder {
+
+		private final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		private int string(final String value) {
+			Integer ref = strings.get(value);
+			if (ref == null) {
+				ref = strings.size();
+				strings.put(value, ref);
+			}
+			return ref;
+		}
+
+		private void ref(final @Nullable String value) throws IOException {
+			writeInt(data, value != null ? string(value) + 1 : 0);
+		}
+
+		private boolean present(final @Nullable Object value) {
+			data.write(value != null ? 1 : 0);
+			return value != null;
+		}
+
+		public void document(final Document document) throws IOException {
+			ref(document.getIDReport());
+			ref(document.getIDOntology());
+			ref(document.getDateTimeStart());
+			ref(document.getDateTimeEnd());
+			ref(document.getIDTRENCADISReport());
+			container(document.getCONTAINER());
+		}
+
+		private void container(final @Nullable Container container) throws IOException {
+			if (present(container)) {
+				conceptName(container.getCONCEPTNAME());
+				children(container.getCHILDREN());
+			}
+		}
+
+		private void children(final @Nullable Children children) throws IOException {
+			if (present(children)) {
+				final List<Text> texts = list(TEXT_FIELD, children);
+				writeInt(data, texts != null ? texts.size() + 1 : 0);
+				for (final Text text : texts != null ? texts : Collections.<Text>emptyList()) {
+					conceptName(text.getCONCEPTNAME());
+					ref(text.getVALUE());
+				}
+				final List<Date> dates = list(DATE_FIELD, children);
+				writeInt(data, dates != null ? dates.size() + 1 : 0);
+				for (final Date date : dates != null ? dates : Collections.<Date>emptyList()) {
+					conceptName(date.getCONCEPTNAME());
+					ref(date.getVALUE());
+				}
+				final List<Container> containers = list(CONTAINER_FIELD, children);
+				writeInt(data, containers != null ? containers.size() + 1 : 0);
+				for (final Container container : containers != null ? containers : Collections.<Container>emptyList()) {
+					container(container);
+				}
+				final List<Code> codes = list(CODE_FIELD, children);
+				writeInt(data, codes != null ? codes.size() + 1 : 0);
+				for (final Code code : codes != null ? codes : Collections.<Code>emptyList()) {
+					conceptName(code.getCONCEPTNAME());
+					final Value value = code.getVALUE();
+					if (present(value)) {
+						code(value.getCODEVALUE(), value.getCODESCHEMA(), value.getCODEMEANING(), value.getCODEMEANING2());
+					}
+				}
+				final List<Num> nums = list(NUM_FIELD, children);
+				writeInt(data, nums != null ? nums.size() + 1 : 0);
+				for (final Num num : nums != null ? nums : Collections.<Num>emptyList()) {
+					conceptName(num.getCONCEPTNAME());
+					final UnitMeasurement unit = num.getUNITMEASUREMENT();
+					if (present(unit)) {
+						code(unit.getCODEVALUE(), unit.getCODESCHEMA(), unit.getCODEMEANING(), unit.getCODEMEANING2());
+					}
+					ref(num.getVALUE());
+				}
+			}
+		}
+
+		private void conceptName(final @Nullable ConceptName conceptName) throws IOException {
+			if (present(conceptName)) {
+				code(conceptName.getCODEVALUE(), conceptName.getCODESCHEMA(), conceptName.getCODEMEANING(), 
+						conceptName.getCODEMEANING2());
+			}
+		}
+
+		private void code(final String value, final String schema, final String meaning, final String meaning2) 
+				throws IOException {
+			ref(value);
+			ref(schema);
+			ref(meaning);
+			ref(meaning2);
+		}
+
+	}
+
+	/**
+	 * Reads the reports written by the {@link Encoder}.
+	 */
+	private class Decoder {
+
+		private final ByteBuffer buffer;
+
+		public Decoder(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		private @Nullable String ref() {
+			final int ref = readInt(buffer);
+			return ref > 0 ? strings[ref - 1] : null;
+		}
+
+		private boolean present() {
+			return buffer.get() != 0;
+		}
+
+		public Document document() {
+			final Document document = new Document();
+			document.setIDReport(ref());
+			document.setIDOntology(ref());
+			document.setDateTimeStart(ref());
+			document.setDateTimeEnd(ref());
+			document.setIDTRENCADISReport(ref());
+			document.setCONTAINER(container());
+			return document;
+		}
+
+		private @Nullable Container container() {
+			if (!present()) {
+				return null;
+			}
+			final Container container = new Container();
+			container.setCONCEPTNAME(conceptName());
+			container.setCHILDREN(children());
+			return container;
+		}
+
+		private @Nullable Children children() {
+			if (!present()) {
+				return null;
+			}
+			final Children children = new Children();
+			int count = readInt(buffer) - 1;
+			if (count >= 0) {
+				final List<Text> texts = children.getTEXT();
+				for (int i = 0; i < count; i++) {
+					final Text text = new Text();
+					text.setCONCEPTNAME(conceptName());
+					text.setVALUE(ref());
+					texts.add(text);
+				}
+			}
+			count = readInt(buffer) - 1;
+			if (count >= 0) {
+				final List<Date> dates = children.getDATE();
+				for (int i = 0; i < count; i++) {
+					final Date date = new Date();
+					date.setCONCEPTNAME(conceptName());
+					date.setVALUE(ref());
+					dates.add(date);
+				}
+			}
+			count = readInt(buffer) - 1;
+			if (count >= 0) {
+				final List<Container> containers = children.getCONTAINER();
+				for (int i = 0; i < count; i++) {
+					containers.add(container());
+				}
+			}
+			count = readInt(buffer) - 1;
+			if (count >= 0) {
+				final List<Code> codes = children.getCODE();
+				for (int i = 0; i < count; i++) {
+					final Code code = new Code();
+					code.setCONCEPTNAME(conceptName());
+					if (present()) {
+						final Value value = new Value();
+						value.setCODEVALUE(ref());
+						value.setCODESCHEMA(ref());
+						value.setCODEMEANING(ref());
+						value.setCODEMEANING2(ref());
+						code.setVALUE(value);
+					}
+					codes.add(code);
+				}
+			}
+			count = readInt(buffer) - 1;
+			if (count >= 0) {
+				final List<Num> nums = children.getNUM();
+				for (int i = 0; i < count; i++) {
+					final Num num = new Num();
+					num.setCONCEPTNAME(conceptName());
+					if (present()) {
+						final UnitMeasurement unit = new UnitMeasurement();
+						unit.setCODEVALUE(ref());
+						unit.setCODESCHEMA(ref());
+						unit.setCODEMEANING(ref());
+						unit.setCODEMEANING2(ref());
+						num.setUNITMEASUREMENT(unit);
+					}
+					num.setVALUE(ref());
+					nums.add(num);
+				}
+			}
+			return children;
+		}
+
+		private @Nullable ConceptName conceptName() {
+			if (!present()) {
+				return null;
+			}
+			final ConceptName conceptName = new ConceptName();
+			conceptName.setCODEVALUE(ref());
+			conceptName.setCODESCHEMA(ref());
+			conceptName.setCODEMEANING(ref());
+			conceptName.setCODEMEANING2(ref());
+			return conceptName;
+		}
+
+	}
+
+}
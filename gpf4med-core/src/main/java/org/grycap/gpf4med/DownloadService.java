@@ -24,27 +24,40 @@ package org.grycap.gpf4med;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
@@ -53,28 +66,106 @@ import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
 import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.nio.client.methods.ZeroCopyConsumer;
 import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
-import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
 import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.exec.PostProcessTask;
 import org.grycap.gpf4med.security.FileEncryptionProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Handles concurrent file download. This class will do its best effort to optimally handle the 
  * downloads, opening a pool of connections to the servers and reusing them as much as possible. Also, 
  * it will create several concurrent threads in the JVM in order to perform simultaneous downloads.
+ * The HTTP client and its pool of connections are created the first time that a file is downloaded, 
+ * and they are shared by all the subsequent downloads (including retries) until the service is closed, 
+ * so the connections are kept alive between downloads. Optionally, the maximum number of connections 
+ * per route can be adapted to the latency and to the errors observed in each route.
  * @author Erik Torres <ertorser@upv.es>
  */
-public class DownloadService {
+public class DownloadService implements Closeable {
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(DownloadService.class);
 
-	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 4;
-	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 2;
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+	public static final int DEFAULT_KEEP_ALIVE_MS = 30000; // 30 seconds
+	public static final int DEFAULT_CIRCUIT_BREAKER_FAILURES = 5;
+	public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_MS = 30000; // 30 seconds
+
+	private final int maxTotal;
+	private final int maxPerRoute;
+	private final int keepAliveMs;
+	private final boolean adaptive;
+	private final int circuitBreakerFailures;
+	private final int circuitBreakerOpenMs;
+
+	private PoolingNHttpClientConnectionManager connectionManager = null;
+	private CloseableHttpAsyncClient httpclient = null;
+	private ScheduledExecutorService scheduler = null;
+	private volatile RouteLimiter routeLimiter = null;
+	private final ConcurrentMap<HttpHost, CircuitBreaker> breakers = new ConcurrentHashMap<HttpHost, CircuitBreaker>();
+
+	/**
+	 * Creates a new service with the settings of the configuration (<tt>download.max-connections</tt>, 
+	 * <tt>download.max-connections-per-route</tt>, <tt>download.keep-alive-ms</tt>, <tt>download.adaptive</tt>, 
+	 * <tt>download.circuit-breaker.failures</tt> and <tt>download.circuit-breaker.open-ms</tt>).
+	 */
+	public DownloadService() {
+		this(ConfigurationManager.INSTANCE.getIntProperty("download.max-connections", DEFAULT_MAX_TOTAL_CONNECTIONS),
+				ConfigurationManager.INSTANCE.getIntProperty("download.max-connections-per-route", 
+						DEFAULT_MAX_CONNECTIONS_PER_ROUTE),
+				ConfigurationManager.INSTANCE.getIntProperty("download.keep-alive-ms", DEFAULT_KEEP_ALIVE_MS),
+				Boolean.parseBoolean(ConfigurationManager.INSTANCE.getProperty("download.adaptive", "false")),
+				ConfigurationManager.INSTANCE.getIntProperty("download.circuit-breaker.failures", 
+						DEFAULT_CIRCUIT_BREAKER_FAILURES),
+				ConfigurationManager.INSTANCE.getIntProperty("download.circuit-breaker.open-ms", 
+						DEFAULT_CIRCUIT_BREAKER_OPEN_MS));
+	}
+
+	/**
+	 * Creates a new service with the specified settings.
+	 * @param maxTotal maximum number of connections.
+	 * @param maxPerRoute maximum number of connections per route. When the adaptive mode is enabled, this is
+	 *        the initial limit of each route, which can later grow up to the maximum number of connections.
+	 * @param keepAliveMs time in milliseconds that an idle connection is kept alive, when the server doesn't 
+	 *        include a different time in the response.
+	 * @param adaptive adapts the maximum number of connections per route to the latency and the errors.
+	 */
+	public DownloadService(final int maxTotal, final int maxPerRoute, final int keepAliveMs, final boolean adaptive) {
+		this(maxTotal, maxPerRoute, keepAliveMs, adaptive, DEFAULT_CIRCUIT_BREAKER_FAILURES, 
+				DEFAULT_CIRCUIT_BREAKER_OPEN_MS);
+	}
+
+	/**
+	 * Creates a new service with the specified settings.
+	 * @param maxTotal maximum number of connections.
+	 * @param maxPerRoute maximum number of connections per route.
+	 * @param keepAliveMs time in milliseconds that an idle connection is kept alive.
+	 * @param adaptive adapts the maximum number of connections per route to the latency and the errors.
+	 * @param circuitBreakerFailures number of consecutive failures that opens the circuit of a server, stopping 
+	 *        new requests to the server. A value less than or equal to zero disables the circuit breakers.
+	 * @param circuitBreakerOpenMs time in milliseconds that the circuit of a server is kept open, before a single
+	 *        request is allowed to check the server again.
+	 */
+	public DownloadService(final int maxTotal, final int maxPerRoute, final int keepAliveMs, final boolean adaptive,
+			final int circuitBreakerFailures, final int circuitBreakerOpenMs) {
+		checkArgument(maxTotal > 0, "Invalid maximum number of connections");
+		checkArgument(maxPerRoute > 0, "Invalid maximum number of connections per route");
+		this.maxTotal = maxTotal;
+		this.maxPerRoute = Math.min(maxPerRoute, maxTotal);
+		this.keepAliveMs = Math.max(0, keepAliveMs);
+		this.adaptive = adaptive;
+		this.circuitBreakerFailures = circuitBreakerFailures;
+		this.circuitBreakerOpenMs = Math.max(0, circuitBreakerOpenMs);
+	}
 
 	/**
 	 * A convenient variant of the method {@link #downloadNoFailOnReadTimeout(ImmutableMap, FileValidator, DownloadConfiguration)}
@@ -97,7 +188,10 @@ public class DownloadService {
 	 * Uses a group of URIs to retrieve objects and writes them to the same number of files. This method will do 
 	 * its best effort to optimally handle the downloads, opening a pool of connections to the servers and reusing 
 	 * them as much as possible. Also, it will create several concurrent threads in the JVM in order to perform 
-	 * simultaneous downloads.
+	 * simultaneous downloads. Each request is retried independently as soon as it fails, waiting an exponential
+	 * backoff with random jitter between attempts. Requests to a server that fails repeatedly are delayed until 
+	 * the circuit breaker of the server allows new requests, and each delay counts as an attempt. When the configuration includes a deadline, the 
+	 * requests that are not completed before the deadline are cancelled.
 	 * @param requests a key-value map with the list of requests to handle. The source of the object is the key of
 	 *        the map, while the value is the destination file.
 	 * @param validator checks the file for correctness.
@@ -116,147 +210,106 @@ public class DownloadService {
 			final @Nullable PostProcessTask<File> task) throws IOException {
 		checkArgument(requests != null, "Uninitialized request");
 		checkArgument(config != null, "Uninitialized configuration");
-		ImmutableMap<URI, File> pending = ImmutableMap.copyOf(requests);
-		final List<URI> cancelled = new ArrayList<URI>();
 		try {
-			for (int attempt = 0; attempt < config.getRetries() && !pending.isEmpty() 
-					&& pending.size() > cancelled.size(); attempt++) {
-				LOGGER.info("Attempt " + (attempt + 1) + " to download " + requests.size() + " files");
-				// create connection manager
-				final PoolingNHttpClientConnectionManager connectionManager = createConnectionManager();				
-				// create HTTP asynchronous client
-				int eSoTimeoutMs = config.soToMs + (int)(config.soToMs * attempt * (config.toIncPercent >= 0.0d 
-						&& config.toIncPercent <= 1.0d ? config.toIncPercent : 0.0d));
-				int eConnTimeoutMs = config.connToMs + (int)(config.connToMs * attempt * (config.toIncPercent >= 0.0d 
-						&& config.toIncPercent <= 1.0d ? config.toIncPercent : 0.0d));
-				final RequestConfig requestConfig = RequestConfig.custom()
-						.setConnectTimeout(eConnTimeoutMs)
-						.setConnectionRequestTimeout(eConnTimeoutMs)
-						.setSocketTimeout(eSoTimeoutMs).build();
-				final CloseableHttpAsyncClient httpclient = HttpAsyncClients.custom()
-						.setConnectionManager(connectionManager)
-						.setDefaultRequestConfig(requestConfig).build();
-				httpclient.start();
-				// attempt to perform download
-				try {
-					final CountDownLatch latch = new CountDownLatch(pending.size());
-					for (final Map.Entry<URI, File> entry : pending.entrySet()) {
-						final URI uri = entry.getKey();
-						if (cancelled.contains(uri)) {
-							continue;
-						}
-						final File file = entry.getValue();
-						FileUtils.forceMkdir(file.getParentFile());
-						final HttpGet request = new HttpGet(uri);	
-						final HttpAsyncRequestProducer producer = new BasicAsyncRequestProducer(
-								new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()), request);					
-						final ZeroCopyConsumer<File> consumer = new ZeroCopyConsumer<File>(file) {
-							@Override
-							protected File process(final HttpResponse response, final File file,
-									final ContentType contentType) throws Exception {
-								releaseResources();
-								if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-									FileUtils.deleteQuietly(file);
-									throw new ClientProtocolException("Download failed: " 
-											+ response.getStatusLine());
-								}
-								if (validator != null && !validator.isValid(file)) {
-									FileUtils.deleteQuietly(file);
-									cancelled.add(uri);
-									throw new IOException(file.getCanonicalPath() 
-											+ " not recognised as a supported file format");
-								}
-								if (encryptionProvider != null) {
-									try {
-										final File cipherFile = File.createTempFile(RandomStringUtils.random(8, true, true), ".tmp");
-										encryptionProvider.encrypt(new FileInputStream(file), new FileOutputStream(cipherFile));
-										FileUtils.deleteQuietly(file);
-										FileUtils.moveFile(cipherFile, file);
-										LOGGER.info("File encrypted: " + file.getCanonicalPath());
-									} catch (Exception e) {
-										FileUtils.deleteQuietly(file);
-										cancelled.add(uri);
-										LOGGER.warn("Failed to encrypt: " + file.getCanonicalPath(), e);
-										throw new IOException("File encryption failed");
-									}
-								}
-								LOGGER.info("Download succeed to file: " + file.getCanonicalPath());
-								return file;
-							}
-						};
-						httpclient.execute(producer, consumer, new FutureCallback<File>() {
-							@Override
-							public void completed(final File result) {
-								request.releaseConnection();
-								latch.countDown();
-								if (task != null) {
-									task.apply(result);
-								}
-								LOGGER.info("Request succeed: " + request.getRequestLine() 
-										+ " => Response file length: " + result.length());
-							}
-							@Override
-							public void failed(final Exception ex) {
-								request.releaseConnection();
-								FileUtils.deleteQuietly(file);
-								latch.countDown();
-								LOGGER.error("Request failed: " + request.getRequestLine() + "=>" + ex);
-							}
-							@Override
-							public void cancelled() {
-								request.releaseConnection();
-								FileUtils.deleteQuietly(file);
-								latch.countDown();
-								LOGGER.error("Request cancelled: " + request.getRequestLine());
-							}
-						});
-					}
-					latch.await();
-				} finally {
-					try {
-						httpclient.close();
-					} catch (Exception ignore) { }
-					try {
-						shutdown(connectionManager, 0l);
-					} catch (Exception ignore) { }
-				}
-				// populate the pending list with the files that does not exist
-				final ImmutableMap.Builder<URI, File> builder = new ImmutableMap.Builder<URI, File>();
-				for (final Map.Entry<URI, File> entry : requests.entrySet()) {
-					if (!entry.getValue().exists()) {						
-						builder.put(entry.getKey(), entry.getValue());
-					}
-				}
-				pending = builder.build();
-				if ((attempt + 1) < config.retries && !pending.isEmpty() 
-						&& pending.size() > cancelled.size()) {
-					final long waitingTime = (long)(config.soToMs * 0.1d);
-					LOGGER.info("Waiting " + waitingTime +  " ms before attempt " 
-							+ (attempt + 2) + " to download " + requests.size() 
-							+ " pending files");
-					Thread.sleep(waitingTime);
-				}
+			final CloseableHttpAsyncClient httpclient;
+			final ScheduledExecutorService scheduler;
+			synchronized (this) {
+				httpclient = client();
+				scheduler = this.scheduler;
 			}
+			return new DownloadJob(httpclient, scheduler, requests, validator, config, encryptionProvider, task).call();
 		} catch (IOException ioe) {
 			throw ioe;
 		} catch (Exception e) {
 			throw new IOException("Download has failed", e);
 		}
-		return pending;
 	}	
 
+	/**
+	 * Closes the HTTP client and the connections of the pool. The service can be used again after it is closed,
+	 * creating a new client.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (httpclient != null) {
+			try {
+				httpclient.close();
+			} catch (Exception ignore) { }
+			try {
+				shutdown(connectionManager, 0l);
+			} catch (Exception ignore) { }
+			scheduler.shutdownNow();
+		}
+		httpclient = null;
+		connectionManager = null;
+		scheduler = null;
+		routeLimiter = null;
+	}
+
+	private synchronized CloseableHttpAsyncClient client() throws IOReactorException {
+		if (httpclient == null) {
+			connectionManager = createConnectionManager();
+			routeLimiter = adaptive ? new RouteLimiter(connectionManager, maxPerRoute, maxTotal) : null;
+			final ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+				@Override
+				public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+					final long duration = super.getKeepAliveDuration(response, context);
+					return duration > 0l ? duration : keepAliveMs;
+				}
+			};
+			httpclient = HttpAsyncClients.custom()
+					.setConnectionManager(connectionManager)
+					.setKeepAliveStrategy(keepAliveStrategy)
+					.setThreadFactory(threadFactory("gpf4med-download-%d")).build();
+			httpclient.start();
+			scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("gpf4med-download-retry-%d"));
+		} else {
+			connectionManager.closeExpiredConnections();
+			connectionManager.closeIdleConnections(keepAliveMs, TimeUnit.MILLISECONDS);
+		}
+		return httpclient;
+	}
+
 	private PoolingNHttpClientConnectionManager createConnectionManager() throws IOReactorException {
 		final IOReactorConfig ioReactorConfig = IOReactorConfig.custom().setSoReuseAddress(false).build();		
 		final PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
-				new DefaultConnectingIOReactor(ioReactorConfig));
-		connectionManager.setMaxTotal(DEFAULT_MAX_TOTAL_CONNECTIONS);
-		connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+				new DefaultConnectingIOReactor(ioReactorConfig, threadFactory("gpf4med-download-io-%d")));
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
 		LOGGER.info("Connection manager created: [max_connections_total=" 
 				+ connectionManager.getMaxTotal() + ", max_connections_per_route=" 
-				+ connectionManager.getDefaultMaxPerRoute() + "]");
+				+ connectionManager.getDefaultMaxPerRoute() + ", adaptive=" + adaptive + "]");
 		return connectionManager;
 	}
 
+	private @Nullable CircuitBreaker breaker(final HttpHost target) {
+		if (circuitBreakerFailures <= 0) {
+			return null;
+		}
+		CircuitBreaker breaker = breakers.get(target);
+		if (breaker == null) {
+			final CircuitBreaker breaker2 = breakers.putIfAbsent(target, breaker = new CircuitBreaker(
+					circuitBreakerFailures, circuitBreakerOpenMs));
+			if (breaker2 != null) {
+				breaker = breaker2;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * Gets the host of the URI, resolving the default port from the scheme when the URI has no port.
+	 */
+	private static HttpHost target(final URI uri) {
+		final boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		return new HttpHost(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : (secure ? 443 : 80), uri.getScheme());
+	}
+
+	private static ThreadFactory threadFactory(final String nameFormat) {
+		// daemon threads, so a service that is not closed doesn't prevent the JVM from exiting
+		return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+	}
+
 	/**
 	 * Initiates shutdown of the download manager and blocks approximately for the 
 	 * given period of time in milliseconds waiting for the download manager to 
@@ -286,6 +339,413 @@ public class DownloadService {
 
 	/* Inner classes */
 
+	/**
+	 * Downloads a group of files, keeping the state of each request: the number of attempts, the pending retries
+	 * and the in-flight requests. A request is completed when the file is downloaded, when the file is rejected
+	 * by the validator, when the retries are exhausted or when the deadline expires.
+	 */
+	private class DownloadJob {
+
+		private final CloseableHttpAsyncClient httpclient;
+		private final ScheduledExecutorService scheduler;
+		private final ImmutableMap<URI, File> requests;
+		private final FileValidator validator;
+		private final DownloadConfiguration config;
+		private final FileEncryptionProvider encryptionProvider;
+		private final PostProcessTask<File> task;
+
+		private final long deadline;
+		private final CountDownLatch latch;
+		private final Set<URI> succeeded = Collections.newSetFromMap(new ConcurrentHashMap<URI, Boolean>());
+		private final Set<URI> cancelled = Collections.newSetFromMap(new ConcurrentHashMap<URI, Boolean>());
+		private final ConcurrentMap<URI, Future<?>> futures = new ConcurrentHashMap<URI, Future<?>>();
+		private volatile boolean expired = false;
+
+		public DownloadJob(final CloseableHttpAsyncClient httpclient, final ScheduledExecutorService scheduler, 
+				final ImmutableMap<URI, File> requests, final @Nullable FileValidator validator, 
+				final DownloadConfiguration config, final @Nullable FileEncryptionProvider encryptionProvider, 
+				final @Nullable PostProcessTask<File> task) {
+			this.httpclient = httpclient;
+			this.scheduler = scheduler;
+			this.requests = requests;
+			this.validator = validator;
+			this.config = config;
+			this.encryptionProvider = encryptionProvider;
+			this.task = task;
+			this.deadline = config.getDeadlineMs() > 0l ? System.nanoTime() 
+					+ TimeUnit.MILLISECONDS.toNanos(config.getDeadlineMs()) : Long.MAX_VALUE;
+			this.latch = new CountDownLatch(requests.size());
+		}
+
+		public ImmutableMap<URI, File> call() throws IOException, InterruptedException {
+			LOGGER.info("Downloading " + requests.size() + " files");
+			for (final Map.Entry<URI, File> entry : requests.entrySet()) {
+				FileUtils.forceMkdir(entry.getValue().getParentFile());
+				submit(entry.getKey(), entry.getValue(), 0);
+			}
+			if (deadline == Long.MAX_VALUE) {
+				latch.await();
+			} else if (!latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				expired = true;
+				for (final Future<?> future : futures.values()) {
+					future.cancel(true);
+				}
+				LOGGER.warn("Deadline expired before completing " + latch.getCount() + " downloads");
+			}
+			final ImmutableMap.Builder<URI, File> builder = new ImmutableMap.Builder<URI, File>();
+			for (final Map.Entry<URI, File> entry : requests.entrySet()) {
+				if (!succeeded.contains(entry.getKey())) {
+					builder.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return builder.build();
+		}
+
+		private void submit(final URI uri, final File file, final int attempt) {
+			if (expired) {
+				return;
+			}
+			final HttpHost target = target(uri);
+			final CircuitBreaker breaker = breaker(target);
+			final long waitMs = breaker != null ? breaker.acquire() : 0l;
+			if (waitMs > 0l) {
+				// the circuit of the server is open: the wait counts as a new attempt, so the requests to a server
+				// that is down fail after a few waits instead of waiting for the server until the deadline
+				if (attempt + 1 >= config.getRetries()) {
+					latch.countDown();
+					LOGGER.error("Download failed after " + (attempt + 1) + " attempts, circuit of the server is open: " 
+							+ uri);
+					return;
+				}
+				schedule(uri, file, attempt + 1, waitMs);
+				return;
+			}
+			// the timeouts are incremented with the number of attempts
+			final double toIncPercent = config.toIncPercent >= 0.0d && config.toIncPercent <= 1.0d 
+					? config.toIncPercent : 0.0d;
+			final int eSoTimeoutMs = config.soToMs + (int)(config.soToMs * attempt * toIncPercent);
+			final int eConnTimeoutMs = config.connToMs + (int)(config.connToMs * attempt * toIncPercent);
+			final HttpGet request = new HttpGet(uri);
+			request.setConfig(RequestConfig.custom()
+					.setConnectTimeout(eConnTimeoutMs)
+					.setConnectionRequestTimeout(eConnTimeoutMs)
+					.setSocketTimeout(eSoTimeoutMs).build());
+			final TimedRequestProducer producer = new TimedRequestProducer(target, request);
+			final RouteLimiter limiter = routeLimiter;
+			final HttpRoute route = limiter != null ? limiter.acquire(target) : null;
+			// files are encrypted as they are received, unless the validator needs to read the plain text
+			final HttpAsyncResponseConsumer<File> consumer;
+			if (encryptionProvider != null && validator == null) {
+				consumer = new EncryptingFileConsumer(file, encryptionProvider);
+			} else {
+				consumer = new ZeroCopyConsumer<File>(file) {
+					@Override
+					protected File process(final HttpResponse response, final File file,
+							final ContentType contentType) throws Exception {
+						releaseResources();
+						if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+							FileUtils.deleteQuietly(file);
+							throw new ClientProtocolException("Download failed: " 
+									+ response.getStatusLine());
+						}
+						if (validator != null && !validator.isValid(file)) {
+							FileUtils.deleteQuietly(file);
+							cancelled.add(uri);
+							throw new IOException(file.getCanonicalPath() 
+									+ " not recognised as a supported file format");
+						}
+						if (encryptionProvider != null) {
+							try {
+								final File cipherFile = File.createTempFile(RandomStringUtils.random(8, true, true), ".tmp");
+								encryptionProvider.encrypt(new FileInputStream(file), new FileOutputStream(cipherFile));
+								FileUtils.deleteQuietly(file);
+								FileUtils.moveFile(cipherFile, file);
+								LOGGER.info("File encrypted: " + file.getCanonicalPath());
+							} catch (Exception e) {
+								FileUtils.deleteQuietly(file);
+								cancelled.add(uri);
+								LOGGER.warn("Failed to encrypt: " + file.getCanonicalPath(), e);
+								throw new IOException("File encryption failed");
+							}
+						}
+						LOGGER.info("Download succeed to file: " + file.getCanonicalPath());
+						return file;
+					}
+				};
+			}
+			try {
+				futures.put(uri, httpclient.execute(producer, consumer, new FutureCallback<File>() {
+					@Override
+					public void completed(final File result) {
+						request.releaseConnection();
+						if (route != null) {
+							limiter.succeeded(route, producer.getLatencyMs());
+						}
+						if (breaker != null) {
+							breaker.succeeded();
+						}
+						succeeded.add(uri);
+						latch.countDown();
+						if (task != null) {
+							task.apply(result);
+						}
+						LOGGER.info("Request succeed: " + request.getRequestLine() 
+								+ " => Response file length: " + result.length());
+					}
+					@Override
+					public void failed(final Exception ex) {
+						request.releaseConnection();
+						FileUtils.deleteQuietly(file);
+						if (cancelled.contains(uri)) {
+							// files rejected by the validator or the encryption are not errors of the server
+							if (breaker != null) {
+								breaker.succeeded();
+							}
+							latch.countDown();
+							LOGGER.error("Request failed: " + request.getRequestLine() + "=>" + ex);
+							return;
+						}
+						if (route != null) {
+							limiter.failed(route);
+						}
+						if (breaker != null) {
+							breaker.failed();
+						}
+						LOGGER.error("Request failed: " + request.getRequestLine() + "=>" + ex);
+						retry(uri, file, attempt);
+					}
+					@Override
+					public void cancelled() {
+						request.releaseConnection();
+						FileUtils.deleteQuietly(file);
+						if (breaker != null) {
+							breaker.released();
+						}
+						latch.countDown();
+						LOGGER.error("Request cancelled: " + request.getRequestLine());
+					}
+				}));
+			} catch (Exception e) {
+				// the client was closed
+				if (breaker != null) {
+					breaker.released();
+				}
+				latch.countDown();
+				LOGGER.error("Failed to submit request: " + request.getRequestLine(), e);
+			}
+		}
+
+		private void retry(final URI uri, final File file, final int attempt) {
+			if (attempt + 1 >= config.getRetries()) {
+				latch.countDown();
+				LOGGER.error("Download failed after " + (attempt + 1) + " attempts: " + uri);
+				return;
+			}
+			final long backoffMs = config.backoffMs(attempt);
+			LOGGER.info("Waiting " + backoffMs +  " ms before attempt " + (attempt + 2) + " to download: " + uri);
+			schedule(uri, file, attempt + 1, backoffMs);
+		}
+
+		private void schedule(final URI uri, final File file, final int attempt, final long delayMs) {
+			if (expired || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs) > deadline) {
+				latch.countDown();
+				LOGGER.error("No time left before the deadline to download: " + uri);
+				return;
+			}
+			try {
+				futures.put(uri, scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						submit(uri, file, attempt);
+					}
+				}, delayMs, TimeUnit.MILLISECONDS));
+			} catch (RejectedExecutionException e) {
+				// the service was closed
+				latch.countDown();
+			}
+		}
+
+	}
+
+	/**
+	 * Stops sending requests to a server after a number of consecutive failures. The circuit is kept open for 
+	 * some time, after which a single request is allowed to check the server (half-open). The circuit is closed 
+	 * again when the request succeeds, and it is opened again when the request fails. A request that ends without
+	 * a response (e.g. cancelled when the deadline expires) releases the check, so that another request can do it.
+	 */
+	static class CircuitBreaker {
+
+		private final int maxFailures;
+		private final long openMs;
+
+		private int failures = 0;
+		private long openUntil = 0l;
+		private boolean probing = false;
+
+		CircuitBreaker(final int maxFailures, final long openMs) {
+			this.maxFailures = maxFailures;
+			this.openMs = openMs;
+		}
+
+		/**
+		 * Checks whether a new request can be sent to the server.
+		 * @return zero when the request can be sent, otherwise the time in milliseconds that the request must 
+		 *         wait before checking the circuit again.
+		 */
+		public synchronized long acquire() {
+			if (failures < maxFailures) {
+				return 0l;
+			}
+			final long now = System.currentTimeMillis();
+			if (now < openUntil) {
+				return openUntil - now;
+			}
+			if (probing) {
+				return Math.max(1l, openMs / 10l);
+			}
+			probing = true;
+			return 0l;
+		}
+
+		public synchronized void succeeded() {
+			failures = 0;
+			probing = false;
+		}
+
+		/**
+		 * Ends a request without a result, allowing a new request to check the server when the circuit is 
+		 * half-open. The number of failures is not modified.
+		 */
+		public synchronized void released() {
+			probing = false;
+		}
+
+		public synchronized void failed() {
+			failures++;
+			probing = false;
+			if (failures >= maxFailures) {
+				if (failures == maxFailures) {
+					LOGGER.warn("Too many consecutive failures, circuit opened for " + openMs + " ms");
+				}
+				openUntil = System.currentTimeMillis() + openMs;
+			}
+		}
+
+	}
+
+	/**
+	 * Adapts the maximum number of connections of each route with an additive-increase/multiplicative-decrease
+	 * policy: the limit grows by one connection after a full window of successful downloads (as many downloads
+	 * as the current limit), shrinks by one connection when the average latency of the route grows well above 
+	 * the best latency observed in the route, and is halved when a download fails.
+	 */
+	private static class RouteLimiter {
+
+		public static final double LATENCY_ALPHA = 0.2d;
+		public static final double LATENCY_TOLERANCE = 2.0d;
+
+		private final PoolingNHttpClientConnectionManager connectionManager;
+		private final int initialLimit;
+		private final int maxLimit;
+		private final ConcurrentMap<HttpRoute, RouteState> routes = new ConcurrentHashMap<HttpRoute, RouteState>();
+
+		public RouteLimiter(final PoolingNHttpClientConnectionManager connectionManager, final int initialLimit, 
+				final int maxLimit) {
+			this.connectionManager = connectionManager;
+			this.initialLimit = initialLimit;
+			this.maxLimit = maxLimit;
+		}
+
+		/**
+		 * Gets the route to the specified host, which must coincide with the route that the client uses to
+		 * lease connections from the pool (no proxy, default port resolved from the scheme).
+		 */
+		public HttpRoute acquire(final HttpHost target) {
+			final HttpRoute route = new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+			if (!routes.containsKey(route) && routes.putIfAbsent(route, new RouteState(initialLimit)) == null) {
+				connectionManager.setMaxPerRoute(route, initialLimit);
+			}
+			return route;
+		}
+
+		public void succeeded(final HttpRoute route, final long latencyMs) {
+			final RouteState state = routes.get(route);
+			if (state != null) {
+				synchronized (state) {
+					state.latency = state.latency < 0.0d ? latencyMs 
+							: state.latency + LATENCY_ALPHA * (latencyMs - state.latency);
+					state.minLatency = Math.min(state.minLatency, latencyMs);
+					if (state.latency > LATENCY_TOLERANCE * Math.max(state.minLatency, 1l)) {
+						if (++state.slow >= state.limit) {
+							update(route, state, state.limit - 1);
+						}
+					} else if (++state.successes >= state.limit) {
+						update(route, state, state.limit + 1);
+					}
+				}
+			}
+		}
+
+		public void failed(final HttpRoute route) {
+			final RouteState state = routes.get(route);
+			if (state != null) {
+				synchronized (state) {
+					update(route, state, state.limit / 2);
+				}
+			}
+		}
+
+		private void update(final HttpRoute route, final RouteState state, final int limit) {
+			final int limit2 = Math.max(1, Math.min(maxLimit, limit));
+			state.successes = 0;
+			state.slow = 0;
+			if (limit2 != state.limit) {
+				state.limit = limit2;
+				connectionManager.setMaxPerRoute(route, limit2);
+				LOGGER.debug("Maximum number of connections changed: [route=" + route + ", limit=" + limit2 
+						+ ", latency_ms=" + (long)state.latency + "]");
+			}
+		}
+
+	}
+
+	/**
+	 * Measures the latency of a request from the moment that the request is sent, which happens after the 
+	 * client leases a connection from the pool. The time waiting for a connection depends on the limit of the 
+	 * route, so it is not measured.
+	 */
+	private static class TimedRequestProducer extends BasicAsyncRequestProducer {
+
+		private volatile long sentTime;
+
+		public TimedRequestProducer(final HttpHost target, final HttpRequest request) {
+			super(target, request);
+			this.sentTime = System.nanoTime();
+		}
+
+		@Override
+		public HttpRequest generateRequest() {
+			sentTime = System.nanoTime();
+			return super.generateRequest();
+		}
+
+		public long getLatencyMs() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentTime);
+		}
+
+	}
+
+	private static class RouteState {
+		private int limit;
+		private int successes = 0;
+		private int slow = 0;
+		private double latency = -1.0d;
+		private long minLatency = Long.MAX_VALUE;
+		public RouteState(final int limit) {
+			this.limit = limit;
+		}
+	}
+
 	public static class DefaultDownloadConfiguration extends DownloadConfiguration {
 		public static final int CONNECTION_TIMEOUT_MS = 3000; // 3 seconds
 		public static final int READ_TIMEOUT_MS = 3000;       // 3 seconds
@@ -302,6 +762,9 @@ public class DownloadService {
 		private final int soToMs;
 		private final int retries;
 		private final double toIncPercent;		
+		private final long backoffMs;
+		private final long maxBackoffMs;
+		private final long deadlineMs;
 
 		/**
 		 * Creates a download configuration with the specified parameters.
@@ -313,12 +776,46 @@ public class DownloadService {
 		 */
 		public DownloadConfiguration(final int connToMs, final int soToMs, final int retries, 
 				final double toIncPercent) {
+			this(connToMs, soToMs, retries, toIncPercent, (long)(soToMs * 0.1d), soToMs, 0l);
+		}
+
+		/**
+		 * Creates a download configuration with the specified parameters.
+		 * @param connToMs connection time-out in milliseconds.
+		 * @param soToMs read time-out in milliseconds.
+		 * @param retries the number of retries in case of an error.
+		 * @param toIncPercent the starting timeout period is incremented this percentage for 
+		 *        consecutive errors.
+		 * @param backoffMs the time in milliseconds that a request waits before the first retry, which is doubled
+		 *        in the consecutive retries.
+		 * @param maxBackoffMs the maximum time in milliseconds that a request waits between retries.
+		 * @param deadlineMs the maximum time in milliseconds that the complete download can take, or zero when 
+		 *        the download has no deadline.
+		 */
+		public DownloadConfiguration(final int connToMs, final int soToMs, final int retries, 
+				final double toIncPercent, final long backoffMs, final long maxBackoffMs, final long deadlineMs) {
 			this.connToMs = connToMs;
 			this.soToMs = soToMs;
 			this.retries = retries;
 			this.toIncPercent = toIncPercent;
+			this.backoffMs = Math.max(1l, backoffMs);
+			this.maxBackoffMs = Math.max(this.backoffMs, maxBackoffMs);
+			this.deadlineMs = Math.max(0l, deadlineMs);
 		}	
 
+		/**
+		 * Computes the time that a request waits after the specified attempt: an exponential backoff that is 
+		 * limited to the maximum backoff, half of which is randomized to spread the retries of the requests 
+		 * that failed at the same time.
+		 * @param attempt the attempt that failed (starting from zero).
+		 * @return the time in milliseconds that the request waits before the next attempt.
+		 */
+		public long backoffMs(final int attempt) {
+			final long backoff = Math.min(maxBackoffMs, backoffMs << Math.min(attempt, 30));
+			final long half = backoff / 2l;
+			return half + (half > 0l ? ThreadLocalRandom.current().nextLong(half + 1l) : 0l);
+		}
+
 		public int getConnToMs() {
 			return connToMs;
 		}
@@ -334,6 +831,18 @@ public class DownloadService {
 		public double getToIncPercent() {
 			return toIncPercent;
 		}
+
+		public long getBackoffMs() {
+			return backoffMs;
+		}
+
+		public long getMaxBackoffMs() {
+			return maxBackoffMs;
+		}
+
+		public long getDeadlineMs() {
+			return deadlineMs;
+		}
 	}
 
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+
+package org.grycap.gpf4med;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.grycap.gpf4med.security.FileEncryptionProvider;
+
+/**
+ * Writes the body of a response to a file, encrypting the content as it is received from the server. The 
+ * plain text is never written to the disk: the content is piped through the cipher into a temporary file 
+ * that is created in the same directory as the destination file, and which is moved to the destination 
+ * when the response is complete. The size of the buffer is adjusted to the length of the content.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public class EncryptingFileConsumer extends AbstractAsyncResponseConsumer<File> {
+
+	public static final int MIN_BUFFER_SIZE = 4 * 1024;
+	public static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private final FileEncryptionProvider encryptionProvider;
+
+	private HttpResponse response = null;
+	private ByteBuffer buffer = null;
+	private File tmpFile = null;
+	private OutputStream outputStream = null;
+
+	public EncryptingFileConsumer(final File file, final FileEncryptionProvider encryptionProvider) {
+		checkArgument(file != null, "Uninitialized file");
+		checkArgument(encryptionProvider != null, "Uninitialized encryption provider");
+		this.file = file;
+		this.encryptionProvider = encryptionProvider;
+	}
+
+	@Override
+	protected void onResponseReceived(final HttpResponse response) {
+		this.response = response;
+	}
+
+	@Override
+	protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) throws IOException {
+		final long length = entity.getContentLength();
+		buffer = ByteBuffer.allocate(length > 0l ? (int)Math.min(MAX_BUFFER_SIZE, Math.max(MIN_BUFFER_SIZE, length)) 
+				: MAX_BUFFER_SIZE);
+		// the content of failed responses is discarded
+		if (succeeded()) {
+			open();
+		}
+	}
+
+	@Override
+	protected void onContentReceived(final ContentDecoder decoder, final IOControl ioctrl) throws IOException {
+		int count;
+		while ((count = decoder.read(buffer)) > 0) {
+			if (outputStream != null) {
+				outputStream.write(buffer.array(), buffer.arrayOffset(), count);
+			}
+			buffer.clear();
+		}
+	}
+
+	@Override
+	protected File buildResult(final HttpContext context) throws Exception {
+		if (!succeeded()) {
+			throw new ClientProtocolException("Download failed: " + response.getStatusLine());
+		}
+		if (outputStream == null) {
+			open();
+		}
+		// closing the stream writes the last block of the cipher
+		outputStream.close();
+		outputStream = null;
+		try {
+			Files.move(tmpFile.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpFile.toPath(), file.toPath(), REPLACE_EXISTING);
+		}
+		tmpFile = null;
+		return file;
+	}
+
+	@Override
+	protected void releaseResources() {
+		IOUtils.closeQuietly(outputStream);
+		outputStream = null;
+		FileUtils.deleteQuietly(tmpFile);
+		tmpFile = null;
+		buffer = null;
+	}
+
+	private boolean succeeded() {
+		return response != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+	}
+
+	private void open() throws IOException {
+		FileUtils.forceMkdir(file.getParentFile());
+		tmpFile = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+		final FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			outputStream = encryptionProvider.newEncryptingStream(fos);
+		} catch (Exception e) {
+			IOUtils.closeQuietly(fos);
+			throw new IOException("Failed to create the cipher", e);
+		}
+	}
+
+}
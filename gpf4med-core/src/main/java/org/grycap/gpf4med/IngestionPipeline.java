@@ -0,0 +1,358 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.io.IOUtils;
+import org.grycap.gpf4med.conf.ConfigurationManager;
+import org.grycap.gpf4med.exec.BatchPipelineStage;
+import org.grycap.gpf4med.exec.DocumentSink;
+import org.grycap.gpf4med.exec.PipelineStage;
+import org.grycap.gpf4med.model.document.Document;
+import org.grycap.gpf4med.security.FileEncryptionProvider;
+import org.grycap.gpf4med.util.DocumentUtils;
+import org.grycap.gpf4med.xml.XmlBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SimpleTimeLimiter;
+
+/**
+ * Loads documents into the graph with a pipeline of bounded stages: fetch, decrypt, parse, validate and 
+ * graph-write. The capacity of the queues and the number of workers of each stage can be set in the 
+ * configuration (e.g. <tt>pipeline.parse.workers</tt>). The graph-write stage is split in as many partitions 
+ * as writers, each one with its own queue and thread, and the documents are routed by patient. Each partition 
+ * groups the documents in batches that are loaded into the graph in a single transaction.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public enum IngestionPipeline implements Closeable2 {
+
+	INSTANCE;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(IngestionPipeline.class);
+
+	public static final int DEFAULT_CAPACITY = 256;
+	public static final int DEFAULT_FETCH_WORKERS = DownloadService.DEFAULT_MAX_TOTAL_CONNECTIONS;
+	public static final int DEFAULT_GRAPH_WRITE_BATCH_SIZE = 100;
+	public static final int DEFAULT_GRAPH_WRITE_BATCH_WINDOW_MS = 1000;
+	public static final int TIMEOUT_SECONDS = 60;
+	public static final int SHUTDOWN_TIMEOUT_SECONDS = 5;
+	public static final long COMPLETION_POLL_MILLIS = 100l;
+
+	private final ExecutorService executor;
+	private final SimpleTimeLimiter limiter;
+
+	private DocumentSink sink = null;
+	private ImmutableList<PipelineStage<?, ?>> stages = null;
+	private PipelineStage<URL, File> head = null;
+	private PipelineStage<Document, Document> validate = null;
+
+	private IngestionPipeline() {
+		executor = Executors.newCachedThreadPool();
+		limiter = new SimpleTimeLimiter(executor);
+	}
+
+	/**
+	 * Submits a new document to the pipeline, waiting if necessary for space to become available.
+	 * @param url the URL where the document is located.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void submit(final URL url) throws InterruptedException {
+		checkArgument(url != null, "Uninitialized URL");
+		head().put(url);
+	}
+
+	/**
+	 * Submits a document that is already parsed to the pipeline, skipping the fetch, decrypt and parse stages. 
+	 * Waits if necessary for space to become available.
+	 * @param document the document.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void submit(final Document document) throws InterruptedException {
+		checkArgument(document != null, "Uninitialized document");
+		final PipelineStage<Document, Document> validate;
+		synchronized (this) {
+			head();
+			validate = this.validate;
+		}
+		validate.put(document);
+	}
+
+	/**
+	 * Waits until the specified number of documents have left the pipeline or the timeout expires.
+	 * @param count the number of documents.
+	 * @param timeout the maximum time to wait.
+	 * @param unit the time unit of the timeout argument.
+	 * @return {@code true} if the documents left the pipeline and {@code false} if the timeout expired.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean awaitCompletion(final int count, final long timeout, final TimeUnit unit) throws InterruptedException {
+		checkArgument(unit != null, "Uninitialized time unit");
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (Statistics.INSTANCE.getTotalCompleted() < count) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			Thread.sleep(COMPLETION_POLL_MILLIS);
+		}
+		return true;
+	}
+
+	public void setSink(final DocumentSink sink) {
+		checkArgument(sink != null, "Uninitialized sink");
+		this.sink = sink;
+	}
+
+	/**
+	 * Discards the documents that are waiting in the pipeline and restarts the download and parse statistics.
+	 */
+	public void restart() {
+		closeStages();
+		Statistics.INSTANCE.initSuccessDownloads();
+		Statistics.INSTANCE.initFailedDownloads();
+		Statistics.INSTANCE.initSuccessParses();
+		Statistics.INSTANCE.initFailedParses();
+	}
+
+	@Override
+	public void setup(final @Nullable Collection<URL> urls) {
+		// nothing to do
+	}
+
+	@Override
+	public void preload() {
+		head();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeStages();
+		DocumentFetcher.INSTANCE.close();
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException ie) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		} finally {
+			LOGGER.trace("Ingestion pipeline terminated");
+		}
+	}
+
+	private synchronized void closeStages() {
+		if (stages != null) {
+			for (final PipelineStage<?, ?> stage : stages) {
+				try {
+					stage.close();
+				} catch (Exception e) {
+					LOGGER.warn("Failed to close stage: " + stage.getName(), e);
+				}
+			}
+		}
+		stages = null;
+		head = null;
+		validate = null;
+	}
+
+	private synchronized PipelineStage<URL, File> head() {
+		if (head == null) {
+			final int capacity = ConfigurationManager.INSTANCE.getIntProperty("pipeline.capacity", DEFAULT_CAPACITY);
+			final int cores = Runtime.getRuntime().availableProcessors();
+			// fetch stage
+			final PipelineStage<URL, File> fetchStage = new PipelineStage<URL, File>("fetch", capacity, 
+					workers("fetch", DEFAULT_FETCH_WORKERS)) {
+				@Override
+				protected File process(final URL url) throws Exception {
+					final File file = DocumentFetcher.INSTANCE.fetch(url);
+					Statistics.INSTANCE.incSuccessDownloads(1);
+					return file;
+				}
+				@Override
+				protected void failed(final URL url, final Exception cause) {
+					Statistics.INSTANCE.incFailedDownloads(1);
+					LOGGER.warn("Failed to fetch document: " + url, cause);
+				}
+			};
+			// decrypt stage
+			final PipelineStage<File, ClearFile> decryptStage = new PipelineStage<File, ClearFile>("decrypt", capacity, 
+					workers("decrypt", cores)) {
+				@Override
+				protected ClearFile process(final File file) throws Exception {
+					return decrypt(file);
+				}
+				@Override
+				protected void failed(final File file, final Exception cause) {
+					Statistics.INSTANCE.incFailedParses(1);
+					LOGGER.warn("Failed to decrypt file: " + file, cause);
+				}
+			};
+			// parse stage
+			final PipelineStage<ClearFile, Document> parseStage = new PipelineStage<ClearFile, Document>("parse", capacity, 
+					workers("parse", cores)) {
+				@Override
+				protected Document process(final ClearFile clearFile) throws Exception {
+					final DocumentLoaderIf proxy = limiter.newProxy(DocumentLoader.create(clearFile.file, clearFile.data), 
+							DocumentLoaderIf.class, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+					return proxy.load();
+				}
+				@Override
+				protected void failed(final ClearFile clearFile, final Exception cause) {
+					Statistics.INSTANCE.incFailedParses(1);
+					LOGGER.warn("Failed to parse file: " + clearFile.file, cause);
+				}
+			};
+			// graph-write stages: one partition per writer, keyed by patient
+			final int batchSize = Math.max(1, ConfigurationManager.INSTANCE.getIntProperty("pipeline.graph-write.batch-size", 
+					DEFAULT_GRAPH_WRITE_BATCH_SIZE));
+			final int batchWindow = Math.max(0, ConfigurationManager.INSTANCE.getIntProperty(
+					"pipeline.graph-write.batch-window-ms", DEFAULT_GRAPH_WRITE_BATCH_WINDOW_MS));
+			final int partitions = workers("graph-write", cores);
+			final ImmutableList.Builder<PipelineStage<Document, Void>> builder = new ImmutableList.Builder<>();
+			for (int i = 0; i < partitions; i++) {
+				final PipelineStage<Document, Void> graphWriteStage = newGraphWriteStage("graph-write-" + i, capacity, 
+						batchSize, batchWindow);
+				graphWriteStage.start(null);
+				builder.add(graphWriteStage);
+			}
+			final ImmutableList<PipelineStage<Document, Void>> graphWriteStages = builder.build();
+			// validate stage
+			final PipelineStage<Document, Document> validateStage = new PipelineStage<Document, Document>("validate", 
+					capacity, workers("validate", 1)) {
+				@Override
+				protected Document process(final Document document) throws Exception {
+					checkState(document.getCONTAINER() != null && document.getCONTAINER().getCONCEPTNAME() != null
+							&& document.getCONTAINER().getCONCEPTNAME().getCODEVALUE() != null, 
+							"No report found");
+					Statistics.INSTANCE.incSuccessParses(1);
+					return document;
+				}
+				@Override
+				protected void forward(final @Nullable Document document) throws InterruptedException {
+					if (document != null) {
+						graphWriteStages.get(partition(document, graphWriteStages.size())).put(document);
+					}
+				}
+				@Override
+				protected void failed(final Document document, final Exception cause) {
+					Statistics.INSTANCE.incFailedParses(1);
+					LOGGER.warn("Invalid document: " + document.getIDReport(), cause);
+				}
+			};
+			validateStage.start(null);
+			parseStage.start(validateStage);
+			decryptStage.start(parseStage);
+			fetchStage.start(decryptStage);
+			stages = ImmutableList.<PipelineStage<?, ?>>builder().add(fetchStage, decryptStage, parseStage, validateStage)
+					.addAll(graphWriteStages).build();
+			head = fetchStage;
+			validate = validateStage;
+		}
+		return head;
+	}
+
+	private PipelineStage<Document, Void> newGraphWriteStage(final String name, final int capacity, final int batchSize, 
+			final int batchWindow) {
+		return new BatchPipelineStage<Document>(name, capacity, 1, batchSize, batchWindow) {
+			@Override
+			protected void processBatch(final List<Document> batch) throws Exception {
+				checkState(sink != null, "Document sink is not ready");
+				final ImmutableList<Document> failed = sink.write(batch);
+				Statistics.INSTANCE.incSuccessGraphLoads(batch.size() - failed.size());
+				Statistics.INSTANCE.incFailedGraphLoads(failed.size());
+			}
+			@Override
+			protected void failed(final Document document, final Exception cause) {
+				Statistics.INSTANCE.incFailedGraphLoads(1);
+				LOGGER.warn("Failed to load document into the graph: " + document.getIDReport(), cause);
+			}
+		};
+	}
+
+	/**
+	 * Documents of the same patient are always written by the same partition, so that concurrent writers 
+	 * don't compete for the patient node. Documents without patient are partitioned by report.
+	 */
+	private static int partition(final Document document, final int partitions) {
+		final String patientId = DocumentUtils.getPatientId(document);
+		final String key = patientId != null ? patientId : String.valueOf(document.getIDReport());
+		return (key.hashCode() & Integer.MAX_VALUE) % partitions;
+	}
+
+	private static int workers(final String stage, final int defaultValue) {
+		return Math.max(1, ConfigurationManager.INSTANCE.getIntProperty("pipeline." + stage + ".workers", defaultValue));
+	}
+
+	/**
+	 * Decrypts the file in memory, so the plain text is never written to disk. Files that are not encrypted are 
+	 * passed to the parse stage, which reads them from disk.
+	 */
+	private static ClearFile decrypt(final File file) throws IOException {
+		if (ConfigurationManager.INSTANCE.getEncryptLocalStorage() && FileEncryptionProvider.isEncrypted(file)) {
+			final FileEncryptionProvider encryptionProvider = ConfigurationManager.INSTANCE.getFileEncryptionProvider();
+			try (final InputStream is = encryptionProvider.newDecryptingStream(new BufferedInputStream(
+					new FileInputStream(file), XmlBinder.BUFFER_SIZE))) {
+				return new ClearFile(file, IOUtils.toByteArray(is));
+			} catch (IOException ioe) {
+				throw ioe;
+			} catch (Exception e) {
+				throw new IOException("Failed to decrypt file", e);
+			}
+		}
+		return new ClearFile(file, null);
+	}
+
+	/* Inner classes */
+
+	private static class ClearFile {
+		private final File file;
+		private final byte[] data;
+		public ClearFile(final File file, final @Nullable byte[] data) {
+			this.file = file;
+			this.data = data;
+		}
+		@Override
+		public String toString() {
+			return file.getPath();
+		}
+	}
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+
+package org.grycap.gpf4med;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+
+/**
+ * Persistent cache of files that are identified by a key (e.g. the TRENCADIS identifier of a report). A
+ * manifest stored in the directory of the cache keeps the location and the SHA-256 hash of the content of
+ * each file, so the cache survives restarts and only new or changed files need to be written. Files whose
+ * content does not match the hash recorded in the manifest are discarded when read.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public class LocalCache {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(LocalCache.class);
+
+	public static final String MANIFEST_FILENAME = ".manifest";
+
+	private final File dir;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private LocalCache(final File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Opens the cache stored in the specified directory, creating the directory when it doesn't exist.
+	 * @param dir the directory of the cache.
+	 * @return the cache.
+	 * @throws IOException if the directory cannot be created.
+	 */
+	public static LocalCache open(final File dir) throws IOException {
+		checkArgument(dir != null, "Uninitialized directory");
+		FileUtils.forceMkdir(dir);
+		final LocalCache cache = new LocalCache(dir);
+		final File manifest = new File(dir, MANIFEST_FILENAME);
+		if (manifest.isFile()) {
+			final Properties properties = new Properties();
+			try (final InputStream is = Files.newInputStream(manifest.toPath())) {
+				properties.load(is);
+			} catch (IOException e) {
+				LOGGER.warn("Ignoring invalid cache manifest: " + manifest, e);
+				properties.clear();
+			}
+			for (final String id : properties.stringPropertyNames()) {
+				final Entry entry = Entry.parse(properties.getProperty(id));
+				if (entry != null && new File(dir, entry.path).isFile()) {
+					cache.entries.put(id, entry);
+				}
+			}
+		}
+		LOGGER.trace(cache.entries.size() + " files found in cache: " + dir);
+		return cache;
+	}
+
+	public static boolean isManifest(final File file) {
+		return file != null && MANIFEST_FILENAME.equals(file.getName());
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public boolean contains(final String id) {
+		return entries.containsKey(id);
+	}
+
+	/**
+	 * Gets the files that are tracked by the cache.
+	 */
+	public ImmutableSet<File> files() {
+		final ImmutableSet.Builder<File> builder = new ImmutableSet.Builder<File>();
+		for (final Entry entry : entries.values()) {
+			builder.add(new File(dir, entry.path).getAbsoluteFile());
+		}
+		return builder.build();
+	}
+
+	public ImmutableSet<String> ids() {
+		return ImmutableSet.copyOf(entries.keySet());
+	}
+
+	/**
+	 * Gets the hash of the content of a file, as recorded in the manifest.
+	 * @param id the identifier of the file.
+	 * @return the hash of the file, or {@code null} when the file is not found in the cache.
+	 */
+	public @Nullable String getHash(final String id) {
+		final Entry entry = entries.get(id);
+		return entry != null ? entry.hash : null;
+	}
+
+	/**
+	 * Reads the content of a file from the cache, verifying that it has not changed since it was written.
+	 * @param id the identifier of the file.
+	 * @return the content of the file, or {@code null} when the file is not found in the cache or its 
+	 *         content is not valid, in which case the file is removed from the cache.
+	 */
+	public @Nullable byte[] read(final String id) {
+		final Entry entry = entries.get(id);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			final byte[] content = Files.readAllBytes(new File(dir, entry.path).toPath());
+			if (entry.hash.equals(hash(content))) {
+				return content;
+			}
+			LOGGER.warn("Discarding modified file from cache: " + id);
+		} catch (IOException e) {
+			LOGGER.warn("Discarding unreadable file from cache: " + id, e);
+		}
+		remove(id);
+		return null;
+	}
+
+	/**
+	 * Writes a file to the cache. The file is not written when the cache already contains the same content.
+	 * @param id the identifier of the file.
+	 * @param file the location of the file, which must be inside the directory of the cache.
+	 * @param content the content of the file.
+	 * @return {@code true} when the file was written, or {@code false} when the content was not changed.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public boolean put(final String id, final File file, final byte[] content) throws IOException {
+		checkArgument(StringUtils.isNotBlank(id), "Uninitialized or invalid identifier");
+		checkArgument(content != null, "Uninitialized content");
+		final String path = relativePath(file);
+		final Entry entry = new Entry(hash(content), path);
+		final Entry current = entries.get(id);
+		if (entry.equals(current) && file.isFile()) {
+			return false;
+		}
+		FileUtils.forceMkdir(file.getParentFile());
+		final Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+		try {
+			Files.write(tmp, content);
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		entries.put(id, entry);
+		if (current != null && !current.path.equals(path)) {
+			FileUtils.deleteQuietly(new File(dir, current.path));
+		}
+		return true;
+	}
+
+	public void remove(final String id) {
+		final Entry entry = entries.remove(id);
+		if (entry != null) {
+			FileUtils.deleteQuietly(new File(dir, entry.path));
+		}
+	}
+
+	/**
+	 * Removes from the cache the files that are not included in the specified collection.
+	 */
+	public void retainAll(final Collection<String> ids) {
+		checkArgument(ids != null, "Uninitialized identifiers");
+		for (final String id : ids()) {
+			if (!ids.contains(id)) {
+				remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Writes the manifest of the cache. The previous manifest is replaced atomically.
+	 * @throws IOException if the manifest cannot be written.
+	 */
+	public synchronized void save() throws IOException {
+		final Properties properties = new Properties();
+		for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+			properties.setProperty(entry.getKey(), entry.getValue().toString());
+		}
+		final Path tmp = Files.createTempFile(dir.toPath(), MANIFEST_FILENAME, ".tmp");
+		try {
+			try (final OutputStream os = Files.newOutputStream(tmp)) {
+				properties.store(os, "Gpf4Med local cache manifest");
+			}
+			Files.move(tmp, new File(dir, MANIFEST_FILENAME).toPath(), StandardCopyOption.REPLACE_EXISTING, 
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private String relativePath(final File file) {
+		checkArgument(file != null, "Uninitialized file");
+		final Path path = dir.toPath().toAbsolutePath().normalize().relativize(file.toPath().toAbsolutePath().normalize());
+		checkArgument(!path.startsWith(".."), "File is outside the cache: " + file);
+		return path.toString().replace(File.separatorChar, '/');
+	}
+
+	private static String hash(final byte[] content) {
+		return Hashing.sha256().hashBytes(content).toString();
+	}
+
+	private static class Entry {
+
+		private final String hash;
+		private final String path;
+
+		public Entry(final String hash, final String path) {
+			this.hash = hash;
+			this.path = path;
+		}
+
+		public static @Nullable Entry parse(final String value) {
+			final String[] fields = StringUtils.split(value, " ", 2);
+			return fields != null && fields.length == 2 ? new Entry(fields[0], fields[1]) : null;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Entry)) {
+				return false;
+			}
+			final Entry other = (Entry)obj;
+			return hash.equals(other.hash) && path.equals(other.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash.hashCode() * 31 + path.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return hash + " " + path;
+		}
+
+	}
+
+}
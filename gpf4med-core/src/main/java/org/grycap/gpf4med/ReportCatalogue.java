@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+
+package org.grycap.gpf4med;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * Immutable catalogue of the available reports, indexed by TRENCADIS identifier, with secondary indexes 
+ * by ontology, modality (the concept name of the report's container) and start date. The indexes are built 
+ * once, when the catalogue is created, so that listing the reports doesn't require scanning the catalogue.
+ * The catalogue only contains the summaries of the reports, which are loaded on demand from the 
+ * {@link DocumentManager}.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public final class ReportCatalogue {
+
+	private final ImmutableMap<String, ReportSummary> reports;
+	private final ImmutableListMultimap<String, ReportSummary> byOntology;
+	private final ImmutableListMultimap<String, ReportSummary> byModality;
+	private final ImmutableSortedMap<Long, ImmutableList<ReportSummary>> byDate;
+
+	private ReportCatalogue(final ImmutableMap<String, ReportSummary> reports) {
+		this.reports = reports;
+		final ImmutableListMultimap.Builder<String, ReportSummary> byOntology = new ImmutableListMultimap.Builder<String, ReportSummary>();
+		final ImmutableListMultimap.Builder<String, ReportSummary> byModality = new ImmutableListMultimap.Builder<String, ReportSummary>();
+		final TreeMap<Long, ImmutableList.Builder<ReportSummary>> byDate = new TreeMap<Long, ImmutableList.Builder<ReportSummary>>();
+		for (final ReportSummary report : reports.values()) {
+			if (report.getIdOntology() != null) {
+				byOntology.put(report.getIdOntology(), report);
+			}
+			if (report.getModality() != null) {
+				byModality.put(report.getModality(), report);
+			}
+			if (report.getStartTime() != ReportSummary.NO_DATE) {
+				ImmutableList.Builder<ReportSummary> builder = byDate.get(report.getStartTime());
+				if (builder == null) {
+					builder = new ImmutableList.Builder<ReportSummary>();
+					byDate.put(report.getStartTime(), builder);
+				}
+				builder.add(report);
+			}
+		}
+		this.byOntology = byOntology.build();
+		this.byModality = byModality.build();
+		final ImmutableSortedMap.Builder<Long, ImmutableList<ReportSummary>> byDate2 = ImmutableSortedMap.naturalOrder();
+		for (final Map.Entry<Long, ImmutableList.Builder<ReportSummary>> entry : byDate.entrySet()) {
+			byDate2.put(entry.getKey(), entry.getValue().build());
+		}
+		this.byDate = byDate2.build();
+	}
+
+	public static ReportCatalogue of(final ImmutableMap<String, ReportSummary> reports) {
+		checkArgument(reports != null, "Uninitialized reports");
+		return new ReportCatalogue(reports);
+	}
+
+	public int size() {
+		return reports.size();
+	}
+
+	public boolean contains(final String id) {
+		return id != null && reports.containsKey(id);
+	}
+
+	public @Nullable ReportSummary get(final String id) {
+		return id != null ? reports.get(id) : null;
+	}
+
+	public ImmutableCollection<ReportSummary> list() {
+		return reports.values();
+	}
+
+	public ImmutableList<ReportSummary> listByOntology(final String idOntology) {
+		return idOntology != null ? byOntology.get(idOntology.trim()) : ImmutableList.<ReportSummary>of();
+	}
+
+	/**
+	 * Lists the reports of a modality.
+	 * @param modality the identifier of the concept name of the report's container (e.g. RID10357@RADLEX).
+	 * @return the reports of the specified modality.
+	 */
+	public ImmutableList<ReportSummary> listByModality(final String modality) {
+		return modality != null ? byModality.get(modality) : ImmutableList.<ReportSummary>of();
+	}
+
+	/**
+	 * Lists the reports that started in the specified interval. Reports without a valid start date are not 
+	 * included.
+	 * @param from (optional) start of the interval (inclusive), or {@code null} for an open interval.
+	 * @param to (optional) end of the interval (exclusive), or {@code null} for an open interval.
+	 * @return the reports that started in the specified interval, sorted by start date.
+	 */
+	public ImmutableList<ReportSummary> listByDate(final @Nullable Date from, final @Nullable Date to) {
+		checkArgument(from == null || to == null || !from.after(to), "Invalid interval");
+		ImmutableSortedMap<Long, ImmutableList<ReportSummary>> range = byDate;
+		if (from != null) {
+			range = range.tailMap(from.getTime(), true);
+		}
+		if (to != null) {
+			range = range.headMap(to.getTime(), false);
+		}
+		final ImmutableList.Builder<ReportSummary> builder = new ImmutableList.Builder<ReportSummary>();
+		for (final ImmutableList<ReportSummary> reports : range.values()) {
+			builder.addAll(reports);
+		}
+		return builder.build();
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+
+package org.grycap.gpf4med;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang.StringUtils;
+import org.grycap.gpf4med.model.document.Document;
+import org.grycap.gpf4med.model.util.Id;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Compact projection of a report that contains the fields needed to list and filter the reports, without 
+ * the content of the report. Values that are shared by many reports (ontology, modality) are interned, and 
+ * the start date is kept as a number, so the heap needed to list the reports doesn't depend on their size.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public final class ReportSummary {
+
+	public static final long NO_DATE = Long.MIN_VALUE;
+
+	private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormat.forPattern("dd/MM/yyyy HH:mm:ss");
+	private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+	private final String id;
+	private final String idReport;
+	private final String idOntology;
+	private final String modality;
+	private final String dateStart;
+	private final String dateEnd;
+	private final long startTime;
+
+	private ReportSummary(final String id, final String idReport, final String idOntology, final String modality, 
+			final String dateStart, final String dateEnd) {
+		this.id = id;
+		this.idReport = idReport;
+		this.idOntology = intern(idOntology);
+		this.modality = intern(modality);
+		this.dateStart = dateStart;
+		this.dateEnd = dateEnd;
+		this.startTime = parseDate(dateStart);
+	}
+
+	public static ReportSummary of(final Document document) {
+		checkArgument(document != null, "Uninitialized report");
+		final String modality = document.getCONTAINER() != null && document.getCONTAINER().getCONCEPTNAME() != null 
+				&& document.getCONTAINER().getCONCEPTNAME().getCODEVALUE() != null
+				&& document.getCONTAINER().getCONCEPTNAME().getCODESCHEMA() != null
+				? Id.getId(document.getCONTAINER().getCONCEPTNAME()) : null;
+		return new ReportSummary(document.getIDTRENCADISReport(), document.getIDReport(), 
+				StringUtils.trimToNull(document.getIDOntology()), modality, document.getDateTimeStart(), 
+				document.getDateTimeEnd());
+	}
+
+	/**
+	 * Gets the TRENCADIS identifier of the report.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	public String getIdReport() {
+		return idReport;
+	}
+
+	public @Nullable String getIdOntology() {
+		return idOntology;
+	}
+
+	/**
+	 * Gets the identifier of the concept name of the report's container (e.g. RID10357@RADLEX).
+	 */
+	public @Nullable String getModality() {
+		return modality;
+	}
+
+	public String getDateStart() {
+		return dateStart;
+	}
+
+	public String getDateEnd() {
+		return dateEnd;
+	}
+
+	/**
+	 * Gets the start date of the report in milliseconds since the epoch, or {@link #NO_DATE} when the report 
+	 * doesn't have a valid start date.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Parses the dates of the reports, which are written as <tt>dd/MM/yyyy HH:mm:ss</tt>, optionally using 
+	 * the letter 'T' to separate the date from the time.
+	 * @param date the date to be parsed.
+	 * @return the number of milliseconds since the epoch, or {@link #NO_DATE} when the date is not valid.
+	 */
+	public static long parseDate(final @Nullable String date) {
+		if (StringUtils.isBlank(date)) {
+			return NO_DATE;
+		}
+		try {
+			return DATE_FORMATTER.parseMillis(date.trim().replace('T', ' '));
+		} catch (IllegalArgumentException e) {
+			return NO_DATE;
+		}
+	}
+
+	private static @Nullable String intern(final @Nullable String value) {
+		return value != null ? INTERNER.intern(value) : null;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof ReportSummary)) {
+			return false;
+		}
+		final ReportSummary other = (ReportSummary)obj;
+		return Objects.equals(id, other.id) && Objects.equals(idReport, other.idReport)
+				&& Objects.equals(idOntology, other.idOntology) && Objects.equals(modality, other.modality)
+				&& Objects.equals(dateStart, other.dateStart) && Objects.equals(dateEnd, other.dateEnd);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(id, idReport, idOntology, modality, dateStart, dateEnd);
+	}
+
+	@Override
+	public String toString() {
+		return toStringHelper(this)
+				.add("id", id)
+				.add("idReport", idReport)
+				.add("idOntology", idOntology)
+				.add("modality", modality)
+				.add("dateStart", dateStart)
+				.add("dateEnd", dateEnd)
+				.toString();
+	}
+
+}
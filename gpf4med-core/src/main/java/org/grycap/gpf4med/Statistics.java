@@ -146,6 +146,15 @@ public enum Statistics {
 		failedGraphLoads.lazySet(0);
 	}
 
+	/**
+	 * Gets the number of submitted documents that have left the ingestion pipeline, either because they were 
+	 * loaded into the graph or because they failed in any of the stages.
+	 * @return the number of completed documents.
+	 */
+	public int getTotalCompleted() {
+		return failedDownloads.get() + failedParses.get() + successGraphLoads.get() + failedGraphLoads.get();
+	}
+
 	@Override
 	public String toString() {
 		return toStringHelper(this)
@@ -28,12 +28,16 @@ import static com.google.common.base.Preconditions.checkState;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
 import javax.annotation.Nullable;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.commons.lang.StringUtils;
 import org.grycap.gpf4med.conf.ConfigurationManager;
@@ -41,6 +45,7 @@ import org.grycap.gpf4med.model.template.ConceptNameTemplate;
 import org.grycap.gpf4med.model.template.Template;
 import org.grycap.gpf4med.model.util.Id;
 import org.grycap.gpf4med.util.TRENCADISUtils;
+import org.grycap.gpf4med.util.TemplateIndex;
 import org.grycap.gpf4med.util.NamingUtils;
 import org.grycap.gpf4med.util.URLUtils;
 import org.slf4j.Logger;
@@ -126,19 +131,35 @@ public enum TemplateManager implements Closeable2 {
 							&& ConfigurationManager.INSTANCE.getTrencadisPassword() != null) {
 							urls = null;
 						}
-						FileUtils.deleteQuietly(templatesCacheDir);
-						FileUtils.forceMkdir(templatesCacheDir);
-						// get a local copy of the connectors
+						// open the local cache, keeping the templates downloaded in previous executions
+						final LocalCache cache = LocalCache.open(templatesCacheDir);
+						// get a local copy of the connectors, only replacing the templates that changed
 						if (urls != null) {
+							final List<String> ids = new ArrayList<String>();
 							for (final URL url : urls) {
+								final String id = url.toString();
+								ids.add(id);
+								File tmp = null;
 								try {
 									final File destination = new File(templatesCacheDir, NamingUtils
-											.genSafeFilename(new String[] { url.toString() }, null, ".xml"));
-									URLUtils.download(url, destination);
+											.genSafeFilename(new String[] { id }, null, ".xml"));
+									tmp = File.createTempFile("template-", ".tmp");
+									URLUtils.download(url, tmp);
+									if (cache.put(id, destination, Files.readAllBytes(tmp.toPath()))) {
+										LOGGER.trace("Template updated from URL: " + id);
+									}
 								} catch (Exception e2) {
-									LOGGER.warn("Failed to get template from URL: " + url.toString(), e2);
+									if (cache.contains(id)) {
+										LOGGER.warn("Failed to get template from URL, using cached copy: " + id, e2);
+									} else {
+										LOGGER.warn("Failed to get template from URL: " + id, e2);
+									}
+								} finally {
+									FileUtils.deleteQuietly(tmp);
 								}
 							}
+							cache.retainAll(ids);
+							cache.save();
 						}
 						else {
 							try {
@@ -157,6 +178,9 @@ public enum TemplateManager implements Closeable2 {
 					checkArgument(templatesCacheDir != null, "Uninitialized templates local cache directory");
 					final ImmutableMap.Builder<String, Template> builder = new ImmutableMap.Builder<String, Template>();
 					for (final File file : FileUtils.listFiles(templatesCacheDir, TrueFileFilter.INSTANCE, null)) {
+						if (LocalCache.isManifest(file) || "tmp".equals(FilenameUtils.getExtension(file.getName()))) {
+							continue;
+						}
 						String filename = null;
 						try {
 							filename = file.getCanonicalPath();
@@ -165,9 +189,11 @@ public enum TemplateManager implements Closeable2 {
 									&& template.getCONTAINER().getCONCEPTNAME() != null, "No template found");
 							final String id = Id.getId(template.getCONTAINER().getCONCEPTNAME());
 							checkState(StringUtils.isNotBlank(id), "Uninitialized or invalid concept name");
+							// index the concepts of the template before it becomes visible to the creators
+							final TemplateIndex index = TemplateIndex.of(template);
 							builder.put(id, template);
 							LOGGER.trace("New template " + template.getDescription() + ", ontology " + template.getIDOntology() 
-									+ ", loaded from: " + filename);
+									+ ", loaded from: " + filename + " (" + index.size() + " concepts indexed)");
 						} catch (Exception e) {						
 							LOGGER.error("Failed to load template: " + filename, e);
 						}
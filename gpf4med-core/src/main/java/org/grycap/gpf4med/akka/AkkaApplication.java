@@ -23,20 +23,33 @@
 package org.grycap.gpf4med.akka;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+
+import org.grycap.gpf4med.Closeable2;
+import org.grycap.gpf4med.model.util.DownloadJobStatistics;
+import org.grycap.gpf4med.model.util.DownloadStatistics;
 
 /**
- * Initialize Akka Service.
+ * Initialize Akka Service. The service is started once, when the application is loaded, and is reused by 
+ * all the downloads until the application is closed.
  * @author Erik Torres <etserrano@gmail.com>
  * @author Lorena Calabuig <locamo@inf.upv.es>
  */
-public enum AkkaApplication {
+public enum AkkaApplication implements Closeable2 {
 	
 	INSTANCE;
 
 	public static final String GPF4MED_FULLNAME  = "gpf4med Multithread Application (gpf4med-akka)";
 	public static final String GPF4MED_SHORTNAME = "gpf4med-akka";
 	
-	private File documentsCacheDir = null;
+	private volatile File documentsCacheDir = null;
 	
 	private AkkaService service = null;
 	
@@ -48,7 +61,21 @@ public enum AkkaApplication {
 		this.documentsCacheDir = documentsCacheDir;
 	}
 	
-	public AkkaService createService() throws Exception {		
+	@Override
+	public void setup(final @Nullable Collection<URL> urls) {
+		// nothing to set up
+	}
+	
+	@Override
+	public void preload() {
+		try {
+			createService();
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to start " + AkkaService.SERVICE_NAME, e);
+		}
+	}
+	
+	public synchronized AkkaService createService() throws Exception {		
 		if (service == null) {
 			// start service by calling the lazy loader in the singleton
 			service = new AkkaService();
@@ -58,4 +85,41 @@ public enum AkkaApplication {
 		
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * Downloads the reports with a new job of the service, starting the service when needed.
+	 * @throws Exception if the job is cancelled, times out or fails.
+	 */
+	public void download() throws Exception {
+		createService().download();
+	}
+	
+	/**
+	 * Gets the live statistics of the downloads, which are empty when the service was not started.
+	 */
+	public DownloadStatistics getDownloadStatistics() {
+		final AkkaService service;
+		synchronized (this) {
+			service = this.service;
+		}
+		if (service != null) {
+			return service.getStatistics();
+		}
+		final DownloadStatistics statistics = new DownloadStatistics();
+		statistics.setJobs(new ArrayList<DownloadJobStatistics>());
+		return statistics;
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if (service != null) {
+			try {
+				service.stopAsync().awaitTerminated(AkkaService.TIMEOUT.toMinutes(), TimeUnit.MINUTES);
+			} catch (TimeoutException e) {
+				throw new IOException("Failed to stop " + AkkaService.SERVICE_NAME, e);
+			} finally {
+				service = null;
+			}
+		}
+	}
+	
+}
@@ -22,21 +22,31 @@
 
 package org.grycap.gpf4med.akka;
 
-import static org.apache.commons.lang3.RandomStringUtils.randomAlphanumeric;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static org.apache.commons.lang3.StringUtils.trimToNull;
 import static org.grycap.gpf4med.akka.AkkaApplication.GPF4MED_SHORTNAME;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.AbstractIdleService;
 
 import javax.annotation.Nullable;
 
-import org.grycap.gpf4med.akka.actors.TRENCADISActor;
+import org.grycap.gpf4med.akka.actors.DownloadJobsActor;
+import org.grycap.gpf4med.akka.actors.DownloadJobsActor.CancelJob;
+import org.grycap.gpf4med.akka.actors.DownloadJobsActor.StartJob;
 import org.grycap.gpf4med.conf.ConfigurationManager;
+import org.grycap.gpf4med.model.util.DownloadJobStatistics;
+import org.grycap.gpf4med.model.util.DownloadStatistics;
 import org.slf4j.Logger;
 
 import com.typesafe.config.Config;
@@ -50,11 +60,18 @@ import scala.concurrent.duration.FiniteDuration;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.Props;
+import akka.dispatch.OnComplete;
 import akka.pattern.Patterns;
 import akka.util.Timeout;
 
 /**
- * Akka service. Starts efficient download of DICOM reports.
+ * Akka service. Starts efficient download of DICOM reports. The actor system is created when the service 
+ * starts and is reused by all the downloads until the service stops. Each download is a job supervised by 
+ * the {@link DownloadJobsActor}, with its own identifier, timeout and progress, which can be cancelled.
+ * Actors run in the fork-join dispatcher {@link #DISPATCHER}, which is sized to the machine by default and 
+ * can be tuned in the Akka configuration. Report downloaders block on the storage and report indexers may 
+ * block on the ingestion pipeline, so they run in the bounded thread-pool dispatchers 
+ * {@link #DOWNLOAD_WORKER_DISPATCHER} and {@link #INDEX_DISPATCHER}, where they can't starve the other actors.
  * @author Erik Torres <etserrano@gmail.com>
  * @author Lorena Calabuig <locamo@inf.upv.es>
  */
@@ -65,9 +82,19 @@ public class AkkaService extends AbstractIdleService {
 	public static final String SERVICE_NAME = GPF4MED_SHORTNAME + " service";
 	public static final String APP_NAME = GPF4MED_SHORTNAME;
 	
+	public static final String DISPATCHER = "gpf4med.download-dispatcher";
+	public static final String DOWNLOAD_WORKER_DISPATCHER = "gpf4med.download-worker-dispatcher";
+	public static final String INDEX_DISPATCHER = "gpf4med.index-dispatcher";
+	
 	public static final FiniteDuration TIMEOUT = Duration.create(60, TimeUnit.MINUTES);
 	
-	private final ActorSystem actorSystem;
+	private final Config config;
+	private final AtomicLong jobCounter = new AtomicLong();
+	private final ConcurrentMap<String, DownloadJob> jobs = new ConcurrentHashMap<String, DownloadJob>();
+	
+	private volatile ActorSystem actorSystem = null;
+	private volatile ActorRef jobsActor = null;
+	private volatile DownloadJob lastJob = null;
 	
 	public enum Storage {
 		TRENCADIS
@@ -75,9 +102,8 @@ public class AkkaService extends AbstractIdleService {
 
 	public AkkaService() throws Exception {
 		// Load configuration
-		final Config config = loadConfig(ConfigurationManager.INSTANCE.getAkkaConfigFile().getAbsolutePath());
-		// Create actor system
-		actorSystem = ActorSystem.create(APP_NAME, config);
+		final File configFile = ConfigurationManager.INSTANCE.getAkkaConfigFile();
+		config = loadConfig(configFile != null ? configFile.getAbsolutePath() : null);
 	}
 
 	private Config loadConfig(final @Nullable String confname) {
@@ -97,19 +123,104 @@ public class AkkaService extends AbstractIdleService {
 
 	@Override
 	protected void startUp() throws Exception {
-		ActorRef dicomActor = actorSystem.actorOf(Props.create(TRENCADISActor.class), "trencadis_" + randomAlphanumeric(6));
-	    Future<Object> future = Patterns.ask(dicomActor, Storage.TRENCADIS, new Timeout(TIMEOUT));
+		// Create actor system
+		actorSystem = ActorSystem.create(APP_NAME, config);
+		jobsActor = actorSystem.actorOf(Props.create(DownloadJobsActor.class).withDispatcher(DISPATCHER), "jobs");
 	    LOGGER.info(SERVICE_NAME + " started");
-	    
-	    try {
-	    	Await.result(future, TIMEOUT);
-	    } catch (TimeoutException e) {
-	    	actorSystem.shutdown();
-	    }		
 	}
 
 	@Override
 	protected void shutDown() throws Exception {
+		final ActorSystem actorSystem = this.actorSystem;
+		if (actorSystem != null) {
+			actorSystem.shutdown();
+			actorSystem.awaitTermination(Duration.create(1, TimeUnit.MINUTES));
+		}
+		jobs.clear();
 		LOGGER.info(SERVICE_NAME + " terminaded");
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Submits a new download job.
+	 * @return the job, which is completed when all the reports are downloaded and indexed.
+	 */
+	public DownloadJob submit() {
+		checkState(isRunning(), "Service is not running");
+		final String id = "job_" + jobCounter.incrementAndGet();
+		final FiniteDuration timeout = jobTimeout();
+		final Progress progress = new Progress(id);
+		final DownloadMetrics metrics = new DownloadMetrics();
+		// the job fails by itself when it reaches the timeout, the timeout of the request only ensures it ends
+		final Future<Object> future = Patterns.ask(jobsActor, new StartJob(id, progress, metrics, timeout), 
+				new Timeout(timeout.plus(Duration.create(1, TimeUnit.MINUTES))));
+		final DownloadJob job = new DownloadJob(id, progress, metrics, System.currentTimeMillis(), future);
+		jobs.put(id, job);
+		future.onComplete(new OnComplete<Object>() {
+			@Override
+			public void onComplete(final Throwable failure, final Object result) {
+				lastJob = job;
+				jobs.remove(id);
+				if (failure != null) {
+					LOGGER.warn("Download job " + id + " failed", failure);
+				}
+			}
+		}, actorSystem.dispatcher());
+		return job;
+	}
+	
+	/**
+	 * Submits a new download job and waits until it completes.
+	 * @throws Exception if the job is cancelled, times out or fails.
+	 */
+	public void download() throws Exception {
+		final DownloadJob job = submit();
+		Await.result(job.getFuture(), Duration.Inf());
+	}
+	
+	/**
+	 * Cancels a running job. The reports that were already downloaded are kept in the index.
+	 * @param id the identifier of the job.
+	 * @return {@code true} if the job was running.
+	 */
+	public boolean cancel(final String id) {
+		checkArgument(id != null, "Uninitialized job identifier");
+		final DownloadJob job = jobs.get(id);
+		if (job != null && isRunning()) {
+			jobsActor.tell(new CancelJob(id), ActorRef.noSender());
+			return true;
+		}
+		return false;
+	}
+	
+	public @Nullable DownloadJob getJob(final String id) {
+		return jobs.get(id);
+	}
+	
+	public ImmutableList<DownloadJob> getJobs() {
+		return ImmutableList.copyOf(jobs.values());
+	}
+	
+	/**
+	 * Gets the live statistics of the running jobs and the last completed job.
+	 */
+	public DownloadStatistics getStatistics() {
+		final List<DownloadJobStatistics> statistics = new ArrayList<DownloadJobStatistics>();
+		final DownloadJob lastJob = this.lastJob;
+		if (lastJob != null && !jobs.containsKey(lastJob.getId())) {
+			statistics.add(lastJob.getStatistics());
+		}
+		for (final DownloadJob job : jobs.values()) {
+			statistics.add(job.getStatistics());
+		}
+		final DownloadStatistics downloadStatistics = new DownloadStatistics();
+		downloadStatistics.setJobs(statistics);
+		return downloadStatistics;
+	}
+	
+	private FiniteDuration jobTimeout() {
+		final String path = "gpf4med.job-timeout";
+		return config.hasPath(path) ? Duration.create(config.getDuration(path, TimeUnit.MILLISECONDS), 
+				TimeUnit.MILLISECONDS) : TIMEOUT;
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med.akka;
+
+import org.grycap.gpf4med.model.util.DownloadJobStatistics;
+
+import scala.concurrent.Future;
+
+/**
+ * Download of reports submitted to the {@link AkkaService}. The future completes when all the reports 
+ * were downloaded and indexed, and fails when the job is cancelled, times out or stops with an error.
+ * @author Erik Torres <etserrano@gmail.com>
+ * @author Lorena Calabuig <locamo@inf.upv.es>
+ */
+public class DownloadJob {
+
+	private final String id;
+	private final Progress progress;
+	private final DownloadMetrics metrics;
+	private final long startTime;
+	private final Future<Object> future;
+
+	public DownloadJob(final String id, final Progress progress, final DownloadMetrics metrics, final long startTime, 
+			final Future<Object> future) {
+		this.id = id;
+		this.progress = progress;
+		this.metrics = metrics;
+		this.startTime = startTime;
+		this.future = future;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Progress getProgress() {
+		return progress;
+	}
+
+	public DownloadMetrics getMetrics() {
+		return metrics;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public Future<Object> getFuture() {
+		return future;
+	}
+
+	public boolean isDone() {
+		return future.isCompleted();
+	}
+
+	public DownloadJobStatistics getStatistics() {
+		final DownloadJobStatistics statistics = new DownloadJobStatistics();
+		statistics.setId(id);
+		statistics.setStartTime(startTime);
+		statistics.setDone(isDone());
+		statistics.setPercent(progress.getPercent());
+		statistics.setHospitals(metrics.getStatistics());
+		return statistics;
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med.akka;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.grycap.gpf4med.model.util.HospitalStatistics;
+
+/**
+ * Live metrics of a download job, per hospital. Counters are updated by the actors without locks and 
+ * can be read at any time while the job runs. The throughput is measured in a sliding window, so that it
+ * reflects the slowdowns of the download instead of averaging them with the whole history.
+ * @author Erik Torres <etserrano@gmail.com>
+ * @author Lorena Calabuig <locamo@inf.upv.es>
+ */
+public class DownloadMetrics {
+
+	private final ConcurrentMap<String, HospitalMetrics> hospitals = new ConcurrentHashMap<String, HospitalMetrics>();
+
+	/**
+	 * Gets the metrics of a hospital, creating them the first time that the hospital is requested.
+	 */
+	public HospitalMetrics hospital(final String centerName) {
+		checkArgument(centerName != null, "Uninitialized center name");
+		HospitalMetrics metrics = hospitals.get(centerName);
+		if (metrics == null) {
+			final HospitalMetrics previous = hospitals.putIfAbsent(centerName, metrics = new HospitalMetrics(centerName));
+			if (previous != null) {
+				metrics = previous;
+			}
+		}
+		return metrics;
+	}
+
+	public List<HospitalStatistics> getStatistics() {
+		final List<HospitalStatistics> statistics = new ArrayList<HospitalStatistics>();
+		for (final HospitalMetrics metrics : hospitals.values()) {
+			statistics.add(metrics.getStatistics());
+		}
+		return statistics;
+	}
+
+	/* Inner classes */
+
+	public static class HospitalMetrics {
+
+		public static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(60l);
+
+		private final String centerName;
+		private final long startTime = System.nanoTime();
+		private final AtomicInteger totalReports = new AtomicInteger(0);
+		private final AtomicInteger downloadedReports = new AtomicInteger(0);
+		private final AtomicInteger indexedReports = new AtomicInteger(0);
+		private final AtomicLong bytes = new AtomicLong(0l);
+		private final AtomicInteger failedBatches = new AtomicInteger(0);
+		private final AtomicInteger retries = new AtomicInteger(0);
+		private final Queue<String> failedIds = new ConcurrentLinkedQueue<String>();
+		// samples (time, indexed reports) taken by the readers, writers never lock
+		private final Deque<long[]> samples = new ArrayDeque<long[]>();
+
+		public HospitalMetrics(final String centerName) {
+			this.centerName = centerName;
+		}
+
+		public void setTotalReports(final int value) {
+			totalReports.lazySet(value);
+		}
+
+		public void incDownloaded(final int reports) {
+			downloadedReports.addAndGet(reports);
+		}
+
+		public void incBytes(final long size) {
+			bytes.addAndGet(size);
+		}
+
+		public void incIndexed(final int reports) {
+			indexedReports.addAndGet(reports);
+		}
+
+		public void incFailedBatches() {
+			failedBatches.incrementAndGet();
+		}
+
+		public void incRetries(final int reports) {
+			retries.addAndGet(reports);
+		}
+
+		public void addFailed(final String id) {
+			failedIds.add(id);
+		}
+
+		/**
+		 * Computes the throughput of the hospital from the reports indexed in the last window (or since the 
+		 * previous call, when the calls are less frequent than the window), and the estimated time to index 
+		 * the remaining reports at that rate. The average since the hospital started is also included.
+		 */
+		public HospitalStatistics getStatistics() {
+			final HospitalStatistics statistics = new HospitalStatistics();
+			final long now = System.nanoTime();
+			final int total = totalReports.get();
+			final int downloaded = downloadedReports.get();
+			final int indexed = indexedReports.get();
+			final List<String> failed = new ArrayList<String>(failedIds);
+			final long[] base = sample(now, indexed);
+			final double rate = rate(indexed - base[1], now - base[0]);
+			final int remaining = Math.max(0, total - indexed - failed.size());
+			statistics.setCenter(centerName);
+			statistics.setTotalReports(total);
+			statistics.setDownloadedReports(downloaded);
+			statistics.setIndexedReports(indexed);
+			statistics.setBytes(bytes.get());
+			statistics.setReportsPerSecond(rate);
+			statistics.setAverageReportsPerSecond(rate(indexed, now - startTime));
+			statistics.setFailedBatches(failedBatches.get());
+			statistics.setRetries(retries.get());
+			statistics.setFailedIds(failed);
+			statistics.setEtaSeconds(remaining == 0 ? Long.valueOf(0l) 
+					: (rate > 0.0d ? Long.valueOf((long) Math.ceil(remaining / rate)) : null));
+			return statistics;
+		}
+
+		/**
+		 * Records a new sample and gets the oldest sample of the window, keeping one sample older than the 
+		 * window. The first call uses the start of the hospital as the base.
+		 */
+		private synchronized long[] sample(final long now, final int indexed) {
+			if (samples.isEmpty()) {
+				samples.add(new long[]{ startTime, 0l });
+			}
+			samples.add(new long[]{ now, indexed });
+			while (samples.size() > 2) {
+				final long[] first = samples.removeFirst();
+				if (samples.peekFirst()[0] > now - WINDOW_NANOS) {
+					samples.addFirst(first);
+					break;
+				}
+			}
+			return samples.peekFirst();
+		}
+
+		private static double rate(final long reports, final long elapsedNanos) {
+			final double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1l);
+			return seconds > 0.0d ? reports / seconds : 0.0d;
+		}
+
+	}
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med.akka.actors;
+
+import static akka.actor.SupervisorStrategy.escalate;
+import static akka.actor.SupervisorStrategy.stop;
+import static akka.event.Logging.getLogger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.grycap.gpf4med.akka.AkkaService;
+import org.grycap.gpf4med.akka.DownloadMetrics;
+import org.grycap.gpf4med.akka.AkkaService.Storage;
+import org.grycap.gpf4med.akka.Progress;
+import org.grycap.gpf4med.akka.actors.TRENCADISActor.Work;
+import org.grycap.gpf4med.util.AkkaException.DownloadJobException;
+
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.OneForOneStrategy;
+import akka.actor.Status;
+import akka.actor.SupervisorStrategy;
+import akka.actor.SupervisorStrategy.Directive;
+import akka.actor.Terminated;
+import akka.actor.UntypedActor;
+import akka.event.LoggingAdapter;
+import akka.japi.Function;
+
+/**
+ * This actor supervises the download jobs. Each job is a {@link TRENCADISActor} child with its own 
+ * identifier, which is stopped when it completes, when it is cancelled, when it reaches its timeout or 
+ * when it fails. The sender of the job receives {@link Work#DONE} when the job completes, or a failure 
+ * that describes why the job was stopped.
+ * @author Lorena Calabuig <locamo@inf.upv.es>
+ *
+ */
+public class DownloadJobsActor extends UntypedActor {
+	
+	protected final LoggingAdapter LOGGER = getLogger(getContext().system(), this);
+	
+	private final Map<String, ActorRef> jobs = new HashMap<String, ActorRef>();
+	private final Map<ActorRef, RunningJob> running = new HashMap<ActorRef, RunningJob>();
+	
+	// Stop failed jobs, restarting them would download the reports again from the beginning
+	private static SupervisorStrategy strategy = new OneForOneStrategy(0, Duration.Inf(), 
+			new Function<Throwable, Directive>() {
+		@Override
+		public Directive apply(final Throwable t) {
+			if (t instanceof Exception) {
+				return stop();
+			} else {
+				return escalate();
+			}
+		}
+	});
+	
+	@Override
+	public void preStart() throws Exception {
+		super.preStart();
+		LOGGER.debug("Actor created");
+	};
+	
+	@Override
+	public void postStop() throws Exception {
+		super.postStop();
+		LOGGER.debug("Actor stopped");
+	}
+	
+	@Override
+	public SupervisorStrategy supervisorStrategy() {
+		return strategy;
+	}
+	
+	@Override
+	public void onReceive(Object message) {
+		if (message instanceof StartJob) {
+			final StartJob job = (StartJob) message;
+			final ActorRef child = getContext().actorOf(TRENCADISActor.props(job.getProgress(), job.getMetrics())
+					.withDispatcher(AkkaService.DISPATCHER), "trencadis_" + job.getId());
+			getContext().watch(child);
+			final Cancellable timeout = getContext().system().scheduler().scheduleOnce(job.getTimeout(), getSelf(), 
+					new JobTimeout(job.getId()), getContext().dispatcher(), getSelf());
+			jobs.put(job.getId(), child);
+			running.put(child, new RunningJob(job.getId(), getSender(), timeout));
+			child.tell(Storage.TRENCADIS, getSelf());
+			LOGGER.info("Download job " + job.getId() + " started");
+		} else if (message == Work.DONE) {
+			final RunningJob job = running.remove(getSender());
+			if (job != null) {
+				job.timeout.cancel();
+				jobs.remove(job.id);
+				getContext().unwatch(getSender());
+				getContext().stop(getSender());
+				job.requester.tell(Work.DONE, getSelf());
+				LOGGER.info("Download job " + job.id + " completed");
+			}
+		} else if (message instanceof CancelJob) {
+			stopJob(((CancelJob) message).getId(), "was cancelled");
+		} else if (message instanceof JobTimeout) {
+			stopJob(((JobTimeout) message).id, "timed out");
+		} else if (message instanceof Terminated) {
+			final RunningJob job = running.remove(((Terminated) message).getActor());
+			if (job != null) {
+				job.timeout.cancel();
+				jobs.remove(job.id);
+				final String reason = job.reason != null ? job.reason : "failed";
+				job.requester.tell(new Status.Failure(new DownloadJobException("Download job " + job.id + " " + reason)), 
+						getSelf());
+				LOGGER.warning("Download job " + job.id + " " + reason);
+			}
+		} else {
+			unhandled(message);
+			LOGGER.warning("Type of message not supported: " + message.getClass().getName());
+		}
+	}
+	
+	private void stopJob(final String id, final String reason) {
+		final ActorRef child = jobs.get(id);
+		if (child != null) {
+			running.get(child).reason = reason;
+			getContext().stop(child);
+		}
+	}
+	
+	/* Download Jobs Messages */
+	
+	public static class StartJob {
+		
+		private final String id;
+		private final Progress progress;
+		private final DownloadMetrics metrics;
+		private final FiniteDuration timeout;
+		
+		public StartJob(String id, Progress progress, DownloadMetrics metrics, FiniteDuration timeout) {
+			this.id = id;
+			this.progress = progress;
+			this.metrics = metrics;
+			this.timeout = timeout;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public Progress getProgress() {
+			return progress;
+		}
+
+		public DownloadMetrics getMetrics() {
+			return metrics;
+		}
+
+		public FiniteDuration getTimeout() {
+			return timeout;
+		}
+		
+	}
+	
+	public static class CancelJob {
+		
+		private final String id;
+		
+		public CancelJob(String id) {
+			this.id = id;
+		}
+
+		public String getId() {
+			return id;
+		}
+		
+	}
+	
+	private static class JobTimeout {
+		
+		private final String id;
+		
+		public JobTimeout(String id) {
+			this.id = id;
+		}
+		
+	}
+	
+	private static class RunningJob {
+		
+		private final String id;
+		private final ActorRef requester;
+		private final Cancellable timeout;
+		private String reason = null;
+		
+		public RunningJob(String id, ActorRef requester, Cancellable timeout) {
+			this.id = id;
+			this.requester = requester;
+			this.timeout = timeout;
+		}
+		
+	}
+	
+}
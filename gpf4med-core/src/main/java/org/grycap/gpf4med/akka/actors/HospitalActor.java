@@ -26,16 +26,30 @@ import static akka.actor.SupervisorStrategy.escalate;
 import static akka.actor.SupervisorStrategy.restart;
 import static akka.actor.SupervisorStrategy.stop;
 import static akka.event.Logging.getLogger;
-import static org.apache.commons.lang3.RandomStringUtils.randomAlphanumeric;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.TimeUnit;
 
 import org.grycap.gpf4med.akka.AkkaApplication;
+import org.grycap.gpf4med.akka.AkkaService;
+import org.grycap.gpf4med.akka.DownloadMetrics.HospitalMetrics;
 import org.grycap.gpf4med.akka.Progress;
 import org.grycap.gpf4med.akka.actors.ReportDownloaderActor.ReportDownloaderMessage;
+import org.grycap.gpf4med.akka.actors.ReportDownloaderActor.ReportDownloaderResult;
+import org.grycap.gpf4med.akka.actors.ReportDownloaderActor.Request;
+import org.grycap.gpf4med.akka.actors.ReportIndexerActor.ReportIndexerResult;
 import org.grycap.gpf4med.akka.actors.TRENCADISActor.Work;
+import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.util.AkkaException.CreateWorkerException;
 import org.grycap.gpf4med.util.AkkaException.ReportDownloaderDataException;
 import org.grycap.gpf4med.util.AkkaException.ReportDownloaderException;
@@ -50,6 +64,7 @@ import akka.actor.OneForOneStrategy;
 import akka.actor.Props;
 import akka.actor.SupervisorStrategy;
 import akka.actor.SupervisorStrategy.Directive;
+import akka.actor.Terminated;
 import akka.actor.UntypedActor;
 import akka.event.LoggingAdapter;
 import akka.japi.Creator;
@@ -57,7 +72,12 @@ import akka.japi.Function;
 
 
 /**
- * This actor creates worker actors to download reports. 
+ * This actor distributes the reports of a hospital among a bounded pool of worker actors. Workers pull the 
+ * next batch of reports when they finish the previous one, so fast workers take more batches than slow ones. 
+ * The size of the batches adapts to the latency observed in the back-end, and failed batches are split and 
+ * retried at finer granularity, until a single report fails too many times and is discarded. Downloaded 
+ * batches are parsed by a shared {@link ReportIndexerActor} while the workers download the next batches, 
+ * and a batch is only completed when its reports are indexed.
  * @author Lorena Calabuig <locamo@inf.upv.es>
  *
  */
@@ -67,18 +87,40 @@ public class HospitalActor extends UntypedActor{
 	
 	private static final Duration TIMEOUT = Duration.create(1, TimeUnit.MINUTES);
 	
-	private static final int MIN_PARTITIONS = 6;
-	private int NUM_PARTITIONS = 1;
-	
-	private static final int MAX_PARTITION_SIZE = 50;
-	private int PARTITION = 30;
+	public static final int DEFAULT_WORKERS = 4;
+	public static final int DEFAULT_BATCH_SIZE = 10;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+	public static final int DEFAULT_TARGET_LATENCY_MS = 10000;
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
 	
 	private Progress progress;
-	private int currentCount = 0;
-	private int WORKERS = 1;
-	
 	private ActorRef parent = null;
 	
+	private BackEnd backend = null;
+	private ActorRef indexer = null;
+	private HospitalMetrics metrics = null;
+	private File reportsDest = null;
+	private Vector<DICOM_SR_ID> ids = null;
+	private int next = 0;
+	private int completed = 0;
+	private int discarded = 0;
+	private int created = 0;
+	
+	private int maxWorkers;
+	private int maxBatchSize;
+	private int targetLatency;
+	private int maxAttempts;
+	private int batchSize;
+	private double reportLatency = -1.0d;
+	
+	private final Deque<Vector<DICOM_SR_ID>> retries = new ArrayDeque<Vector<DICOM_SR_ID>>();
+	private final Map<String, Integer> attempts = new HashMap<String, Integer>();
+	private final Map<ActorRef, Vector<DICOM_SR_ID>> inFlight = new HashMap<ActorRef, Vector<DICOM_SR_ID>>();
+	private final Set<Vector<DICOM_SR_ID>> parsing = Collections.newSetFromMap(
+			new IdentityHashMap<Vector<DICOM_SR_ID>, Boolean>());
+	private final Set<ActorRef> workers = new HashSet<ActorRef>();
+	private final Deque<ActorRef> idle = new ArrayDeque<ActorRef>();
+	
 	@Override
 	public void preStart() throws Exception {
 		super.preStart();
@@ -143,28 +185,99 @@ public class HospitalActor extends UntypedActor{
 			HospitalMessage hospitalMessage = (HospitalMessage) message;
 			progress = new Progress(hospitalMessage.getDicomStorage().getCenterName());
 			final String centerName = hospitalMessage.getDicomStorage().getCenterName().replaceAll(" ", "");			
-			File reportsDest = new File(AkkaApplication.INSTANCE.getDocumentsCacheDir(), centerName);
+			reportsDest = new File(AkkaApplication.INSTANCE.getDocumentsCacheDir(), centerName);
 			reportsDest.mkdir();
-			final BackEnd backend = new BackEnd(hospitalMessage.getDicomStorage().getBackend().toString());			
-			Vector<DICOM_SR_ID> ids = hospitalMessage.getDicomStorage().getDICOM_DSR_IDS();
-			// Determine the size of partition depending on number of ids
-			PARTITION = calculateSizePartition(ids.size());
-			// Determine the number of workers will used 
-			WORKERS = calculateWorkers(ids);
-			// Create workers for efficient download
-			for (int i = 0; i < ids.size(); i += PARTITION) {
-				createWorker(backend, reportsDest, ids, i, i+PARTITION);
-			}	
-			
-		} else if(message == Work.DONE) {
-			currentCount += 1;		
-			progress.setPercent((100 * currentCount) / WORKERS);
-			if ((currentCount % 5) == 1) {
-				LOGGER.debug("Progress of " + progress.getClassName() + "\t=====> " + progress.toString());
-			}
-			if (currentCount == WORKERS) {
+			backend = new BackEnd(hospitalMessage.getDicomStorage().getBackend().toString());			
+			indexer = hospitalMessage.getIndexer();
+			metrics = hospitalMessage.getMetrics();
+			ids = hospitalMessage.getDicomStorage().getDICOM_DSR_IDS();
+			metrics.setTotalReports(ids.size());
+			// Nothing to download (e.g. all the reports were found in the local cache)
+			if (ids.isEmpty()) {
+				progress.setPercent(100);
 				parent.tell(Work.DONE, getSelf());
-				getContext().unwatch(getSelf());
+				return;
+			}
+			final ConfigurationManager config = ConfigurationManager.INSTANCE;
+			maxWorkers = Math.max(1, config.getIntProperty("akka.download.workers", DEFAULT_WORKERS));
+			maxBatchSize = Math.max(1, config.getIntProperty("akka.download.max-batch-size", DEFAULT_MAX_BATCH_SIZE));
+			batchSize = Math.min(maxBatchSize, Math.max(1, config.getIntProperty("akka.download.batch-size", 
+					DEFAULT_BATCH_SIZE)));
+			targetLatency = Math.max(1, config.getIntProperty("akka.download.target-latency-ms", DEFAULT_TARGET_LATENCY_MS));
+			maxAttempts = Math.max(1, config.getIntProperty("akka.download.max-attempts", DEFAULT_MAX_ATTEMPTS));
+			// Create a bounded pool of workers that will pull the batches
+			final int numWorkers = Math.min(maxWorkers, (ids.size() + batchSize - 1) / batchSize);
+			for (int i = 0; i < numWorkers; i++) {
+				createWorker();
+			}
+		} else if (message == Request.NEXT_BATCH) {
+			// A restarted worker lost its batch, which is downloaded again
+			final Vector<DICOM_SR_ID> lost = inFlight.remove(getSender());
+			if (lost != null) {
+				retries.addFirst(lost);
+			}
+			dispatch(getSender());
+		} else if (message instanceof ReportDownloaderResult) {
+			final ReportDownloaderResult result = (ReportDownloaderResult) message;
+			final Vector<DICOM_SR_ID> batch = inFlight.remove(getSender());
+			if (batch != null) {
+				if (result.isSuccess()) {
+					// the batch is completed when the indexer parses it
+					parsing.add(batch);
+					adaptBatchSize(batch.size(), result.getElapsedMillis());
+				} else {
+					retry(batch);
+				}
+			}
+			dispatch(getSender());
+			dispatchRetries();
+			checkCompleted();
+		} else if (message instanceof ReportIndexerResult) {
+			final ReportIndexerResult result = (ReportIndexerResult) message;
+			final Vector<DICOM_SR_ID> batch = result.getIds();
+			if (!parsing.remove(batch)) {
+				// the result of the indexer arrived before the result of the worker
+				final Iterator<Vector<DICOM_SR_ID>> it = inFlight.values().iterator();
+				while (it.hasNext()) {
+					if (it.next() == batch) {
+						it.remove();
+					}
+				}
+			}
+			// reports that are missing from the bundle, or that failed to index, are downloaded again
+			final Vector<DICOM_SR_ID> missing = new Vector<DICOM_SR_ID>();
+			for (final DICOM_SR_ID id : batch) {
+				if (!result.getIndexed().contains(id.getValue())) {
+					missing.add(id);
+				}
+			}
+			final int indexed = batch.size() - missing.size();
+			completed += indexed;
+			metrics.incDownloaded(result.getCount());
+			metrics.incIndexed(indexed);
+			if (!missing.isEmpty()) {
+				if (result.isSuccess()) {
+					LOGGER.warning("Bundle of " + batch.size() + " reports contains " + result.getCount() 
+							+ " reports, " + missing.size() + " reports will be downloaded again");
+				}
+				retry(missing);
+			}
+			updateProgress();
+			dispatchRetries();
+			checkCompleted();
+		} else if (message instanceof Terminated) {
+			final ActorRef worker = ((Terminated) message).getActor();
+			workers.remove(worker);
+			idle.remove(worker);
+			final Vector<DICOM_SR_ID> lost = inFlight.remove(worker);
+			if (lost != null) {
+				LOGGER.warning("Worker stopped while downloading " + lost.size() + " reports, they will be downloaded again");
+				retries.addFirst(lost);
+			}
+			if (!pendingWork()) {
+				checkCompleted();
+			} else if (workers.isEmpty() || !retries.isEmpty()) {
+				createWorker();
 			}
 		} else {
 			unhandled(message);
@@ -172,57 +285,144 @@ public class HospitalActor extends UntypedActor{
 		}
 	}
 
-	private void createWorker(BackEnd backend, File reportsDest,
-			Vector<DICOM_SR_ID> ids, int beginIdx, int endIdx) throws CreateWorkerException {
+	private void createWorker() throws CreateWorkerException {
+		if (workers.size() >= maxWorkers) {
+			return;
+		}
 		try {
-			Vector<DICOM_SR_ID> sub_ids = null;
-			if (endIdx > ids.size()) {
-				sub_ids = new Vector<DICOM_SR_ID>(ids.subList(beginIdx, ids.size()));
-			} else {
-				sub_ids = new Vector<DICOM_SR_ID>(ids.subList(beginIdx, endIdx));
-			}
-			ReportDownloaderMessage workerMessage = new ReportDownloaderMessage(backend, sub_ids, reportsDest);
-			getContext().actorOf(Props.create(ReportDownloaderActor.class),
-					"worker_" + randomAlphanumeric(6))
-					.tell(workerMessage, getSelf());
+			final ActorRef worker = getContext().actorOf(Props.create(ReportDownloaderActor.class)
+					.withDispatcher(AkkaService.DOWNLOAD_WORKER_DISPATCHER), "worker_" + (++created));
+			getContext().watch(worker);
+			workers.add(worker);
 		} catch (Exception e) {
 			throw new CreateWorkerException("Can not create a worker");
 		}
 	}
 	
-	private void calculateNumberPartitions(int size) {
-		if (size <= MAX_PARTITION_SIZE) {
-			NUM_PARTITIONS = MIN_PARTITIONS;
+	/**
+	 * Sends the next batch to the worker. Split batches of previous failures are sent first. Workers are kept
+	 * waiting while other batches are being downloaded, since a failure can produce new batches.
+	 */
+	private void dispatch(final ActorRef worker) {
+		Vector<DICOM_SR_ID> batch = retries.poll();
+		if (batch == null && next < ids.size()) {
+			final int end = Math.min(ids.size(), next + batchSize);
+			batch = new Vector<DICOM_SR_ID>(ids.subList(next, end));
+			next = end;
+		}
+		if (batch != null) {
+			inFlight.put(worker, batch);
+			worker.tell(new ReportDownloaderMessage(backend, batch, reportsDest, indexer, metrics), getSelf());
+		} else if (!idle.contains(worker)) {
+			idle.add(worker);
+		}
+	}
+	
+	/**
+	 * Split batches can be taken by the workers that were waiting.
+	 */
+	private void dispatchRetries() throws CreateWorkerException {
+		while (!retries.isEmpty() && !idle.isEmpty()) {
+			dispatch(idle.poll());
+		}
+		if (!retries.isEmpty() && workers.isEmpty()) {
+			createWorker();
+		}
+	}
+	
+	/**
+	 * Splits a failed batch in two halves that are retried before the other batches. Reports that fail 
+	 * alone are retried until they reach the maximum number of attempts. Failures also halve the size of
+	 * the next batches.
+	 */
+	private void retry(final Vector<DICOM_SR_ID> batch) {
+		batchSize = Math.max(1, batchSize / 2);
+		if (batch.size() > 1) {
+			final int half = batch.size() / 2;
+			retries.addFirst(new Vector<DICOM_SR_ID>(batch.subList(half, batch.size())));
+			retries.addFirst(new Vector<DICOM_SR_ID>(batch.subList(0, half)));
+			metrics.incRetries(batch.size());
+			LOGGER.debug("Batch of " + batch.size() + " reports failed, retrying in batches of " + half 
+					+ " and " + (batch.size() - half) + " reports");
 		} else {
-			NUM_PARTITIONS = MIN_PARTITIONS + (size / MAX_PARTITION_SIZE);
+			final String id = batch.get(0).getValue();
+			final Integer previous = attempts.get(id);
+			final int count = (previous != null ? previous : 0) + 1;
+			if (count < maxAttempts) {
+				attempts.put(id, count);
+				retries.addLast(batch);
+				metrics.incRetries(1);
+			} else {
+				attempts.remove(id);
+				discarded++;
+				metrics.addFailed(id);
+				LOGGER.error("Can not download report with ID: " + id + " after " + count + " attempts");
+			}
 		}
 	}
 	
-	private int calculateSizePartition(int size) {
-		calculateNumberPartitions(size);
-		return size / NUM_PARTITIONS;		
+	/**
+	 * Adjusts the size of the batches to the number of reports that the back-end can return within the target
+	 * latency, estimated from a moving average of the latency per report. The size at most doubles per batch.
+	 */
+	private void adaptBatchSize(final int reports, final long elapsedMillis) {
+		final double latency = Math.max(1.0d, (double) elapsedMillis) / reports;
+		reportLatency = reportLatency < 0.0d ? latency : 0.7d * reportLatency + 0.3d * latency;
+		final int size = (int) (targetLatency / reportLatency);
+		batchSize = Math.max(1, Math.min(Math.min(maxBatchSize, 2 * batchSize), size));
 	}
 	
-	private int calculateWorkers(Vector<DICOM_SR_ID> ids) {
-		if ((ids.size() % PARTITION) != 0) {
-			return ids.size()/PARTITION + 1;
-		} else
-			return ids.size()/PARTITION;
+	private void updateProgress() {
+		progress.setPercent((100.0d * (completed + discarded)) / ids.size());
+		LOGGER.debug("Progress of " + progress.getClassName() + "\t=====> " + progress.toString());
+	}
+	
+	private boolean pendingWork() {
+		return next < ids.size() || !retries.isEmpty() || !inFlight.isEmpty() || !parsing.isEmpty();
+	}
+	
+	private void checkCompleted() {
+		if (parent != null && !pendingWork()) {
+			if (discarded > 0) {
+				LOGGER.warning(discarded + " reports of " + progress.getClassName() + " were not downloaded");
+			}
+			for (final ActorRef worker : workers) {
+				getContext().unwatch(worker);
+				getContext().stop(worker);
+			}
+			workers.clear();
+			idle.clear();
+			parent.tell(Work.DONE, getSelf());
+			parent = null;
+		}
 	}
 	
 	/* Hospital Message class */
 	
 	public static class HospitalMessage {
 		private TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE dicomStorage = null;
+		private ActorRef indexer = null;
+		private HospitalMetrics metrics = null;
 		
-		public HospitalMessage(TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE dicomStorage) {
+		public HospitalMessage(TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE dicomStorage, ActorRef indexer, 
+				HospitalMetrics metrics) {
 			this.dicomStorage = dicomStorage;
+			this.indexer = indexer;
+			this.metrics = metrics;
 		}
 
 		public TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE getDicomStorage() {
 			return dicomStorage;
 		}
 
+		public ActorRef getIndexer() {
+			return indexer;
+		}
+
+		public HospitalMetrics getMetrics() {
+			return metrics;
+		}
+
 	}
 	
 }
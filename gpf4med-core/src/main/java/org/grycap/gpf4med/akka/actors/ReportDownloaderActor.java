@@ -25,22 +25,23 @@ package org.grycap.gpf4med.akka.actors;
 import static akka.event.Logging.getLogger;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 
-import org.grycap.gpf4med.akka.actors.TRENCADISActor.Work;
-import org.grycap.gpf4med.util.AkkaException.ReportDownloaderDataException;
-import org.grycap.gpf4med.util.AkkaException.ReportDownloaderException;
-import org.grycap.gpf4med.util.AkkaException.ReportDownloaderIOException;
+import org.grycap.gpf4med.akka.DownloadMetrics.HospitalMetrics;
+import org.grycap.gpf4med.akka.actors.ReportIndexerActor.ReportIndexerMessage;
 import org.grycap.gpf4med.util.TRENCADISUtils;
 
 import trencadis.infrastructure.services.DICOMStorage.impl.wrapper.xmlOutputDownloadAllReportsID.DICOM_SR_ID;
 import trencadis.infrastructure.services.dicomstorage.backend.BackEnd;
+import akka.actor.ActorRef;
 import akka.actor.UntypedActor;
 import akka.event.LoggingAdapter;
 
 /**
- * Actor that downloads a given set of reports from a back-end.
+ * Actor that downloads batches of reports from a back-end. The actor requests a batch to its parent when 
+ * it starts, and the result of each batch requests the next one. Downloaded bundles are published to a 
+ * {@link ReportIndexerActor}, which parses and indexes the reports while this actor downloads the next batch.
  * @author Lorena Calabuig <locamo@inf.upv.es>
  *
  */
@@ -53,6 +54,7 @@ public class ReportDownloaderActor extends UntypedActor {
 	public void preStart() throws Exception {
 		super.preStart();
 		LOGGER.debug("Actor created");
+		getContext().parent().tell(Request.NEXT_BATCH, getSelf());
 	};
 	
 	@Override
@@ -68,28 +70,36 @@ public class ReportDownloaderActor extends UntypedActor {
 	};
 	
 	@Override
-	public void onReceive(Object message) throws ReportDownloaderIOException, ReportDownloaderException, ReportDownloaderDataException {
+	public void onReceive(Object message) {
 		if (message instanceof ReportDownloaderMessage) {
-			ReportDownloaderMessage reports = (ReportDownloaderMessage) message;
+			final ReportDownloaderMessage reports = (ReportDownloaderMessage) message;
 			
 			String ids = vectorToString(reports.getIds());
+			final long start = System.nanoTime();
+			boolean success = false;
+			String data = null;
 			try {
-				// Download a set of reports				
-				boolean success = TRENCADISUtils.INSTANCE.downloadReports(reports.getBackend(),
-						ids, reports.getDest().getAbsolutePath());
-				
-				// Fault-Tolerance
+				// Download a set of reports
+				data = TRENCADISUtils.INSTANCE.downloadReportsData(reports.getBackend(), ids);
+				success = data != null;
 				if (!success) {
-					throw new ReportDownloaderDataException("Can not download data of reports with IDs: " + ids);
+					LOGGER.warning("Can not download data of reports with IDs: " + ids);
 				} else {
-					getSender().tell(Work.DONE, getSelf());
+					reports.getMetrics().incBytes(utf8Length(data));
 				}
-				
-			} catch (IOException e1) {
-				throw new ReportDownloaderIOException("Can not write the reports in file");
-			} catch (Exception e2) {
-				throw new ReportDownloaderException("Can not get report from backend storage");
-			}			
+			} catch (Exception e) {
+				LOGGER.warning("Can not get reports with IDs: " + ids + " from backend storage: " + e);
+			}
+			// Fault-Tolerance: the parent retries failed batches in smaller batches
+			if (!success) {
+				reports.getMetrics().incFailedBatches();
+			}
+			getSender().tell(new ReportDownloaderResult(success, 
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)), getSelf());
+			// The reports are parsed by the indexer, which sends the result to the parent
+			if (success) {
+				reports.getIndexer().tell(new ReportIndexerMessage(reports.getIds(), data, reports.getDest()), getSender());
+			}
 		} else {
 			unhandled(message);
 			LOGGER.warning("Type of message not supported: " + message.getClass().getName());
@@ -97,6 +107,28 @@ public class ReportDownloaderActor extends UntypedActor {
 		
 	}
 	
+	/**
+	 * Computes the size of the bundle without encoding it.
+	 */
+	private static long utf8Length(final String data) {
+		long length = 0l;
+		for (int i = 0; i < data.length(); i++) {
+			final char c = data.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < data.length() 
+					&& Character.isLowSurrogate(data.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+	
 	private String vectorToString(Vector<DICOM_SR_ID> ids) {
 		String retval = "";
 		for (DICOM_SR_ID id : ids) {
@@ -105,20 +137,28 @@ public class ReportDownloaderActor extends UntypedActor {
 		return retval.substring(0, retval.length() - 1);
 	}
 	
-	/* Report Downloader Message class */
+	/* Report Downloader Messages */
+	
+	public enum Request {
+		NEXT_BATCH
+	}
 		
 	public static class ReportDownloaderMessage {
 		
 		private BackEnd backend = null; 
 		private Vector<DICOM_SR_ID> ids = null;
 		private File dest = null;
+		private ActorRef indexer = null;
+		private HospitalMetrics metrics = null;
 		
 		public ReportDownloaderMessage(BackEnd backend,
-				Vector<DICOM_SR_ID> ids, File reportsDest) {
+				Vector<DICOM_SR_ID> ids, File reportsDest, ActorRef indexer, HospitalMetrics metrics) {
 
 			this.backend = backend;
 			this.ids = ids;
 			this.dest = reportsDest;
+			this.indexer = indexer;
+			this.metrics = metrics;
 		}
 
 		public BackEnd getBackend() {
@@ -144,6 +184,42 @@ public class ReportDownloaderActor extends UntypedActor {
 		public void setDest(File dest) {
 			this.dest = dest;
 		}
+
+		public ActorRef getIndexer() {
+			return indexer;
+		}
+
+		public void setIndexer(ActorRef indexer) {
+			this.indexer = indexer;
+		}
+
+		public HospitalMetrics getMetrics() {
+			return metrics;
+		}
+
+		public void setMetrics(HospitalMetrics metrics) {
+			this.metrics = metrics;
+		}
+		
+	}
+	
+	public static class ReportDownloaderResult {
+		
+		private final boolean success;
+		private final long elapsedMillis;
+		
+		public ReportDownloaderResult(boolean success, long elapsedMillis) {
+			this.success = success;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
 		
 	}
 	
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med.akka.actors;
+
+import static akka.event.Logging.getLogger;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import org.grycap.gpf4med.DocumentLoader;
+import org.grycap.gpf4med.DocumentManager;
+import org.grycap.gpf4med.model.document.Document;
+import org.grycap.gpf4med.xml.XmlParser.Handler;
+
+import trencadis.infrastructure.services.DICOMStorage.impl.wrapper.xmlOutputDownloadAllReportsID.DICOM_SR_ID;
+import akka.actor.UntypedActor;
+import akka.event.LoggingAdapter;
+
+/**
+ * Actor that parses the bundles of reports downloaded by the {@link ReportDownloaderActor} and adds the 
+ * reports to the index. Downloaders send the bundles as soon as they are received and go back to the 
+ * back-end, so downloading from a hospital overlaps with parsing the reports already fetched from others. 
+ * The result of each bundle is sent to the sender of the message, which is the hospital that owns the batch.
+ * The result includes the identifiers of the reports that were indexed, so the hospital can download again 
+ * the reports that are missing from the bundle. Indexers add the reports to the {@link DocumentManager}, which 
+ * can block while the ingestion pipeline is full, so they run in their own dispatcher.
+ * @author Lorena Calabuig <locamo@inf.upv.es>
+ *
+ */
+public class ReportIndexerActor extends UntypedActor {
+
+	protected final LoggingAdapter LOGGER = getLogger(getContext().system(), this);
+	
+	@Override
+	public void preStart() throws Exception {
+		super.preStart();
+		LOGGER.debug("Actor created");
+	};
+	
+	@Override
+	public void postStop() throws Exception {
+		super.postStop();
+		LOGGER.debug("Actor stopped");
+	}
+	
+	@Override
+	public void onReceive(Object message) {
+		if (message instanceof ReportIndexerMessage) {
+			final ReportIndexerMessage reports = (ReportIndexerMessage) message;
+			boolean success = false;
+			final int[] count = { 0 };
+			final Set<String> indexed = new HashSet<String>();
+			try (final StringReader reader = new StringReader(reports.getData())) {
+				DocumentLoader.load(reader, new Handler<Document>() {
+					@Override
+					public void handle(final Document report) throws Exception {
+						count[0]++;
+						DocumentManager.INSTANCE.add(report, reports.getDest());
+						indexed.add(report.getIDTRENCADISReport());
+					}
+				});
+				success = true;
+			} catch (Exception e) {
+				LOGGER.warning("Can not parse a bundle of " + reports.getIds().size() + " reports: " + e);
+			}
+			getSender().tell(new ReportIndexerResult(reports.getIds(), success, count[0], indexed), getSelf());
+		} else {
+			unhandled(message);
+			LOGGER.warning("Type of message not supported: " + message.getClass().getName());
+		}
+	}
+	
+	/* Report Indexer Messages */
+	
+	public static class ReportIndexerMessage {
+		
+		private final Vector<DICOM_SR_ID> ids;
+		private final String data;
+		private final File dest;
+		
+		public ReportIndexerMessage(Vector<DICOM_SR_ID> ids, String data, File dest) {
+			this.ids = ids;
+			this.data = data;
+			this.dest = dest;
+		}
+
+		public Vector<DICOM_SR_ID> getIds() {
+			return ids;
+		}
+
+		public String getData() {
+			return data;
+		}
+
+		public File getDest() {
+			return dest;
+		}
+		
+	}
+	
+	public static class ReportIndexerResult {
+		
+		private final Vector<DICOM_SR_ID> ids;
+		private final boolean success;
+		private final int count;
+		private final Set<String> indexed;
+		
+		public ReportIndexerResult(Vector<DICOM_SR_ID> ids, boolean success, int count, Set<String> indexed) {
+			this.ids = ids;
+			this.success = success;
+			this.count = count;
+			this.indexed = indexed;
+		}
+
+		public Vector<DICOM_SR_ID> getIds() {
+			return ids;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		/**
+		 * Gets the number of reports found in the bundle, including the reports that could not be indexed.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the identifiers of the reports that were indexed.
+		 */
+		public Set<String> getIndexed() {
+			return indexed;
+		}
+		
+	}
+	
+}
@@ -29,13 +29,20 @@ import static akka.event.Logging.getLogger;
 import static org.apache.commons.lang3.RandomStringUtils.randomAlphanumeric;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.TimeUnit;
 
+import org.grycap.gpf4med.akka.AkkaService;
 import org.grycap.gpf4med.akka.AkkaService.Storage;
+import org.grycap.gpf4med.akka.DownloadMetrics;
 import org.grycap.gpf4med.akka.Progress;
 import org.grycap.gpf4med.akka.actors.HospitalActor.HospitalMessage;
+import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.util.AkkaException.CreateWorkerException;
 import org.grycap.gpf4med.util.AkkaException.DicomStorageException;
 import org.grycap.gpf4med.util.TRENCADISUtils;
@@ -44,19 +51,25 @@ import scala.concurrent.duration.Duration;
 import trencadis.middleware.operations.DICOMStorage.TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE;
 import akka.actor.ActorRef;
 import akka.actor.OneForOneStrategy;
+import akka.actor.Props;
 import akka.actor.SupervisorStrategy;
 import akka.actor.SupervisorStrategy.Directive;
+import akka.actor.Terminated;
 import akka.actor.UntypedActor;
 import akka.event.LoggingAdapter;
+import akka.japi.Creator;
 import akka.japi.Function;
 import akka.routing.ActorRefRoutee;
+import akka.routing.RoundRobinPool;
 import akka.routing.RoundRobinRoutingLogic;
 import akka.routing.Routee;
 import akka.routing.Router;
 
 /**
  * This actor creates an actor for each center in which have
- * to download the reports.
+ * to download the reports. Each download job is an instance of this actor, which reports {@link Work#DONE} 
+ * to the sender of the job when all the hospitals are completed. A hospital that stops before completing its
+ * download is marked as failed and the job continues with the other hospitals.
  * @author Lorena Calabuig <locamo@upv.es>
  *
  */
@@ -64,14 +77,32 @@ public class TRENCADISActor extends UntypedActor{
 	
 	protected final LoggingAdapter LOGGER = getLogger(getContext().system(), this);
 	
-	private static final String DISPATCHER = "akka.actor.pinned-dispatcher";
-	
 	private static final Duration TIMEOUT = Duration.create(1, TimeUnit.MINUTES);
 	
-	private static Progress progress = null;
+	private final Progress progress;
+	private final DownloadMetrics metrics;
 	private int currentCount = 0;
-	private Vector<String> HOSPITALS = null;
+	private final Map<ActorRef, String> hospitals = new LinkedHashMap<ActorRef, String>();
+	private final Set<ActorRef> finished = new HashSet<ActorRef>();
+	private final List<String> failed = new ArrayList<String>();
 	private Router router;
+	private ActorRef indexer = null;
+	private ActorRef requester = null;
+	
+	public TRENCADISActor(final Progress progress, final DownloadMetrics metrics) {
+		this.progress = progress;
+		this.metrics = metrics;
+	}
+	
+	public static Props props(final Progress progress, final DownloadMetrics metrics) {
+		return Props.create(new Creator<TRENCADISActor>() {
+			private static final long serialVersionUID = -4297163781565227457L;
+			@Override
+			public TRENCADISActor create() throws Exception {
+				return new TRENCADISActor(progress, metrics);
+			}
+		});
+	}
 	
 	// Stop TRENCADISActor children if the service is unavailable
 	// It retries 10 times during a given timeout; if it reaches that limit, it stop child automatically
@@ -91,7 +122,6 @@ public class TRENCADISActor extends UntypedActor{
 	
 	@Override
 	public void preStart() throws Exception {
-		progress = new Progress(TRENCADISActor.class.getSimpleName());
 		LOGGER.debug("Actor created");
 	};
 	
@@ -109,17 +139,22 @@ public class TRENCADISActor extends UntypedActor{
 	@Override
 	public void onReceive(Object message) throws Exception {
 		if (message == Storage.TRENCADIS) {
-			
+			requester = getSender();
 			Vector<TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE> dicomStorages = TRENCADISUtils.INSTANCE.getDicomStorages();
 			if (dicomStorages != null) {
-				HOSPITALS = new Vector<String>();
 				List<Routee> routees = new ArrayList<Routee>();
 				List<HospitalMessage> messages = new ArrayList<HospitalMessage>();
+				// Reports downloaded from all the hospitals are parsed and indexed by a shared pool of indexers
+				final int indexers = Math.max(1, ConfigurationManager.INSTANCE.getIntProperty("akka.index.workers", 
+						Runtime.getRuntime().availableProcessors()));
+				indexer = getContext().actorOf(new RoundRobinPool(indexers).withDispatcher(AkkaService.DISPATCHER)
+						.props(Props.create(ReportIndexerActor.class).withDispatcher(AkkaService.INDEX_DISPATCHER)), "indexer");
 				for (TRENCADIS_RETRIEVE_IDS_FROM_DICOM_STORAGE dicomStorage : dicomStorages) {
-					HospitalMessage hospitalMessage = new HospitalMessage(dicomStorage);
-					HOSPITALS.add(dicomStorage.getCenterName());
-					ActorRef hospitalActor = getContext().actorOf(HospitalActor.props().withDispatcher(DISPATCHER),
+					HospitalMessage hospitalMessage = new HospitalMessage(dicomStorage, indexer, 
+							metrics.hospital(dicomStorage.getCenterName()));
+					ActorRef hospitalActor = getContext().actorOf(HospitalActor.props().withDispatcher(AkkaService.DISPATCHER),
 							"hospital_" + randomAlphanumeric(6));
+					hospitals.put(hospitalActor, dicomStorage.getCenterName());
 					getContext().watch(hospitalActor);
 					routees.add(new ActorRefRoutee(hospitalActor));
 					messages.add(hospitalMessage);
@@ -128,17 +163,23 @@ public class TRENCADISActor extends UntypedActor{
 				for (HospitalMessage toSend : messages) {
 					router.route(toSend, getSelf());
 				}
-				
+				// Nothing to download
+				if (hospitals.isEmpty()) {
+					progress.setPercent(100);
+					requester.tell(Work.DONE, getSelf());
+				}
 			} else {
 				throw new DicomStorageException("Can not get reports from TRENCADIS middleware");
 			}			
 		} else if(message == Work.DONE) {
-			currentCount += 1;
-			progress.setPercent((100 * currentCount) / HOSPITALS.size());
-			if (currentCount == HOSPITALS.size()) {
-				LOGGER.info("Download completed from " + HOSPITALS.toString());
-				getContext().system().shutdown();
-				router = router.removeRoutee(getSender());
+			finish(getSender());
+		} else if (message instanceof Terminated) {
+			final ActorRef hospitalActor = ((Terminated) message).getActor();
+			if (hospitals.containsKey(hospitalActor) && !finished.contains(hospitalActor)) {
+				final String centerName = hospitals.get(hospitalActor);
+				LOGGER.error("Hospital " + centerName + " stopped before completing the download");
+				failed.add(centerName);
+				finish(hospitalActor);
 			}
 		} else {
 			unhandled(message);
@@ -146,7 +187,24 @@ public class TRENCADISActor extends UntypedActor{
 		}		
 	}
 	
-	public static Progress getProgress() {
+	private void finish(final ActorRef hospitalActor) {
+		if (!finished.add(hospitalActor)) {
+			return;
+		}
+		currentCount += 1;
+		progress.setPercent((100 * currentCount) / hospitals.size());
+		router = router.removeRoutee(hospitalActor);
+		if (currentCount == hospitals.size()) {
+			if (failed.isEmpty()) {
+				LOGGER.info("Download completed from " + hospitals.values());
+			} else {
+				LOGGER.warning("Download completed from " + hospitals.values() + ", failed hospitals: " + failed);
+			}
+			requester.tell(Work.DONE, getSelf());
+		}
+	}
+	
+	public Progress getProgress() {
 		return progress;
 	}
 		
@@ -51,6 +51,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.grycap.gpf4med.Closeable2;
 import org.grycap.gpf4med.security.FileEncryptionProvider;
 import org.grycap.gpf4med.util.NetworkingUtils;
@@ -187,6 +188,10 @@ public enum ConfigurationManager implements Closeable2 {
 	public @Nullable String getProperty(final String name, final @Nullable String defaultValue) {
 		return configuration().getProperty(name, defaultValue);
 	}
+	
+	public int getIntProperty(final String name, final int defaultValue) {
+		return NumberUtils.toInt(configuration().getProperty(name, null), defaultValue);
+	}
 
 	public @Nullable FileEncryptionProvider getFileEncryptionProvider() {
 		return configuration().getFileEncryptionProvider();
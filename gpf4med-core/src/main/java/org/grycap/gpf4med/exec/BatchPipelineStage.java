@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med.exec;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A terminal stage of a processing pipeline that groups the items in batches. A batch is processed when it 
+ * reaches the maximum size or when the time window that starts with the first item of the batch expires, 
+ * whichever comes first.
+ * @author Erik Torres <ertorser@upv.es>
+ * @param <I> The type of object that the stage consumes.
+ */
+public abstract class BatchPipelineStage<I> extends PipelineStage<I, Void> {
+
+	private final int batchSize;
+	private final long windowMillis;
+
+	public BatchPipelineStage(final String name, final int capacity, final int workers, final int batchSize, 
+			final long windowMillis) {
+		super(name, capacity, workers);
+		checkArgument(batchSize > 0, "Invalid batch size");
+		checkArgument(windowMillis >= 0l, "Invalid time window");
+		this.batchSize = batchSize;
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Processes a batch of items.
+	 * @param batch the items to be processed.
+	 * @throws Exception if an error occurs in the execution of the operation.
+	 */
+	protected abstract void processBatch(List<I> batch) throws Exception;
+
+	/**
+	 * Called when the processing of a batch fails. The default implementation calls {@link #failed(Object, Exception)}
+	 * with each item of the batch.
+	 * @param batch the items that could not be processed.
+	 * @param cause the reason why the processing failed.
+	 */
+	protected void failedBatch(final List<I> batch, final Exception cause) {
+		for (final I item : batch) {
+			failed(item, cause);
+		}
+	}
+
+	@Override
+	protected final Void process(final I item) throws Exception {
+		final List<I> batch = new ArrayList<I>(1);
+		batch.add(item);
+		processBatch(batch);
+		return null;
+	}
+
+	@Override
+	protected void work() throws InterruptedException {
+		final BlockingQueue<I> queue = getQueue();
+		while (!Thread.currentThread().isInterrupted()) {
+			final List<I> batch = new ArrayList<I>(batchSize);
+			batch.add(queue.take());
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+			while (batch.size() < batchSize) {
+				// take the items that are already available before waiting
+				if (queue.drainTo(batch, batchSize - batch.size()) == 0) {
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0l) {
+						break;
+					}
+					final I item = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (item == null) {
+						break;
+					}
+					batch.add(item);
+				}
+			}
+			try {
+				processBatch(batch);
+			} catch (InterruptedException ie) {
+				throw ie;
+			} catch (Exception e) {
+				failedBatch(batch, e);
+			}
+		}
+	}
+
+}
@@ -20,10 +20,26 @@
  * that you distribute must include a readable copy of the "NOTICE" text file.
  */
 
-package org.grycap.gpf4med.event;
+package org.grycap.gpf4med.exec;
+
+import java.util.List;
+
+import org.grycap.gpf4med.model.document.Document;
+
+import com.google.common.collect.ImmutableList;
 
 /**
- * File enqueued event.
+ * Receives the documents that leave the ingestion pipeline.
  * @author Erik Torres <ertorser@upv.es>
  */
-public class FileEnqueuedEvent extends BaseEvent { }
\ No newline at end of file
+public interface DocumentSink {
+
+	/**
+	 * Writes a batch of documents to the sink. Implementations should isolate the failures, so that a 
+	 * document that cannot be written does not prevent the rest of the batch from being written.
+	 * @param documents the documents to write.
+	 * @return the documents that could not be written.
+	 */
+	ImmutableList<Document> write(List<Document> documents);
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med.exec;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A stage of a processing pipeline. Each stage owns a bounded queue and a fixed number of workers that take 
+ * items from the queue, process them and put the results in the queue of the next stage. Producers are 
+ * blocked when the queue is full, which propagates backpressure to the upstream stages.
+ * @author Erik Torres <ertorser@upv.es>
+ * @param <I> The type of object that the stage consumes.
+ * @param <O> The type of object that the stage produces.
+ */
+public abstract class PipelineStage<I, O> implements Closeable {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(PipelineStage.class);
+
+	public static final int SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+	private final String name;
+	private final int workers;
+	private final BlockingQueue<I> queue;
+	private final ExecutorService executor;
+
+	private PipelineStage<O, ?> next = null;
+
+	public PipelineStage(final String name, final int capacity, final int workers) {
+		checkArgument(StringUtils.isNotBlank(name), "Uninitialized or invalid name");
+		checkArgument(capacity > 0, "Invalid capacity");
+		checkArgument(workers > 0, "Invalid number of workers");
+		this.name = name;
+		this.workers = workers;
+		this.queue = new ArrayBlockingQueue<I>(capacity);
+		this.executor = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder()
+				.setNameFormat("gpf4med-" + name + "-%d").setDaemon(true).build());
+	}
+
+	/**
+	 * Processes an item.
+	 * @param item the item to be processed.
+	 * @return the result of processing the item, which will be passed to the next stage, or {@code null} when
+	 *         the item must not be forwarded.
+	 * @throws Exception if an error occurs in the execution of the operation.
+	 */
+	protected abstract @Nullable O process(I item) throws Exception;
+
+	/**
+	 * Called when the processing of an item fails. The default implementation logs the error.
+	 * @param item the item that could not be processed.
+	 * @param cause the reason why the processing failed.
+	 */
+	protected void failed(final I item, final Exception cause) {
+		LOGGER.warn("Stage " + name + " failed to process item: " + item, cause);
+	}
+
+	/**
+	 * Starts the workers of this stage.
+	 * @param next an optional stage where the results of this stage are passed to.
+	 * @return this stage.
+	 */
+	public PipelineStage<I, O> start(final @Nullable PipelineStage<O, ?> next) {
+		checkState(!executor.isShutdown(), "Stage is closed");
+		this.next = next;
+		for (int i = 0; i < workers; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						work();
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		LOGGER.trace("Stage " + name + " started [workers=" + workers + ", capacity=" 
+				+ (queue.size() + queue.remainingCapacity()) + "]");
+		return this;
+	}
+
+	/**
+	 * Adds an item to the queue of this stage, waiting if necessary for space to become available.
+	 * @param item the item to add.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void put(final I item) throws InterruptedException {
+		checkArgument(item != null, "Uninitialized item");
+		queue.put(item);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		queue.clear();
+		// interrupt workers, which could be waiting for new items
+		executor.shutdownNow();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				LOGGER.warn("Stage " + name + " did not terminate");
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			LOGGER.trace("Stage " + name + " terminated");
+		}
+	}
+
+	/**
+	 * Takes items from the queue and processes them until the worker is interrupted.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	protected void work() throws InterruptedException {
+		while (!Thread.currentThread().isInterrupted()) {
+			final I item = queue.take();
+			O result = null;
+			try {
+				result = process(item);
+			} catch (InterruptedException ie) {
+				throw ie;
+			} catch (Exception e) {
+				failed(item, e);
+			}
+			forward(result);
+		}
+	}
+
+	/**
+	 * Passes a result to the next stage, waiting if necessary for space to become available.
+	 * @param result the result to pass, which is ignored when {@code null}.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	protected void forward(final @Nullable O result) throws InterruptedException {
+		if (result != null && next != null) {
+			next.put(result);
+		}
+	}
+
+	protected BlockingQueue<I> getQueue() {
+		return queue;
+	}
+
+}
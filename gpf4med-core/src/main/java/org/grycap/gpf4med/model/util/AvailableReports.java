@@ -32,6 +32,9 @@ import java.util.List;
 public class AvailableReports {
 
 	private List<AvailableReport> reports;	
+	private Integer total;
+	private Integer offset;
+	private Integer nextOffset;
 	
 	public AvailableReports() { }
 
@@ -42,5 +45,38 @@ public class AvailableReports {
 	public void setReports(final List<AvailableReport> reports) {
 		this.reports = reports;
 	}	
+
+	/**
+	 * Number of reports that match the query, when the list is paged.
+	 */
+	public Integer getTotal() {
+		return total;
+	}
+
+	public void setTotal(final Integer total) {
+		this.total = total;
+	}
+
+	/**
+	 * Position of the first report of the page in the complete list, when the list is paged.
+	 */
+	public Integer getOffset() {
+		return offset;
+	}
+
+	public void setOffset(final Integer offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * Offset of the next page, or {@code null} when this is the last page.
+	 */
+	public Integer getNextOffset() {
+		return nextOffset;
+	}
+
+	public void setNextOffset(final Integer nextOffset) {
+		this.nextOffset = nextOffset;
+	}
 	
 }
\ No newline at end of file
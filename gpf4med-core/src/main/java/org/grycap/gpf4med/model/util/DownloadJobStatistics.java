@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med.model.util;
+
+import java.util.List;
+
+/**
+ * Progress of a download job.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public class DownloadJobStatistics {
+
+	private String id;
+	private long startTime;
+	private boolean done;
+	private double percent;
+	private List<HospitalStatistics> hospitals;
+	
+	public DownloadJobStatistics() { }
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(final String id) {
+		this.id = id;
+	}
+
+	/**
+	 * Time when the job started, in milliseconds since the epoch.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public void setStartTime(final long startTime) {
+		this.startTime = startTime;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	public void setDone(final boolean done) {
+		this.done = done;
+	}
+
+	/**
+	 * Percentage of hospitals completed.
+	 */
+	public double getPercent() {
+		return percent;
+	}
+
+	public void setPercent(final double percent) {
+		this.percent = percent;
+	}
+
+	public List<HospitalStatistics> getHospitals() {
+		return hospitals;
+	}
+
+	public void setHospitals(final List<HospitalStatistics> hospitals) {
+		this.hospitals = hospitals;
+	}
+
+}
@@ -20,10 +20,26 @@
  * that you distribute must include a readable copy of the "NOTICE" text file.
  */
 
-package org.grycap.gpf4med.event;
+package org.grycap.gpf4med.model.util;
+
+import java.util.List;
 
 /**
- * Document enqueued event.
+ * Statistics about the downloads of reports: the running jobs and the last completed job.
  * @author Erik Torres <ertorser@upv.es>
  */
-public class DocumentEnqueuedEvent extends BaseEvent { }
\ No newline at end of file
+public class DownloadStatistics {
+
+	private List<DownloadJobStatistics> jobs;
+	
+	public DownloadStatistics() { }
+
+	public List<DownloadJobStatistics> getJobs() {
+		return jobs;
+	}
+
+	public void setJobs(final List<DownloadJobStatistics> jobs) {
+		this.jobs = jobs;
+	}
+
+}
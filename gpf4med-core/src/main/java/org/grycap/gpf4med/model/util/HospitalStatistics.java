@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med.model.util;
+
+import java.util.List;
+
+/**
+ * Progress and throughput of the download of reports from a hospital.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public class HospitalStatistics {
+
+	private String center;
+	private int totalReports;
+	private int downloadedReports;
+	private int indexedReports;
+	private long bytes;
+	private double reportsPerSecond;
+	private double averageReportsPerSecond;
+	private int failedBatches;
+	private int retries;
+	private List<String> failedIds;
+	private Long etaSeconds;
+	
+	public HospitalStatistics() { }
+
+	public String getCenter() {
+		return center;
+	}
+
+	public void setCenter(final String center) {
+		this.center = center;
+	}
+
+	public int getTotalReports() {
+		return totalReports;
+	}
+
+	public void setTotalReports(final int totalReports) {
+		this.totalReports = totalReports;
+	}
+
+	/**
+	 * Reports found in the downloaded bundles, which can be less than the reports requested.
+	 */
+	public int getDownloadedReports() {
+		return downloadedReports;
+	}
+
+	public void setDownloadedReports(final int downloadedReports) {
+		this.downloadedReports = downloadedReports;
+	}
+
+	/**
+	 * Reports parsed and added to the index. A report is done when it is indexed.
+	 */
+	public int getIndexedReports() {
+		return indexedReports;
+	}
+
+	public void setIndexedReports(final int indexedReports) {
+		this.indexedReports = indexedReports;
+	}
+
+	/**
+	 * Size of the downloaded reports.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(final long bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Reports indexed per second in the last minute, which shows when the download slows down. When the 
+	 * statistics are requested less than once per minute, the rate is measured since the previous request.
+	 */
+	public double getReportsPerSecond() {
+		return reportsPerSecond;
+	}
+
+	public void setReportsPerSecond(final double reportsPerSecond) {
+		this.reportsPerSecond = reportsPerSecond;
+	}
+
+	/**
+	 * Reports indexed per second since the download from the hospital started.
+	 */
+	public double getAverageReportsPerSecond() {
+		return averageReportsPerSecond;
+	}
+
+	public void setAverageReportsPerSecond(final double averageReportsPerSecond) {
+		this.averageReportsPerSecond = averageReportsPerSecond;
+	}
+
+	public int getFailedBatches() {
+		return failedBatches;
+	}
+
+	public void setFailedBatches(final int failedBatches) {
+		this.failedBatches = failedBatches;
+	}
+
+	/**
+	 * Number of reports that were requested again after a failed batch.
+	 */
+	public int getRetries() {
+		return retries;
+	}
+
+	public void setRetries(final int retries) {
+		this.retries = retries;
+	}
+
+	/**
+	 * Identifiers of the reports that were discarded after too many failures.
+	 */
+	public List<String> getFailedIds() {
+		return failedIds;
+	}
+
+	public void setFailedIds(final List<String> failedIds) {
+		this.failedIds = failedIds;
+	}
+
+	/**
+	 * Estimated time to complete the hospital at the rate of the last minute, or {@code null} when it cannot 
+	 * be estimated (e.g. no reports were indexed in the last minute).
+	 */
+	public Long getEtaSeconds() {
+		return etaSeconds;
+	}
+
+	public void setEtaSeconds(final Long etaSeconds) {
+		this.etaSeconds = etaSeconds;
+	}
+
+}
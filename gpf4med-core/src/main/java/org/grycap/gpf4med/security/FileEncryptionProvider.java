@@ -24,13 +24,28 @@ package org.grycap.gpf4med.security;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.AlgorithmParameters;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -40,12 +55,21 @@ import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang.StringUtils;
+import org.grycap.gpf4med.security.SegmentedEncryption.SegmentReader;
+import org.grycap.gpf4med.util.MimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Provides file encryption/decryption with the AES (Advanced Encryption Standard) in Cipher Block 
- * Chaining (CBC) mode.
+ * Provides file encryption/decryption with the AES (Advanced Encryption Standard). Files are encrypted 
+ * in the segmented container described in {@link SegmentedEncryption}, which uses Galois/Counter Mode (GCM) 
+ * and can be decrypted in parallel. Files encrypted in Cipher Block Chaining (CBC) mode, which was used 
+ * before the container was introduced and is still used when GCM is not available in the platform, are 
+ * recognized because they lack the header of the container.
+ * <p>Instances are thread-safe. The key is derived from the password only once, when the instance is created,
+ * and no cipher is shared between streams: segments are processed with the cipher of the current thread, and
+ * each CBC stream creates its own cipher, since CBC keeps state between the blocks of a stream. Each file 
+ * encrypted in the container uses a fresh random nonce.
  * @author Erik Torres <ertorser@upv.es>
  * @see Cryptographic Service Provider (CSP).
  * @see Java Cryptographic Architecture (JCA).
@@ -69,12 +93,27 @@ public class FileEncryptionProvider {
 		UNLIMITED_CRYPTOGRAPHY_AVAILABLE = tmp;
 	}
 
-	private final Cipher encryptCipher;
-	private final Cipher decryptCipher;	
+	/**
+	 * Cipher text without header, encrypted with AES/CBC/PKCS5Padding.
+	 */
+	public final static int FORMAT_CBC = 0;
+
+	/**
+	 * Segmented container encrypted with AES/GCM.
+	 */
+	public final static int FORMAT_SEGMENTED_GCM = SegmentedEncryption.VERSION;
 
-	private FileEncryptionProvider(final Cipher encryptCipher, final Cipher decryptCipher) {
-		this.encryptCipher = encryptCipher;
-		this.decryptCipher = decryptCipher;
+	private final static String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+	private final static byte[] XML_DECLARATION = { '<', '?', 'x', 'm', 'l' };
+	private final static byte[] XML_UTF8_BOM = { (byte)0xef, (byte)0xbb, (byte)0xbf };
+
+	private final SecretKey secret;
+	private final byte[] initVector;
+
+	private FileEncryptionProvider(final SecretKey secret, final byte[] initVector) {
+		this.secret = secret;
+		this.initVector = initVector;
 	}	
 
 	/**
@@ -91,74 +130,242 @@ public class FileEncryptionProvider {
 		LOGGER.trace("Generated salt: " + Hex.encodeHexString(salt));		
 		final SecretKey secret = generateKey(password, salt);
 		LOGGER.trace("Generated key: " + Hex.encodeHexString(secret.getEncoded()));
-		// create encryption cipher - bouncycastle equivalent: Cipher.getInstance("AES/CBC/PKCS5Padding", "BC")
-		final Cipher encryptCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");		
+		// initialization vector needed by the CBC mode - bouncycastle equivalent: Cipher.getInstance("AES/CBC/PKCS5Padding", "BC")
+		final Cipher encryptCipher = Cipher.getInstance(CBC_TRANSFORMATION);		
 		encryptCipher.init(Cipher.ENCRYPT_MODE, secret);
-		// initialization vector needed by the CBC mode
 		final AlgorithmParameters params = encryptCipher.getParameters();		
 		final byte[] initVector = params.getParameterSpec(IvParameterSpec.class).getIV();
-		// create decryption cipher - bouncycastle equivalent: Cipher.getInstance("AES/CBC/PKCS5Padding", "BC")
-		final Cipher decryptCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");		
-		decryptCipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(initVector));
-		LOGGER.trace(String.format("Encryption/decryption ciphers were created - %s", 
-				encryptCipher.getProvider().getInfo()));
-		return new FileEncryptionProvider(encryptCipher, decryptCipher);
+		LOGGER.trace(String.format("Encryption/decryption ciphers were created - %s, segmented GCM available: %s", 
+				encryptCipher.getProvider().getInfo(), SegmentedEncryption.AVAILABLE));
+		return new FileEncryptionProvider(secret, initVector);
 	}
 
 	/**
 	 * Encrypts the message read from the specified input stream and writes the cipher text to the 
-	 * specified output stream.
+	 * specified output stream, using the segmented container when it is available in the platform.
 	 * @param fis input stream from where to read the plain text message.
 	 * @param fos output stream to where the cipher text is written.
 	 * @throws Exception if an error occurs in the execution of the operation.
 	 */
 	public void encrypt(final InputStream fis, final OutputStream fos) throws Exception {
-		CipherOutputStream cos = null;
+		encrypt(fis, fos, defaultFormat());
+	}
+
+	/**
+	 * Encrypts the message read from the specified input stream and writes the cipher text to the 
+	 * specified output stream in the specified format.
+	 * @param fis input stream from where to read the plain text message.
+	 * @param fos output stream to where the cipher text is written.
+	 * @param format either {@link #FORMAT_CBC} or {@link #FORMAT_SEGMENTED_GCM}.
+	 * @throws Exception if an error occurs in the execution of the operation.
+	 */
+	public void encrypt(final InputStream fis, final OutputStream fos, final int format) throws Exception {
+		OutputStream cos = null;
 		try {
-			cos = new CipherOutputStream(fos, encryptCipher);
-			final byte[] buffer = new byte[1024];			
-			int bytesRead = 0;			
-			while ((bytesRead = fis.read(buffer)) >= 0) {
-				cos.write(buffer, 0, bytesRead);
-			}
+			cos = newEncryptingStream(fos, format);
+			copy(fis, cos);
 			cos.flush();
 		} finally {
 			try {
 				fis.close();
 			} catch (Exception ignore) { }
 			try {
-				cos.close();
+				(cos != null ? cos : fos).close();
 			} catch (Exception ignore) { }
 		}		
 	}
 
+	/**
+	 * Creates a stream that encrypts the data written to it and writes the cipher text to the specified output
+	 * stream. Each stream uses its own cipher, so several streams can be written at the same time. Closing the 
+	 * stream writes the last block of the cipher text and closes the output stream.
+	 * @param fos output stream to where the cipher text is written.
+	 * @return a stream that encrypts the data written to it.
+	 * @throws Exception if an error occurs in the execution of the operation.
+	 */
+	public OutputStream newEncryptingStream(final OutputStream fos) throws Exception {
+		return newEncryptingStream(fos, defaultFormat());
+	}
+
+	private OutputStream newEncryptingStream(final OutputStream fos, final int format) throws Exception {
+		checkArgument(fos != null, "Uninitialized output stream");
+		checkArgument(format == FORMAT_CBC || format == FORMAT_SEGMENTED_GCM, "Unsupported format");
+		if (format == FORMAT_SEGMENTED_GCM) {
+			return SegmentedEncryption.newEncryptingStream(secret, fos, SegmentedEncryption.DEFAULT_SEGMENT_SIZE);
+		}
+		return new CipherOutputStream(fos, newCbcCipher(Cipher.ENCRYPT_MODE));
+	}
+
 	/**
 	 * Decrypts the cipher text read from the specified input stream and writes the decrypted message to 
-	 * the specified output stream.
+	 * the specified output stream. Both formats are supported.
 	 * @param inputStream input stream from where to read the cipher text.
 	 * @param outputStream output stream to where the decrypted message is written.
 	 * @throws Exception if an error occurs in the execution of the operation.
 	 */
 	public void decrypt(final InputStream fis, final OutputStream fos) throws Exception {
-		CipherOutputStream cos = null;
+		InputStream cis = null;
 		try {
-			cos = new CipherOutputStream(fos, decryptCipher);
-			final byte[] buffer = new byte[1024];			
-			int bytesRead = 0;
-			while ((bytesRead = fis.read(buffer)) >= 0) {
-				cos.write(buffer, 0, bytesRead);
-			}
-			cos.flush();
+			cis = newDecryptingStream(fis);
+			copy(cis, fos);
+			fos.flush();
 		} finally {
 			try {
-				fis.close();
+				(cis != null ? cis : fis).close();
 			} catch (Exception ignore) { }
 			try {
-				cos.close();
+				fos.close();
 			} catch (Exception ignore) { }
 		}		
 	}
 
+	/**
+	 * Creates a stream that decrypts the cipher text read from the specified input stream, so the message
+	 * can be consumed without writing it to a file. The format of the cipher text is detected from its first 
+	 * bytes. When the cipher text is a segmented container, each segment is checked as it is read, and an 
+	 * {@link IOException} is thrown when a segment was modified. Closing the stream closes the input stream.
+	 * @param fis input stream from where to read the cipher text.
+	 * @return a stream that reads the decrypted message.
+	 * @throws Exception if an error occurs in the execution of the operation.
+	 */
+	public InputStream newDecryptingStream(final InputStream fis) throws Exception {
+		checkArgument(fis != null, "Uninitialized input stream");
+		final PushbackInputStream pis = new PushbackInputStream(fis, SegmentedEncryption.HEADER_SIZE);
+		final byte[] header = new byte[SegmentedEncryption.HEADER_SIZE];
+		int count = 0, read;
+		while (count < header.length && (read = pis.read(header, count, header.length - count)) >= 0) {
+			count += read;
+		}
+		if (SegmentedEncryption.hasMagic(header, count)) {
+			return SegmentedEncryption.newDecryptingStream(secret, header, pis);
+		}
+		pis.unread(header, 0, count);
+		return new CipherInputStream(pis, newCbcCipher(Cipher.DECRYPT_MODE));
+	}
+
+	/**
+	 * Decrypts a file, decrypting the segments of the container in parallel with the specified executor. 
+	 * Files encrypted in CBC mode are decrypted sequentially in the calling thread.
+	 * @param source the encrypted file.
+	 * @param destination the file where the decrypted message is written.
+	 * @param executor the executor that runs the decryption tasks.
+	 * @throws Exception if an error occurs in the execution of the operation.
+	 */
+	public void decrypt(final File source, final File destination, final ExecutorService executor) throws Exception {
+		checkArgument(source != null, "Uninitialized source");
+		checkArgument(destination != null, "Uninitialized destination");
+		checkArgument(executor != null, "Uninitialized executor");
+		try (final SegmentReader reader = open(source)) {
+			if (reader == null) {
+				decrypt(new FileInputStream(source), new FileOutputStream(destination));
+				return;
+			}
+			try (final FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, 
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				final int parts = Math.min(reader.segments(), Runtime.getRuntime().availableProcessors());
+				final List<Future<Void>> futures = new ArrayList<>(parts);
+				for (int i = 0; i < parts; i++) {
+					final int first = (int)((long)reader.segments() * i / parts);
+					final int last = (int)((long)reader.segments() * (i + 1) / parts);
+					futures.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							final byte[] segment = new byte[reader.segmentSize()];
+							for (int index = first; index < last; index++) {
+								final ByteBuffer buffer = ByteBuffer.wrap(segment, 0, reader.read(index, segment));
+								final long position = (long)index * reader.segmentSize();
+								while (buffer.hasRemaining()) {
+									channel.write(buffer, position + buffer.position());
+								}
+							}
+							return null;
+						}
+					}));
+				}
+				try {
+					for (final Future<Void> future : futures) {
+						future.get();
+					}
+				} catch (ExecutionException e) {
+					for (final Future<Void> future : futures) {
+						future.cancel(true);
+					}
+					throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Opens an encrypted file for random access.
+	 * @param file the encrypted file.
+	 * @return a reader that decrypts any segment of the file, or {@code null} when the file is not 
+	 *         a segmented container (for example, a file encrypted in CBC mode).
+	 * @throws IOException if the file cannot be read or its header is not valid.
+	 */
+	public SegmentReader open(final File file) throws IOException {
+		return SegmentedEncryption.open(secret, file);
+	}
+
+	/**
+	 * Checks whether a file of the local cache is encrypted. The check reads a few bytes from the beginning 
+	 * of the file: files that start with the header of the segmented container are encrypted, and files that
+	 * start with an XML declaration are plain text. Only the files that match none of them, such as the files
+	 * encrypted in CBC mode, which have no header, fall back to the MIME type detected by Tika.
+	 * @param file the file to check.
+	 * @return {@code true} if the file is encrypted. Otherwise, it returns {@code false}.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static boolean isEncrypted(final File file) throws IOException {
+		checkArgument(file != null, "Uninitialized file");
+		final byte[] bytes = new byte[XML_UTF8_BOM.length + XML_DECLARATION.length];
+		int count = 0, read;
+		try (final InputStream is = new FileInputStream(file)) {
+			while (count < bytes.length && (read = is.read(bytes, count, bytes.length - count)) >= 0) {
+				count += read;
+			}
+		}
+		if (SegmentedEncryption.hasMagic(bytes, count)) {
+			return true;
+		}
+		final int offset = startsWith(bytes, count, 0, XML_UTF8_BOM) ? XML_UTF8_BOM.length : 0;
+		if (startsWith(bytes, count, offset, XML_DECLARATION)) {
+			return false;
+		}
+		return !MimeUtils.isTextFile(file);
+	}
+
+	private static boolean startsWith(final byte[] bytes, final int length, final int offset, final byte[] prefix) {
+		if (length - offset < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int defaultFormat() {
+		return SegmentedEncryption.AVAILABLE ? FORMAT_SEGMENTED_GCM : FORMAT_CBC;
+	}
+
+	private Cipher newCbcCipher(final int mode) throws Exception {
+		// bouncycastle equivalent: Cipher.getInstance("AES/CBC/PKCS5Padding", "BC")
+		final Cipher cipher = Cipher.getInstance(CBC_TRANSFORMATION);
+		cipher.init(mode, secret, new IvParameterSpec(initVector));
+		return cipher;
+	}
+
+	private static void copy(final InputStream is, final OutputStream os) throws IOException {
+		final byte[] buffer = new byte[SegmentedEncryption.DEFAULT_SEGMENT_SIZE];
+		int bytesRead = 0;
+		while ((bytesRead = is.read(buffer)) >= 0) {
+			os.write(buffer, 0, bytesRead);
+		}
+	}
+
 	/**
 	 * Creates a key that can be used with a cryptographic service provider. The key is computed from
 	 * the specified password and protected with the specified salt. 
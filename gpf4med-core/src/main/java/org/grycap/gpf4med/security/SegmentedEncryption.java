@@ -0,0 +1,485 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+
+package org.grycap.gpf4med.security;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Chunked container of files encrypted with AES in Galois/Counter Mode (GCM). The plain text is split in
+ * segments of fixed size that are encrypted and authenticated independently, so a file can be decrypted
+ * while it is read, in parallel or at random positions, and the integrity of each segment is checked when 
+ * the segment is decrypted. Layout of the version 1 of the container:
+ * <pre>
+ * header:   magic ("G4ME", 4 bytes) | version (1 byte) | segment size (4 bytes) | nonce prefix (8 bytes)
+ * segments: cipher text (up to segment size bytes) | authentication tag (16 bytes)
+ * </pre>
+ * All the segments have exactly the segment size, except the last one, which can be shorter (even empty).
+ * The nonce prefix is randomly generated for each file, and the initialization vector of each segment is 
+ * the nonce prefix followed by the index of the segment. The header and a flag that marks the last segment 
+ * are authenticated with each segment, so segments cannot be reordered, removed or moved between files.
+ * <p>Each segment is encrypted or decrypted in a single call to the cipher, so ciphers are not bound to a 
+ * stream: each thread keeps its own cipher instance, which is reused by all the streams processed in the 
+ * thread, and any number of threads can encrypt or decrypt at the same time.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public final class SegmentedEncryption {
+
+	public static final byte[] MAGIC = { 'G', '4', 'M', 'E' };
+	public static final byte VERSION = 1;
+	public static final int NONCE_PREFIX_SIZE = 8;
+	public static final int HEADER_SIZE = MAGIC.length + 1 + 4 + NONCE_PREFIX_SIZE;
+	public static final int TAG_SIZE = 16;
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+	public static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+	/**
+	 * Is set to {@code true} if the AES/GCM transformation is available in this platform.
+	 */
+	public static final boolean AVAILABLE;
+
+	static {
+		boolean tmp = false;
+		try {
+			Cipher.getInstance(TRANSFORMATION);
+			tmp = true;
+		} catch (GeneralSecurityException ignore) { }
+		AVAILABLE = tmp;
+	}
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>();
+
+	private SegmentedEncryption() { }
+
+	/**
+	 * Checks whether the specified bytes start with the magic number of the container.
+	 * @param bytes the first bytes of a file.
+	 * @param length the number of bytes available.
+	 * @return {@code true} if the bytes start with the magic number of the container.
+	 */
+	public static boolean hasMagic(final byte[] bytes, final int length) {
+		if (bytes == null || length < MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (bytes[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a stream that encrypts the data written to it, writing the container to the specified stream. 
+	 * Closing the stream writes the last segment and closes the output stream.
+	 */
+	public static OutputStream newEncryptingStream(final SecretKey key, final OutputStream os, final int segmentSize) 
+			throws IOException {
+		checkArgument(key != null, "Uninitialized key");
+		checkArgument(os != null, "Uninitialized output stream");
+		checkArgument(segmentSize > 0 && segmentSize <= MAX_SEGMENT_SIZE, "Invalid segment size");
+		final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+		RANDOM.nextBytes(noncePrefix);
+		final Header header = new Header(ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put(VERSION).putInt(segmentSize)
+				.put(noncePrefix).array());
+		return new EncryptingStream(key, header, os);
+	}
+
+	/**
+	 * Creates a stream that decrypts a container, checking the integrity of each segment as it is read.
+	 * @param key the key.
+	 * @param header the header of the container, which was already read from the stream.
+	 * @param is the stream positioned at the first segment of the container.
+	 * @return a stream that reads the plain text.
+	 * @throws IOException if the header is not valid.
+	 */
+	public static InputStream newDecryptingStream(final SecretKey key, final byte[] header, final InputStream is) 
+			throws IOException {
+		checkArgument(key != null, "Uninitialized key");
+		checkArgument(is != null, "Uninitialized input stream");
+		return new DecryptingStream(key, Header.parse(header, header != null ? header.length : 0), is);
+	}
+
+	/**
+	 * Opens a container for random access.
+	 * @param key the key.
+	 * @param file the file that contains the container.
+	 * @return a reader that can decrypt any segment of the container, or {@code null} when the file is not
+	 *         a container.
+	 * @throws IOException if the file cannot be read or the header of the container is not valid.
+	 */
+	public static SegmentReader open(final SecretKey key, final File file) throws IOException {
+		checkArgument(key != null, "Uninitialized key");
+		checkArgument(file != null, "Uninitialized file");
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+			while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) { }
+			if (!hasMagic(buffer.array(), buffer.position())) {
+				channel.close();
+				return null;
+			}
+			return new SegmentReader(key, Header.parse(buffer.array(), buffer.position()), channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static int crypt(final int mode, final SecretKey key, final Header header, 
+			final int index, final boolean last, final byte[] input, final int length, final byte[] output) 
+					throws IOException {
+		final Cipher cipher = cipher();
+		try {
+			cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, header.iv(index)));
+			cipher.updateAAD(header.bytes);
+			cipher.updateAAD(new byte[] { last ? (byte)1 : (byte)0 });
+			return cipher.doFinal(input, 0, length, output, 0);
+		} catch (AEADBadTagException e) {
+			throw new IOException("Segment " + index + " failed the integrity check", e);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to process segment " + index, e);
+		}
+	}
+
+	private static Cipher cipher() throws IOException {
+		Cipher cipher = CIPHERS.get();
+		if (cipher == null) {
+			try {
+				cipher = Cipher.getInstance(TRANSFORMATION);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("AES/GCM is not available", e);
+			}
+			CIPHERS.set(cipher);
+		}
+		return cipher;
+	}
+
+	private static int readFully(final InputStream is, final byte[] bytes) throws IOException {
+		int count = 0, read;
+		while (count < bytes.length && (read = is.read(bytes, count, bytes.length - count)) >= 0) {
+			count += read;
+		}
+		return count;
+	}
+
+	/* Inner classes */
+
+	private static class Header {
+
+		private final byte[] bytes;
+		private final int segmentSize;
+
+		public Header(final byte[] bytes) {
+			this.bytes = bytes;
+			this.segmentSize = ByteBuffer.wrap(bytes, MAGIC.length + 1, 4).getInt();
+		}
+
+		public static Header parse(final byte[] bytes, final int length) throws IOException {
+			if (length < HEADER_SIZE || !hasMagic(bytes, length)) {
+				throw new IOException("Invalid header");
+			}
+			if (bytes[MAGIC.length] != VERSION) {
+				throw new IOException("Unsupported version: " + bytes[MAGIC.length]);
+			}
+			final Header header = new Header(Arrays.copyOf(bytes, HEADER_SIZE));
+			if (header.segmentSize <= 0 || header.segmentSize > MAX_SEGMENT_SIZE) {
+				throw new IOException("Invalid segment size: " + header.segmentSize);
+			}
+			return header;
+		}
+
+		public byte[] iv(final int index) {
+			return ByteBuffer.allocate(NONCE_PREFIX_SIZE + 4).put(bytes, HEADER_SIZE - NONCE_PREFIX_SIZE, 
+					NONCE_PREFIX_SIZE).putInt(index).array();
+		}
+
+	}
+
+	private static class EncryptingStream extends OutputStream {
+
+		private final SecretKey key;
+		private final Header header;
+		private final OutputStream os;
+		private final byte[] segment;
+		private final byte[] output;
+		private int count = 0;
+		private int index = 0;
+		private boolean closed = false;
+
+		public EncryptingStream(final SecretKey key, final Header header, final OutputStream os) throws IOException {
+			this.key = key;
+			this.header = header;
+			this.os = os;
+			this.segment = new byte[header.segmentSize];
+			this.output = new byte[header.segmentSize + TAG_SIZE];
+			os.write(header.bytes);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] bytes, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			while (len > 0) {
+				// a full segment is written when more data arrives, since the last segment must be marked
+				if (count == segment.length) {
+					writeSegment(false);
+				}
+				final int n = Math.min(len, segment.length - count);
+				System.arraycopy(bytes, off, segment, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			os.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					writeSegment(true);
+					os.flush();
+				} finally {
+					os.close();
+				}
+			}
+		}
+
+		private void writeSegment(final boolean last) throws IOException {
+			final int length = crypt(Cipher.ENCRYPT_MODE, key, header, index++, last, segment, count, output);
+			os.write(output, 0, length);
+			count = 0;
+		}
+
+	}
+
+	private static class DecryptingStream extends InputStream {
+
+		private final SecretKey key;
+		private final Header header;
+		private final PushbackInputStream is;
+		private final byte[] input;
+		private final byte[] segment;
+		private int position = 0;
+		private int limit = 0;
+		private int index = 0;
+		private boolean last = false;
+
+		public DecryptingStream(final SecretKey key, final Header header, final InputStream is) throws IOException {
+			this.key = key;
+			this.header = header;
+			this.is = is instanceof PushbackInputStream ? (PushbackInputStream)is : new PushbackInputStream(is, 1);
+			this.input = new byte[header.segmentSize + TAG_SIZE];
+			this.segment = new byte[header.segmentSize];
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (position == limit) {
+				if (last) {
+					return -1;
+				}
+				readSegment();
+			}
+			final int n = Math.min(len, limit - position);
+			System.arraycopy(segment, position, bytes, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return limit - position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			is.close();
+		}
+
+		private void readSegment() throws IOException {
+			final int length = readFully(is, input);
+			if (length < TAG_SIZE) {
+				throw new EOFException("Truncated segment " + index);
+			}
+			if (length < input.length) {
+				last = true;
+			} else {
+				final int next = is.read();
+				if (next < 0) {
+					last = true;
+				} else {
+					is.unread(next);
+				}
+			}
+			limit = crypt(Cipher.DECRYPT_MODE, key, header, index++, last, input, length, segment);
+			position = 0;
+		}
+
+	}
+
+	/**
+	 * Decrypts the segments of a container stored in a file. Segments are read with positional reads, so 
+	 * several threads can decrypt different segments at the same time.
+	 */
+	public static final class SegmentReader implements Closeable {
+
+		private final SecretKey key;
+		private final Header header;
+		private final FileChannel channel;
+		private final int segments;
+		private final long size;
+
+		private SegmentReader(final SecretKey key, final Header header, final FileChannel channel) throws IOException {
+			this.key = key;
+			this.header = header;
+			this.channel = channel;
+			final long encryptedSegment = header.segmentSize + TAG_SIZE;
+			final long length = channel.size() - HEADER_SIZE;
+			final long segments = (length + encryptedSegment - 1l) / encryptedSegment;
+			final long lastLength = length - (segments - 1l) * encryptedSegment;
+			if (segments < 1l || segments > Integer.MAX_VALUE || lastLength < TAG_SIZE) {
+				throw new EOFException("Truncated container");
+			}
+			this.segments = (int)segments;
+			this.size = (segments - 1l) * header.segmentSize + lastLength - TAG_SIZE;
+		}
+
+		public int segments() {
+			return segments;
+		}
+
+		public int segmentSize() {
+			return header.segmentSize;
+		}
+
+		/**
+		 * Gets the size of the plain text.
+		 */
+		public long size() {
+			return size;
+		}
+
+		/**
+		 * Decrypts a segment.
+		 * @param index the index of the segment.
+		 * @param output the buffer where the plain text is written, which must fit a complete segment.
+		 * @return the number of bytes of plain text written to the buffer.
+		 * @throws IOException if the segment cannot be read or it fails the integrity check.
+		 */
+		public int read(final int index, final byte[] output) throws IOException {
+			checkArgument(index >= 0 && index < segments, "Invalid segment");
+			checkArgument(output != null && output.length >= header.segmentSize, "Invalid output buffer");
+			final long position = HEADER_SIZE + (long)index * (header.segmentSize + TAG_SIZE);
+			final ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(header.segmentSize + TAG_SIZE, 
+					channel.size() - position));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					throw new EOFException("Truncated segment " + index);
+				}
+			}
+			return crypt(Cipher.DECRYPT_MODE, key, header, index, index == segments - 1, buffer.array(), 
+					buffer.limit(), output);
+		}
+
+		/**
+		 * Reads plain text from any position of the file, decrypting only the segments that contain the 
+		 * requested bytes.
+		 * @param position the position in the plain text.
+		 * @param bytes the buffer where the plain text is written.
+		 * @param off the offset in the buffer.
+		 * @param len the maximum number of bytes to read.
+		 * @return the number of bytes read, or -1 when the position is at the end of the plain text.
+		 * @throws IOException if a segment cannot be read or it fails the integrity check.
+		 */
+		public int read(final long position, final byte[] bytes, final int off, final int len) throws IOException {
+			checkArgument(position >= 0l, "Invalid position");
+			if (position >= size) {
+				return -1;
+			}
+			final byte[] segment = new byte[header.segmentSize];
+			long current = position;
+			int count = 0;
+			while (count < len && current < size) {
+				final int index = (int)(current / header.segmentSize);
+				final int start = (int)(current % header.segmentSize);
+				final int length = read(index, segment);
+				final int n = Math.min(len - count, length - start);
+				System.arraycopy(segment, start, bytes, off + count, n);
+				count += n;
+				current += n;
+			}
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+	}
+
+}
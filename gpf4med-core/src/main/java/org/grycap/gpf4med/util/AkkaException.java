@@ -48,6 +48,15 @@ public class AkkaException {
 		}
 	}
 	
+	public static class DownloadJobException extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+		
+		public DownloadJobException(String msg) {
+	    	  super(msg);
+		}
+	}
+	
 	public static class ServiceUnavailable extends RuntimeException {
 		
 		private static final long serialVersionUID = 1L;
@@ -22,7 +22,13 @@
 
 package org.grycap.gpf4med.util;
 
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang.StringUtils;
 import org.grycap.gpf4med.model.document.ConceptName;
+import org.grycap.gpf4med.model.document.Document;
+import org.grycap.gpf4med.model.document.Text;
+import org.grycap.gpf4med.model.util.Id;
 
 /**
  * Utilities to handle TRENCADIS documents.
@@ -31,6 +37,8 @@ import org.grycap.gpf4med.model.document.ConceptName;
  */
 public final class DocumentUtils {
 
+	public static final String PATIENT_ID = "TRMM0003@TRENCADIS_MAMO";
+
 	public static boolean isEmpty(final ConceptName conceptName) {
 		boolean isEmpty = true;
 		if (conceptName != null) {
@@ -45,4 +53,20 @@ public final class DocumentUtils {
 		return isEmpty;
 	}
 
+	/**
+	 * Gets the identifier of the patient from the top-level fields of the document.
+	 * @param document the document.
+	 * @return the identifier of the patient, or {@code null} when the document has no patient.
+	 */
+	public static @Nullable String getPatientId(final Document document) {
+		if (document != null && document.getCONTAINER() != null && document.getCONTAINER().getCHILDREN() != null) {
+			for (final Text text : document.getCONTAINER().getCHILDREN().getTEXT()) {
+				if (text.getCONCEPTNAME() != null && PATIENT_ID.equals(Id.getId(text.getCONCEPTNAME()))) {
+					return StringUtils.trimToNull(text.getVALUE());
+				}
+			}
+		}
+		return null;
+	}
+
 }
\ No newline at end of file
@@ -72,12 +72,10 @@ public final class MimeUtils {
 		checkArgument(file != null, "Uninitialized file");
 		String mimeType = null;
 		try {
-			final TikaConfig config = TikaConfig.getDefaultConfig();
-			final Detector detector = config.getDetector();
 			TikaInputStream stream = null;
 			try {
 				stream = TikaInputStream.get(file);
-				final MediaType mediaType = detector.detect(stream, new Metadata());
+				final MediaType mediaType = DetectorHolder.DETECTOR.detect(stream, new Metadata());
 				mimeType = StringUtils.trimToNull(mediaType.getBaseType().toString());
 			} finally {
 				if (stream != null) {
@@ -97,4 +95,14 @@ public final class MimeUtils {
 		return mimeType;
 	}
 
+	/* Inner classes */
+
+	/**
+	 * Loads the default configuration of Tika and creates the detector once, the first time it is needed. 
+	 * Detectors are thread-safe.
+	 */
+	private static class DetectorHolder {
+		private static final Detector DETECTOR = TikaConfig.getDefaultConfig().getDetector();
+	}
+
 }
\ No newline at end of file
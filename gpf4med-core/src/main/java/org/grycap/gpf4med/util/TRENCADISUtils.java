@@ -27,12 +27,14 @@ import static org.grycap.gpf4med.xml.TemplateXmlBinder.TEMPLATE_XMLB;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.Vector;
 
+import org.grycap.gpf4med.DocumentLoader;
 import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.model.document.Document;
-import org.grycap.gpf4med.model.document.Documents;
 import org.grycap.gpf4med.model.template.Template;
+import org.grycap.gpf4med.xml.XmlParser.Handler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -168,30 +170,43 @@ public enum TRENCADISUtils {
 	}
 	
 	/**
-	 * Downloads from a backend the reports specified
+	 * Downloads from a backend the reports specified. The reports are split from the bundle returned by the 
+	 * backend while it is parsed, and passed to the handler one by one, without writing them to disk.
 	 * 
 	 * @param backend The backend in which is stored the reports
-	 * @param idReport The identifier of the DICOM-SR report to download
-	 * @param destination Directory in which the report will be stored
+	 * @param idReports Comma-separated list of identifiers of the DICOM-SR reports to download
+	 * @param handler Receives the reports
+	 * @throws Exception 
+	 */
+	public boolean downloadReports(BackEnd backend, String idReports, Handler<Document> handler) throws Exception {
+		String reportsData = downloadReportsData(backend, idReports);
+		if (reportsData != null) {
+			try (final StringReader reader = new StringReader(reportsData)) {
+				DocumentLoader.load(reader, handler);
+			}
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * Downloads from a backend the bundle of the reports specified, without parsing it.
+	 * 
+	 * @param backend The backend in which is stored the reports
+	 * @param idReports Comma-separated list of identifiers of the DICOM-SR reports to download
+	 * @return the XML document that contains the reports, or {@code null} when the reports were not downloaded
 	 * @throws Exception 
 	 */
-	@SuppressWarnings("null")
-	public boolean downloadReports(BackEnd backend, String idReports, String destination) throws Exception {
+	public String downloadReportsData(BackEnd backend, String idReports) throws Exception {
 		try {
 			String reportsData = backend.xmlGetAllDICOMSRFiles(idReports,
 					trencadis_session.getX509VOMSCredential());
-			if (reportsData != null || reportsData.length() > 0) {
-				Documents reports = REPORT_XMLB.typeFromXml(reportsData);
-				for (Document report : reports.getDICOMSR()) {
-					File newDest = new File(destination, "ontology_" + report.getIDOntology());
-					newDest.mkdirs();
-					REPORT_XMLB.typeToFile(report, new File(newDest + File.separator
-							+ report.getIDTRENCADISReport() + ".xml"));
-				}
-				return true;
+			if (reportsData != null && reportsData.length() > 0) {
+				return reportsData;
 			} else {
 				LOGGER.error("Reports not downloaded");
-				return false;
+				return null;
 			}
 			
 		} catch (IOException e1) {
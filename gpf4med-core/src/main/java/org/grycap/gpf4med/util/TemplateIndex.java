@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+
+package org.grycap.gpf4med.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang.StringUtils;
+import org.grycap.gpf4med.model.template.ChildrenTemplate;
+import org.grycap.gpf4med.model.template.CodeTemplate;
+import org.grycap.gpf4med.model.template.ConceptNameTemplate;
+import org.grycap.gpf4med.model.template.ContainerTemplate;
+import org.grycap.gpf4med.model.template.DateTemplate;
+import org.grycap.gpf4med.model.template.DefaultCodeValue;
+import org.grycap.gpf4med.model.template.NumTemplate;
+import org.grycap.gpf4med.model.template.Properties;
+import org.grycap.gpf4med.model.template.Template;
+import org.grycap.gpf4med.model.template.TextTemplate;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable index of the concept names declared in a template, keyed by <tt>codeValue@codeSchema</tt>. 
+ * When the same concept is declared more than once, the first declaration found in a depth-first traversal 
+ * of the template wins. Indexes are built once per template and kept while the template is reachable.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public final class TemplateIndex {
+
+	private static final LoadingCache<Template, TemplateIndex> INDEXES = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build(new CacheLoader<Template, TemplateIndex>() {
+				@Override
+				public TemplateIndex load(final Template template) {
+					return new TemplateIndex(template);
+				}				
+			});
+
+	private final ImmutableMap<String, ConceptNameTemplate> concepts;
+	private final ImmutableMap<String, String> meanings;
+	private final ImmutableMap<String, String> meaningsEs;
+	private final ImmutableMap<String, ImmutableList<ConceptNameTemplate>> codeValues;
+
+	private TemplateIndex(final Template template) {
+		final Map<String, ConceptNameTemplate> concepts = new LinkedHashMap<>();
+		final Map<String, ImmutableList<ConceptNameTemplate>> codeValues = new LinkedHashMap<>();
+		if (template.getCONTAINER() != null) {
+			index(template.getCONTAINER(), concepts, codeValues);
+		}
+		final ImmutableMap.Builder<String, String> meanings = new ImmutableMap.Builder<>();
+		final ImmutableMap.Builder<String, String> meaningsEs = new ImmutableMap.Builder<>();
+		for (final Map.Entry<String, ConceptNameTemplate> entry : concepts.entrySet()) {
+			if (entry.getValue().getCODEMEANING2() != null) {
+				meanings.put(entry.getKey(), entry.getValue().getCODEMEANING2());
+			}
+			if (entry.getValue().getCODEMEANING() != null) {
+				meaningsEs.put(entry.getKey(), entry.getValue().getCODEMEANING());
+			}
+		}
+		this.concepts = ImmutableMap.copyOf(concepts);
+		this.meanings = meanings.build();
+		this.meaningsEs = meaningsEs.build();
+		this.codeValues = ImmutableMap.copyOf(codeValues);
+	}
+
+	/**
+	 * Gets the index of the specified template, creating a new index when the template is not indexed yet.
+	 * @param template the template.
+	 * @return the index of the template.
+	 */
+	public static TemplateIndex of(final Template template) {
+		checkArgument(template != null, "Uninitialized or invalid template");
+		try {
+			return INDEXES.get(template);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	public @Nullable ConceptNameTemplate getConceptName(final String id) {
+		return concepts.get(id);
+	}
+
+	/**
+	 * Gets the meaning of a concept in the language of the specified locale. Spanish meanings are returned 
+	 * for the Spanish locale, English meanings otherwise.
+	 */
+	public @Nullable String getMeaning(final String id, final @Nullable Locale locale) {
+		return locale != null && "ES".equalsIgnoreCase(locale.getLanguage()) ? meaningsEs.get(id) : meanings.get(id);
+	}
+
+	/**
+	 * Gets the values that can be assigned to the code field identified by the specified concept name.
+	 */
+	public ImmutableList<ConceptNameTemplate> getCodeValues(final String codeId) {
+		final ImmutableList<ConceptNameTemplate> values = codeValues.get(codeId);
+		return values != null ? values : ImmutableList.<ConceptNameTemplate>of();
+	}
+
+	public int size() {
+		return concepts.size();
+	}
+
+	public static @Nullable String key(final @Nullable ConceptNameTemplate conceptName) {
+		if (conceptName == null || StringUtils.isBlank(conceptName.getCODEVALUE()) 
+				|| StringUtils.isBlank(conceptName.getCODESCHEMA())) {
+			return null;
+		}
+		return conceptName.getCODEVALUE().trim() + "@" + conceptName.getCODESCHEMA().trim();
+	}
+
+	private static void index(final ContainerTemplate item, final Map<String, ConceptNameTemplate> concepts, 
+			final Map<String, ImmutableList<ConceptNameTemplate>> codeValues) {
+		put(item.getCONCEPTNAME(), concepts);
+		final Properties properties = item.getPROPERTIES();
+		if (properties != null) {
+			final DefaultCodeValue defaultCodeValue = properties.getDEFAULTCODEVALUE();
+			if (defaultCodeValue != null) {
+				put(new ConceptNameTemplate().withCODEVALUE(defaultCodeValue.getCodeValue())
+						.withCODESCHEMA(defaultCodeValue.getCodeSchema())
+						.withCODEMEANING(defaultCodeValue.getCodeMeaning())
+						.withCODEMEANING2(defaultCodeValue.getCodeMeaning2()), concepts);
+			}
+			if (properties.getCODEVALUES() != null) {
+				for (final ConceptNameTemplate conceptName : properties.getCODEVALUES().getCONCEPTNAME()) {
+					put(conceptName, concepts);
+				}
+			}
+		}
+		final ChildrenTemplate children = item.getCHILDREN();
+		if (children == null) {
+			return;
+		}
+		for (final CodeTemplate code : children.getCODE()) {
+			put(code.getCONCEPTNAME(), concepts);
+			if (code.getPROPERTIES() != null && code.getPROPERTIES().getCODEVALUES() != null) {
+				final ImmutableList<ConceptNameTemplate> values = ImmutableList.copyOf(
+						code.getPROPERTIES().getCODEVALUES().getCONCEPTNAME());
+				for (final ConceptNameTemplate conceptName : values) {
+					put(conceptName, concepts);
+				}
+				final String id = key(code.getCONCEPTNAME());
+				if (id != null && !codeValues.containsKey(id)) {
+					codeValues.put(id, values);
+				}
+			}
+		}
+		for (final DateTemplate date : children.getDATE()) {
+			put(date.getCONCEPTNAME(), concepts);
+		}
+		for (final NumTemplate num : children.getNUM()) {
+			put(num.getCONCEPTNAME(), concepts);
+			if (num.getPROPERTIES() != null && num.getPROPERTIES().getUNITMEASUREMENT() != null) {
+				put(num.getPROPERTIES().getUNITMEASUREMENT().getCONCEPTNAME(), concepts);
+			}
+		}
+		for (final TextTemplate text : children.getTEXT()) {
+			put(text.getCONCEPTNAME(), concepts);
+		}
+		for (final ContainerTemplate child : children.getCONTAINER()) {
+			index(child, concepts, codeValues);
+		}
+	}
+
+	private static void put(final @Nullable ConceptNameTemplate conceptName, 
+			final Map<String, ConceptNameTemplate> concepts) {
+		final String id = key(conceptName);
+		if (id != null && !concepts.containsKey(id)) {
+			concepts.put(id, conceptName);
+		}
+	}
+
+}
@@ -31,15 +31,10 @@ import java.util.Objects;
 import javax.annotation.Nullable;
 
 import org.apache.commons.lang.StringUtils;
-import org.grycap.gpf4med.model.template.ChildrenTemplate;
-import org.grycap.gpf4med.model.template.CodeTemplate;
 import org.grycap.gpf4med.model.template.ConceptNameTemplate;
-import org.grycap.gpf4med.model.template.ContainerTemplate;
-import org.grycap.gpf4med.model.template.DateTemplate;
-import org.grycap.gpf4med.model.template.NumTemplate;
-import org.grycap.gpf4med.model.template.Properties;
 import org.grycap.gpf4med.model.template.Template;
-import org.grycap.gpf4med.model.template.TextTemplate;
+
+import com.google.common.collect.ImmutableList;
 
 /**
  * Utilities to handle TRENCADIS templates.
@@ -48,108 +43,34 @@ import org.grycap.gpf4med.model.template.TextTemplate;
  */
 public class TemplateUtils {
 
+	/**
+	 * Gets the meaning of a concept declared in the template. The concept is looked up in the index 
+	 * of the template (see {@link TemplateIndex}).
+	 * @param conceptName the concept name.
+	 * @param template the template where the concept is declared.
+	 * @param locale the language of the meaning. English is used by default.
+	 * @return the meaning of the concept, or {@code null} when the concept is not found in the template.
+	 */
 	public @Nullable static String getMeaning(final ConceptNameTemplate conceptName, final Template template,
 			final @Nullable Locale locale) {
 		checkArgument(conceptName != null, "Uninitialized or invalid concept name");
 		final String id = conceptName.getCODEVALUE();
 		checkState(StringUtils.isNotBlank(id), "Concept name id is invalid");
 		checkArgument(template != null, "Uninitialized or invalid template");
-		final ConceptNameTemplate found = find(conceptName, template.getCONTAINER());
-		if (found != null) {
-			return (locale != null && "ES".equalsIgnoreCase(locale.getLanguage()) 
-					? found.getCODEMEANING() : found.getCODEMEANING2());				
-		}
-		return null;
+		final String key = TemplateIndex.key(conceptName);
+		return key != null ? TemplateIndex.of(template).getMeaning(key, locale) : null;
 	}
 
-	private static @Nullable ConceptNameTemplate find(final ConceptNameTemplate conceptName,
-			final ContainerTemplate item) {
-		ConceptNameTemplate found = null;
-		// base case
-		if (equalsIgnoreNoReferenceable(conceptName, item.getCONCEPTNAME())) {
-			found = item.getCONCEPTNAME();
-		}
-		if (found == null && item.getPROPERTIES() != null) {
-			final Properties properties = item.getPROPERTIES();
-			if (properties.getDEFAULTCODEVALUE() != null) {
-				ConceptNameTemplate defaultConceptName = new ConceptNameTemplate();
-				defaultConceptName.setCODESCHEMA(properties.getDEFAULTCODEVALUE().getCodeSchema());
-				defaultConceptName.setCODEVALUE(properties.getDEFAULTCODEVALUE().getCodeValue());
-				defaultConceptName.setCODEMEANING(properties.getDEFAULTCODEVALUE().getCodeMeaning());
-				defaultConceptName.setCODEMEANING2(properties.getDEFAULTCODEVALUE().getCodeMeaning2());
-				if (equalsIgnoreNoReferenceable(conceptName, defaultConceptName)) {
-					found = defaultConceptName;	
-				}
-			}		
-			if (found == null && properties.getCODEVALUES() != null) {
-				for (final ConceptNameTemplate cn : properties.getCODEVALUES().getCONCEPTNAME()) {
-					if (equalsIgnoreNoReferenceable(conceptName, cn)) {
-						found = cn;
-						break;
-					}
-				}
-			}
-		}
-		if (found == null && item.getCHILDREN() != null) {
-			ChildrenTemplate childrenTemplate = item.getCHILDREN();
-			if (childrenTemplate.getCODE() != null) {
-				for (final CodeTemplate code : childrenTemplate.getCODE()) {
-					if (equalsIgnoreNoReferenceable(conceptName, code.getCONCEPTNAME())) {
-						found = code.getCONCEPTNAME();
-						break;
-					}
-					if (code.getPROPERTIES().getCODEVALUES() != null) {
-						for (final ConceptNameTemplate cn : code.getPROPERTIES().getCODEVALUES().getCONCEPTNAME()) {
-							if (equalsIgnoreNoReferenceable(conceptName, cn)) {
-								found = cn;
-								break;
-							}
-						}
-					}
-				}
-			}
-			if (childrenTemplate.getDATE() != null) {
-				for (final DateTemplate date : childrenTemplate.getDATE()) {
-					if (equalsIgnoreNoReferenceable(conceptName, date.getCONCEPTNAME())) {
-						found = date.getCONCEPTNAME();
-						break;
-					}
-				}			
-			}
-			if (childrenTemplate.getNUM() != null) {
-				for (final NumTemplate num : childrenTemplate.getNUM()) {
-					if (equalsIgnoreNoReferenceable(conceptName, num.getCONCEPTNAME())) {
-						found = num.getCONCEPTNAME();
-						break;
-					}
-					if (num.getPROPERTIES().getUNITMEASUREMENT() != null) {
-						final ConceptNameTemplate conceptNameCode = num.getPROPERTIES().getUNITMEASUREMENT().getCONCEPTNAME();
-						if (equalsIgnoreNoReferenceable(conceptName, conceptNameCode)) {
-							found = conceptNameCode;
-							break;
-						}
-					}
-				}
-			}
-			if (childrenTemplate.getTEXT() != null) {
-				for (final TextTemplate text : childrenTemplate.getTEXT()) {
-					if (equalsIgnoreNoReferenceable(conceptName, text.getCONCEPTNAME())) {
-						found = text.getCONCEPTNAME();
-						break;
-					}
-				}
-			}
-		}
-		// recursive case
-		if (found == null && item instanceof ContainerTemplate) {
-			for (final ContainerTemplate item2 : ((ContainerTemplate)item).getCHILDREN().getCONTAINER()) {
-				found = find(conceptName, item2);
-				if (found != null) {
-					break;
-				}
-			}
-		}
-		return found;
+	/**
+	 * Gets the values that can be assigned to the code field identified by the specified concept name.
+	 * @param codeId the concept name of the field (e.g. <tt>RID36027@RADLEX</tt>).
+	 * @param template the template where the field is declared.
+	 * @return the values of the field, or an empty list when the field is not found in the template.
+	 */
+	public static ImmutableList<ConceptNameTemplate> getCodeValues(final String codeId, final Template template) {
+		checkArgument(StringUtils.isNotBlank(codeId), "Uninitialized or invalid code id");
+		checkArgument(template != null, "Uninitialized or invalid template");
+		return TemplateIndex.of(template).getCodeValues(codeId);
 	}
 	
 	public static boolean equalsIgnoreNoReferenceable(
@@ -4,16 +4,19 @@ import static javax.xml.bind.JAXBContext.newInstance;
 import static javax.xml.bind.JAXBIntrospector.getValue;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 
 import javax.xml.bind.JAXBContext;
@@ -21,19 +24,28 @@ import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.JAXBIntrospector;
 import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
 
 import org.slf4j.Logger;
 
 /**
- * Provides a template for implementing XML binding classes.
+ * Provides a template for implementing XML binding classes. Marshallers and unmarshallers are not
+ * thread-safe, so each thread keeps its own instances, which are reused in subsequent calls. Files
+ * and streams are always written in UTF-8, and read with the encoding declared in the XML document
+ * (UTF-8 by default).
  */
 public abstract class XmlBinder {
 
 	private final static Logger LOGGER = getLogger(XmlBinder.class);
 
+	public static final int BUFFER_SIZE = 64 * 1024;
+
 	protected final JAXBContext context;
 	protected final JAXBIntrospector introspector;
 
+	private final ThreadLocal<Marshaller> marshallers = new ThreadLocal<Marshaller>();
+	private final ThreadLocal<Unmarshaller> unmarshallers = new ThreadLocal<Unmarshaller>();
+
 	public XmlBinder(final Class<?>[] supportedClasses) {
 		JAXBContext context2 = null;
 		JAXBIntrospector introspector2 = null;
@@ -53,7 +65,7 @@ public abstract class XmlBinder {
 
 	public <T> String typeToXml(final T obj) throws IOException {
 		try (final StringWriter writer = new StringWriter()) {
-			final Marshaller marshaller = context.createMarshaller();
+			final Marshaller marshaller = marshaller(false);
 			if (null == introspector.getElementName(obj)) {
 				marshaller.marshal(createType(obj), writer);
 			} else {
@@ -68,55 +80,128 @@ public abstract class XmlBinder {
 	@SuppressWarnings("unchecked")
 	public <T> T typeFromXml(final String payload) throws IOException {
 		try (final StringReader reader = new StringReader(payload)) {
-			return (T) getValue(context.createUnmarshaller().unmarshal(reader));
+			return (T) getValue(unmarshaller().unmarshal(reader));
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
 	}
 
+	public <T> byte[] typeToBytes(final T obj) throws IOException {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		marshal(obj, os, false);
+		return os.toByteArray();
+	}
+
+	public <T> T typeFromBytes(final byte[] payload) throws IOException {
+		return unmarshal(new ByteArrayInputStream(payload));
+	}
+
+	/**
+	 * Reads an object from the remaining bytes of the buffer, without copying them. The position of the
+	 * buffer is not modified.
+	 */
+	public <T> T typeFromByteBuffer(final ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			return unmarshal(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					buffer.remaining()));
+		}
+		return unmarshal(new ByteBufferInputStream(buffer.duplicate()));
+	}
+
 	public <T> void typeToFile(final T obj, final File file) throws IOException {
-		try (final FileWriter writer = new FileWriter(file, false)) {
-			final Marshaller marshaller = context.createMarshaller();
-			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-			if (null == introspector.getElementName(obj)) {
-				marshaller.marshal(createType(obj), writer);
-			} else {
-				marshaller.marshal(obj, writer);
-			}			
-		} catch (JAXBException e) {
-			throw new IOException(e);
-		}		
+		try (final OutputStream os = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE)) {
+			marshal(obj, os, true);
+		}
 	}
 
-	@SuppressWarnings("unchecked")
 	public <T> T typeFromFile(final File file) throws IOException {
-		try (final FileReader reader = new FileReader(file)) {
-			return (T) getValue(context.createUnmarshaller().unmarshal(reader));			
-		} catch (JAXBException e) {
-			throw new IOException(e);
+		try (final InputStream is = new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE)) {
+			return unmarshal(is);
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	public <T> T typeFromInputStream(final InputStream is) throws IOException {
-		try (final InputStreamReader reader = new InputStreamReader(is)) {
-			return (T) getValue(context.createUnmarshaller().unmarshal(reader));
-		} catch (Exception e) {
-			throw new IOException(e);
+		try (final InputStream bis = new BufferedInputStream(is, BUFFER_SIZE)) {
+			return unmarshal(bis);
 		}
 	}
 
 	public <T> void typeToOutputStream(final T obj, final OutputStream os) throws IOException {
-		try (final OutputStreamWriter writer = new OutputStreamWriter(os)) {
-			final Marshaller marshaller = context.createMarshaller();			
+		try (final OutputStream bos = new BufferedOutputStream(os, BUFFER_SIZE)) {
+			marshal(obj, bos, false);
+		}
+	}
+
+	private <T> void marshal(final T obj, final OutputStream os, final boolean formatted) throws IOException {
+		try {
+			final Marshaller marshaller = marshaller(formatted);
 			if (null == introspector.getElementName(obj)) {
-				marshaller.marshal(createType(obj), writer);
+				marshaller.marshal(createType(obj), os);
 			} else {
-				marshaller.marshal(obj, writer);
-			}			
+				marshaller.marshal(obj, os);
+			}
+		} catch (JAXBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T unmarshal(final InputStream is) throws IOException {
+		try {
+			return (T) getValue(unmarshaller().unmarshal(is));
 		} catch (JAXBException e) {
 			throw new IOException(e);
-		}		
+		}
+	}
+
+	private Marshaller marshaller(final boolean formatted) throws JAXBException {
+		Marshaller marshaller = marshallers.get();
+		if (marshaller == null) {
+			marshaller = context.createMarshaller();
+			marshaller.setProperty(Marshaller.JAXB_ENCODING, StandardCharsets.UTF_8.name());
+			marshallers.set(marshaller);
+		}
+		marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, formatted);
+		return marshaller;
+	}
+
+	private Unmarshaller unmarshaller() throws JAXBException {
+		Unmarshaller unmarshaller = unmarshallers.get();
+		if (unmarshaller == null) {
+			unmarshaller = context.createUnmarshaller();
+			unmarshallers.set(unmarshaller);
+		}
+		return unmarshaller;
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		public ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int off, final int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final int count = Math.min(len, buffer.remaining());
+			buffer.get(bytes, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
 	}
 
-}
\ No newline at end of file
+}
@@ -23,9 +23,14 @@
 package org.grycap.gpf4med.xml;
 
 import java.io.File;
+import java.io.InputStream;
+import java.io.Reader;
 import java.util.ArrayDeque;
 import java.util.Deque;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.XMLEvent;
 
 /**
@@ -34,6 +39,24 @@ import javax.xml.stream.events.XMLEvent;
  */
 public abstract class XmlParser<T> {
 
+	/**
+	 * Receives the items as soon as they are parsed.
+	 */
+	public static interface Handler<T> {
+		void handle(T item) throws Exception;
+	}
+
+	private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			final XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			return factory;
+		}
+	};
+
 	protected final File file;
 
 	protected final Deque<Object> stack = new ArrayDeque<Object>();	
@@ -42,6 +65,36 @@ public abstract class XmlParser<T> {
 		this.file = file;
 	}	
 	
+	/**
+	 * Creates a new stream reader. The encoding is read from the XML declaration of the input.
+	 */
+	protected static XMLStreamReader createReader(final InputStream is) throws XMLStreamException {
+		return INPUT_FACTORY.get().createXMLStreamReader(is);
+	}
+
+	/**
+	 * Creates a new stream reader from a source of characters.
+	 */
+	protected static XMLStreamReader createReader(final Reader reader) throws XMLStreamException {
+		return INPUT_FACTORY.get().createXMLStreamReader(reader);
+	}
+
+	/**
+	 * Skips the current element, including its descendants. On return, the reader is positioned at the 
+	 * end of the element.
+	 */
+	protected static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			final int eventType = reader.next();
+			if (eventType == XMLEvent.START_ELEMENT) {
+				depth++;
+			} else if (eventType == XMLEvent.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
 	public final static String getEventTypeString(final int eventType) {
 		switch (eventType){
 		case XMLEvent.START_ELEMENT:
@@ -38,7 +38,7 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({ LogManagerTest.class, URLUtilsTest.class, TemplateUtilsTest.class,
 	ReportUtilsTest.class, DownloadServiceTest.class, FileEncryptionProviderTest.class,
 	TemplateLoadingTest.class, ReportLoadingTest.class, XmlReportBindingTest.class,
-	XmlTemplateBindingTest.class })
+	XmlTemplateBindingTest.class, PipelineStageTest.class })
 public class AllUnitTests {
 
 	public static final String ANCHOR_FILENAME = "m2anchor";
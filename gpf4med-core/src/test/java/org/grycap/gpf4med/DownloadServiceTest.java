@@ -62,7 +62,8 @@ public class DownloadServiceTest {
 	@Test
 	public void test() {
 		System.out.println("DownloadServiceTest.test()");
-		try {
+		// the same service (and its pool of connections) is used in all the downloads
+		try (final DownloadService downloadService = new DownloadService()) {
 			// prepare input requests
 			final String[] uris = { 
 					"http://www.chromix.com/downloadarea/testimages/frontier_color57sb.jpg",
@@ -83,7 +84,7 @@ public class DownloadServiceTest {
 					.put(new URI(uris[1]), uriToFile(uris[1]))
 					.put(new URI(uris[2]), uriToFile(uris[2]))
 					.build();
-			final ImmutableMap<URI, File> pending = new DownloadService().download(requests, null, 
+			final ImmutableMap<URI, File> pending = downloadService.download(requests, null, 
 					null, null);
 			assertThat("service response is not null", pending, notNullValue());
 			assertThat("there are no pending requests", pending.size(), equalTo(0));
@@ -98,7 +99,7 @@ public class DownloadServiceTest {
 			FileUtils.deleteQuietly(TEST_OUTPUT_DIR);
 			final FileEncryptionProvider encryptionProvider = FileEncryptionProvider.getInstance(
 					RandomStringUtils.randomAscii(1024));
-			final ImmutableMap<URI, File> pending2 = new DownloadService().download(requests, null, 
+			final ImmutableMap<URI, File> pending2 = downloadService.download(requests, null, 
 					encryptionProvider, null);
 			assertThat("service response is not null", pending2, notNullValue());
 			assertThat("there are no pending requests", pending2.size(), equalTo(0));
@@ -118,7 +119,7 @@ public class DownloadServiceTest {
 			final String anyFile = uris[0];
 			final FileValidator alwaysFailValidator = mock(FileValidator.class);
 			when(alwaysFailValidator.isValid(any(File.class))).thenReturn(false);			
-			final ImmutableMap<URI, File> pending3 = new DownloadService().download(new ImmutableMap.Builder<URI, File>()
+			final ImmutableMap<URI, File> pending3 = downloadService.download(new ImmutableMap.Builder<URI, File>()
 					.put(new URI(anyFile), new File(TEST_OUTPUT_DIR, "any_file")).build(),
 					alwaysFailValidator, null, null);
 			assertThat("service response is not null", pending3, notNullValue());
@@ -131,6 +132,28 @@ public class DownloadServiceTest {
 		}
 	}
 
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		System.out.println("DownloadServiceTest.testCircuitBreaker()");
+		final DownloadService.CircuitBreaker breaker = new DownloadService.CircuitBreaker(2, 100l);
+		assertThat("closed circuit allows requests", breaker.acquire(), equalTo(0l));
+		breaker.failed();
+		assertThat("circuit is closed before reaching the maximum failures", breaker.acquire(), equalTo(0l));
+		breaker.failed();
+		assertThat("open circuit delays requests", breaker.acquire() > 0l, equalTo(true));
+		Thread.sleep(150l);
+		// half-open: a single request checks the server
+		assertThat("first request checks the server", breaker.acquire(), equalTo(0l));
+		assertThat("other requests wait for the check", breaker.acquire() > 0l, equalTo(true));
+		// the check is cancelled (e.g. the deadline expired) without a response from the server
+		breaker.released();
+		assertThat("next request checks the server", breaker.acquire(), equalTo(0l));
+		breaker.succeeded();
+		assertThat("circuit is closed after a successful check", breaker.acquire(), equalTo(0l));
+		assertThat("circuit is closed after a successful check", breaker.acquire(), equalTo(0l));
+		System.out.println("DownloadServiceTest.testCircuitBreaker() has finished");
+	}
+
 	@After
 	public void cleanUp() {
 		FileUtils.deleteQuietly(TEST_OUTPUT_DIR);
@@ -28,15 +28,32 @@ import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
 import org.grycap.gpf4med.security.FileEncryptionProvider;
+import org.grycap.gpf4med.security.SegmentedEncryption;
+import org.grycap.gpf4med.security.SegmentedEncryption.SegmentReader;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -100,6 +117,146 @@ public class FileEncryptionProviderTest {
 		}
 	}
 
+	@Test
+	public void testFormats() {
+		System.out.println("FileEncryptionProviderTest.testFormats()");
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final FileEncryptionProvider provider = FileEncryptionProvider.getInstance(
+					RandomStringUtils.randomAscii(1024));
+			// several segments, the last one incomplete
+			final byte[] message = new byte[3 * SegmentedEncryption.DEFAULT_SEGMENT_SIZE + 1001];
+			new Random().nextBytes(message);
+
+			// legacy files encrypted in CBC mode are still readable
+			ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+			provider.encrypt(new ByteArrayInputStream(message), encrypted, FileEncryptionProvider.FORMAT_CBC);
+			assertThat("CBC file has no header", SegmentedEncryption.hasMagic(encrypted.toByteArray(), encrypted.size()), 
+					equalTo(false));
+			assertThat("CBC file is decrypted", decrypt(provider, encrypted.toByteArray()), equalTo(message));
+
+			if (!SegmentedEncryption.AVAILABLE) {
+				System.out.println("AES/GCM is not available, skipping the segmented container");
+				return;
+			}
+
+			// segmented container
+			encrypted = new ByteArrayOutputStream();
+			provider.encrypt(new ByteArrayInputStream(message), encrypted);
+			final byte[] container = encrypted.toByteArray();
+			assertThat("container has header", SegmentedEncryption.hasMagic(container, container.length));
+			assertThat("container is decrypted", decrypt(provider, container), equalTo(message));
+			assertThat("empty container is decrypted", decrypt(provider, encrypt(provider, new byte[0])), 
+					equalTo(new byte[0]));
+
+			// parallel and random-access decryption
+			final File encryptedFile = new File(TEST_OUTPUT_DIR, "encrypted.bin");
+			final File clearFile = new File(TEST_OUTPUT_DIR, "clear.bin");
+			FileUtils.writeByteArrayToFile(encryptedFile, container);
+			assertThat("container is recognized as encrypted", FileEncryptionProvider.isEncrypted(encryptedFile));
+			FileUtils.write(clearFile, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><DICOM_SR/>");
+			assertThat("XML document is recognized as plain text", FileEncryptionProvider.isEncrypted(clearFile), 
+					equalTo(false));
+			provider.decrypt(encryptedFile, clearFile, executor);
+			assertThat("container is decrypted in parallel", FileUtils.readFileToByteArray(clearFile), equalTo(message));
+			try (final SegmentReader reader = provider.open(encryptedFile)) {
+				assertThat("reader is not null", reader, notNullValue());
+				assertThat("plain text size", reader.size(), equalTo((long)message.length));
+				final int position = 2 * SegmentedEncryption.DEFAULT_SEGMENT_SIZE - 10;
+				final byte[] bytes = new byte[100];
+				assertThat("bytes read", reader.read(position, bytes, 0, bytes.length), equalTo(bytes.length));
+				assertThat("random access", bytes, equalTo(Arrays.copyOfRange(message, position, position + bytes.length)));
+			}
+
+			// tampered segments and truncated containers are detected
+			try (final RandomAccessFile raf = new RandomAccessFile(encryptedFile, "rw")) {
+				final long position = SegmentedEncryption.HEADER_SIZE + SegmentedEncryption.DEFAULT_SEGMENT_SIZE + 7;
+				raf.seek(position);
+				final int b = raf.read();
+				raf.seek(position);
+				raf.write(b ^ 0x01);
+			}
+			try {
+				provider.decrypt(encryptedFile, clearFile, executor);
+				fail("tampered segment was not detected");
+			} catch (IOException expected) { }
+			try {
+				decrypt(provider, Arrays.copyOf(container, SegmentedEncryption.HEADER_SIZE 
+						+ 2 * (SegmentedEncryption.DEFAULT_SEGMENT_SIZE + SegmentedEncryption.TAG_SIZE)));
+				fail("truncated container was not detected");
+			} catch (IOException expected) { }
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			fail("FileEncryptionProviderTest.testFormats() failed: " + e.getMessage());
+		} finally {
+			executor.shutdownNow();
+			System.out.println("FileEncryptionProviderTest.testFormats() has finished");
+		}
+	}
+
+	@Test
+	public void testConcurrency() {
+		System.out.println("FileEncryptionProviderTest.testConcurrency()");
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final FileEncryptionProvider provider = FileEncryptionProvider.getInstance(
+					RandomStringUtils.randomAscii(1024));
+			// streams interleaved in the same thread
+			final byte[] message1 = new byte[2 * SegmentedEncryption.DEFAULT_SEGMENT_SIZE + 17];
+			final byte[] message2 = new byte[message1.length];
+			new Random().nextBytes(message1);
+			new Random().nextBytes(message2);
+			final ByteArrayOutputStream encrypted1 = new ByteArrayOutputStream();
+			final ByteArrayOutputStream encrypted2 = new ByteArrayOutputStream();
+			try (final OutputStream os1 = provider.newEncryptingStream(encrypted1);
+					final OutputStream os2 = provider.newEncryptingStream(encrypted2)) {
+				for (int i = 0; i < message1.length; i += 1000) {
+					os1.write(message1, i, Math.min(1000, message1.length - i));
+					os2.write(message2, i, Math.min(1000, message2.length - i));
+				}
+			}
+			assertThat("first interleaved stream is decrypted", decrypt(provider, encrypted1.toByteArray()), 
+					equalTo(message1));
+			assertThat("second interleaved stream is decrypted", decrypt(provider, encrypted2.toByteArray()), 
+					equalTo(message2));
+
+			// many threads sharing the provider
+			final List<Future<Boolean>> futures = new ArrayList<>();
+			for (int i = 0; i < 64; i++) {
+				futures.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						final Random random = new Random();
+						final byte[] message = new byte[random.nextInt(4 * SegmentedEncryption.DEFAULT_SEGMENT_SIZE)];
+						random.nextBytes(message);
+						return Arrays.equals(message, decrypt(provider, encrypt(provider, message)));
+					}
+				}));
+			}
+			for (final Future<Boolean> future : futures) {
+				assertThat("message is decrypted", future.get(), equalTo(true));
+			}
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			fail("FileEncryptionProviderTest.testConcurrency() failed: " + e.getMessage());
+		} finally {
+			executor.shutdownNow();
+			System.out.println("FileEncryptionProviderTest.testConcurrency() has finished");
+		}
+	}
+
+	private static byte[] encrypt(final FileEncryptionProvider provider, final byte[] message) throws Exception {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		provider.encrypt(new ByteArrayInputStream(message), os);
+		return os.toByteArray();
+	}
+
+	private static byte[] decrypt(final FileEncryptionProvider provider, final byte[] encrypted) throws Exception {
+		try (final InputStream is = provider.newDecryptingStream(new ByteArrayInputStream(encrypted))) {
+			return IOUtils.toByteArray(is);
+		}
+	}
+
 	@After
 	public void cleanUp() {
 		FileUtils.deleteQuietly(TEST_OUTPUT_DIR);
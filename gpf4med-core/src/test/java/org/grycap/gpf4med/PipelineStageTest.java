@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.grycap.gpf4med.exec.PipelineStage;
+import org.junit.Test;
+
+/**
+ * Tests pipeline stages.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public class PipelineStageTest {
+
+	private static final int ITEMS = 1000;
+
+	@Test
+	public void test() {
+		System.out.println("PipelineStageTest.test()");
+		PipelineStage<Integer, Integer> squareStage = null;
+		PipelineStage<Integer, Void> sumStage = null;
+		try {
+			final CountDownLatch latch = new CountDownLatch(ITEMS);
+			final AtomicInteger sum = new AtomicInteger(0);
+			final AtomicInteger failed = new AtomicInteger(0);
+			// small queues force producers to wait for consumers
+			squareStage = new PipelineStage<Integer, Integer>("square", 2, 4) {
+				@Override
+				protected Integer process(final Integer item) throws Exception {
+					if (item % 10 == 0) {
+						throw new IllegalArgumentException("Rejected item: " + item);
+					}
+					return item * item;
+				}
+				@Override
+				protected void failed(final Integer item, final Exception cause) {
+					failed.incrementAndGet();
+					latch.countDown();
+				}
+			};
+			sumStage = new PipelineStage<Integer, Void>("sum", 2, 1) {
+				@Override
+				protected Void process(final Integer item) throws Exception {
+					sum.addAndGet(item);
+					latch.countDown();
+					return null;
+				}
+			};
+			sumStage.start(null);
+			squareStage.start(sumStage);
+			int expected = 0;
+			for (int i = 1; i <= ITEMS; i++) {
+				squareStage.put(i);
+				if (i % 10 != 0) {
+					expected += i * i;
+				}
+			}
+			assertThat("all items processed", latch.await(30l, TimeUnit.SECONDS));
+			assertThat("failed items coincides with expected", failed.get(), equalTo(ITEMS / 10));
+			assertThat("sum coincides with expected", sum.get(), equalTo(expected));
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			fail("PipelineStageTest.test() failed: " + e.getMessage());
+		} finally {
+			try {
+				if (squareStage != null) {
+					squareStage.close();
+				}
+				if (sumStage != null) {
+					sumStage.close();
+				}
+			} catch (Exception ignore) { }
+			System.out.println("PipelineStageTest.test() has finished");
+		}
+	}
+
+}
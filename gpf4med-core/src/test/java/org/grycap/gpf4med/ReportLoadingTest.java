@@ -22,15 +22,22 @@
 
 package org.grycap.gpf4med;
 
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
 import org.grycap.gpf4med.model.document.Document;
 import org.grycap.gpf4med.util.TestUtils;
 import org.junit.Test;
 
 import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 /**
  * Test report loading.
@@ -45,14 +52,14 @@ public class ReportLoadingTest {
 		try {
 			// load reports
 			TestUtils.getReportFiles();
-			final ImmutableCollection<Document> reports = DocumentManager.INSTANCE.listDocuments(1);
+			final ImmutableCollection<ReportSummary> reports = DocumentManager.INSTANCE.listReports(1);
 			
 			assertThat("report list is not null", reports, notNullValue());
 			assertThat("report list is not empty", !reports.isEmpty());
 			
 			/* uncomment for additional output
-			for (final Document file : reports) {
-				System.out.println(" >> Report " + file.getIDReport() + " downloaded.");
+			for (final ReportSummary file : reports) {
+				System.out.println(" >> Report " + file.getIdReport() + " downloaded.");
 			}
 			*/
 		} catch (Exception e) {
@@ -63,4 +70,40 @@ public class ReportLoadingTest {
 		}
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testCatalogue() {
+		System.out.println("ReportLoadingTest.testCatalogue()");
+		try {
+			final ImmutableMap.Builder<String, ReportSummary> builder = new ImmutableMap.Builder<String, ReportSummary>();
+			for (final File file : FileUtils.listFiles(TestUtils.getTestReportsDirectoy(), new String[] { "xml" }, false)) {
+				final Document report = DocumentLoader.create(file).load();
+				builder.put(report.getIDReport(), ReportSummary.of(report));
+			}
+			final ReportCatalogue catalogue = ReportCatalogue.of(builder.build());
+			assertThat("catalogue size coincides with the expected", catalogue.size(), equalTo(3));
+
+			// summaries
+			final ReportSummary mamo = catalogue.get("MAMO_1_500");
+			assertThat("summary is not null", mamo, notNullValue());
+			assertThat("summary ontology", mamo.getIdOntology(), equalTo("5"));
+			assertThat("summary modality", mamo.getModality(), equalTo("RID10357@RADLEX"));
+			assertThat("summary start date is parsed", mamo.getStartTime() != ReportSummary.NO_DATE);
+
+			// secondary indexes
+			assertThat("ontology index", catalogue.listByOntology("5").get(0).getIdReport(), equalTo("MAMO_1_500"));
+			assertThat("modality index", catalogue.listByModality("RID10312@RADLEX").get(0).getIdReport(), equalTo("RESO_1_0"));
+			assertThat("unknown modality", catalogue.listByModality("unknown").isEmpty());
+			final Date december = new Date(ReportSummary.parseDate("01/12/2014 00:00:00"));
+			final ImmutableList<ReportSummary> november = catalogue.listByDate(null, december);
+			assertThat("date index", november.size(), equalTo(2));
+			assertThat("reports are sorted by date", november.get(0).getIdReport(), equalTo("MAMO_1_500"));
+			assertThat("open interval", catalogue.listByDate(december, null).size(), equalTo(1));
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			fail("ReportLoadingTest.testCatalogue() failed: " + e.getMessage());
+		} finally {
+			System.out.println("ReportLoadingTest.testCatalogue() has finished");
+		}
+	}
+
+}
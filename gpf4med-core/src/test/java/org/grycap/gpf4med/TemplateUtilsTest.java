@@ -24,10 +24,12 @@ package org.grycap.gpf4med;
 
 import static org.grycap.gpf4med.xml.TemplateXmlBinder.TEMPLATE_XMLB;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.util.Locale;
 
 import org.apache.commons.lang.StringUtils;
 import org.grycap.gpf4med.model.template.ConceptNameTemplate;
@@ -36,6 +38,8 @@ import org.grycap.gpf4med.util.TemplateUtils;
 import org.grycap.gpf4med.util.TestUtils;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+
 /**
  * Tests template utilities.
  * @author Erik Torres <ertorser@upv.es>
@@ -59,6 +63,21 @@ public class TemplateUtilsTest {
 			assertThat("meaning is not null", meaning, notNullValue());
 			assertThat("meaning is not empty", StringUtils.isNotBlank(meaning));
 			System.out.println(" >> BI_RADS found: " + conceptName.toString() + ", meaning: " + meaning);
+			// find the meaning in Spanish
+			final String meaningEs = TemplateUtils.getMeaning(conceptName, template, new Locale("es"));
+			assertThat("meaning (ES) is not null", meaningEs, notNullValue());
+			// concepts that are not declared in the template have no meaning
+			final String missing = TemplateUtils.getMeaning(new ConceptNameTemplate().withCODEVALUE("NOT_FOUND")
+					.withCODESCHEMA("RADLEX"), template, null);
+			assertThat("meaning of undeclared concept is null", missing, nullValue());
+			// list the BI-RADS categories
+			final ImmutableList<ConceptNameTemplate> categories = TemplateUtils.getCodeValues("RID36027@RADLEX", template);
+			assertThat("BI-RADS categories are not empty", !categories.isEmpty());
+			boolean found = false;
+			for (final ConceptNameTemplate category : categories) {
+				found |= TemplateUtils.equalsIgnoreNoReferenceable(conceptName, category);
+			}
+			assertThat("BI-RADS 4A is a category", found);
 		} catch (Exception e) {
 			e.printStackTrace(System.err);
 			fail("TemplateUtilsTest.test() failed: " + e.getMessage());
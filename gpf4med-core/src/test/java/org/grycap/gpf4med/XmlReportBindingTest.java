@@ -5,18 +5,28 @@ import static org.apache.commons.lang.StringUtils.isNotBlank;
 import static org.grycap.gpf4med.xml.ReportXmlBinder.REPORT_XMLB;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.grycap.gpf4med.model.document.Document;
 import org.grycap.gpf4med.util.TestUtils;
+import org.grycap.gpf4med.xml.XmlParser;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import com.google.common.base.Functions;
+
 /**
  * Unit test for the XML binding classes supporting this application.
  */
@@ -52,4 +62,106 @@ public class XmlReportBindingTest {
 		}
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void test2_ReportStreaming() {
+		System.out.println("ReportStreaming()");
+		try {
+			final File dir = TestUtils.getTestReportsDirectoy();
+			for (final File reportFile : FileUtils.listFiles(dir, new String[] { "xml" }, false)) {
+				// the streaming parser must produce the same report as the XML binding
+				final Document expected = REPORT_XMLB.typeFromFile(reportFile);
+				final Document report = DocumentLoader.create(reportFile).load();
+				assertThat("report is not null", report, notNullValue());
+				assertThat("report coincides with the expected", report, equalTo(expected));
+			}
+			// reports in a bundle are passed one by one to the handler
+			final File bundleFile = File.createTempFile("gpf4med-", ".xml");
+			bundleFile.deleteOnExit();
+			final StringBuilder bundle = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><DICOM_REPORTS>");
+			for (final File reportFile : FileUtils.listFiles(dir, new String[] { "xml" }, false)) {
+				bundle.append(readFileToString(reportFile, "UTF-8").replaceFirst("<\\?xml[^>]*\\?>", ""));
+			}
+			FileUtils.writeStringToFile(bundleFile, bundle.append("</DICOM_REPORTS>").toString(), "UTF-8");
+			final List<String> ids = new ArrayList<>();
+			final int count = DocumentLoader.create(bundleFile).load(new XmlParser.Handler<Document>() {
+				@Override
+				public void handle(final Document document) {
+					ids.add(document.getIDReport());
+				}
+			});
+			assertThat("all the reports in the bundle were parsed", count, equalTo(dir.list().length));
+			assertThat("all the reports were passed to the handler", ids.size(), equalTo(count));
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			fail("ReportStreaming() failed: " + e.getMessage());
+		} finally {			
+			System.out.println("ReportStreaming() has finished");
+		}
+	}
+
+	@Test
+	public void test3_ReportBytes() {
+		System.out.println("ReportBytes()");
+		try {
+			final File reportFile = FileUtils.getFile(TestUtils.getTestReportsDirectoy(), "MAMO_1_500.xml");
+			final Document expected = REPORT_XMLB.typeFromFile(reportFile);
+			// round trip through a byte array
+			final byte[] payload = REPORT_XMLB.typeToBytes(expected);
+			assertThat("payload is not empty", payload.length > 0);
+			final Document report = REPORT_XMLB.typeFromBytes(payload);
+			assertThat("report from bytes coincides with the expected", report, equalTo(expected));
+			// read from a direct buffer
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(payload.length);
+			buffer.put(payload).flip();
+			final Document report2 = REPORT_XMLB.typeFromByteBuffer(buffer);
+			assertThat("report from buffer coincides with the expected", report2, equalTo(expected));
+			assertThat("buffer position is not modified", buffer.remaining(), equalTo(payload.length));
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			fail("ReportBytes() failed: " + e.getMessage());
+		} finally {			
+			System.out.println("ReportBytes() has finished");
+		}
+	}
+
+	@Test
+	public void test4_ReportSnapshot() {
+		System.out.println("ReportSnapshot()");
+		try {
+			final File cacheDir = new File(System.getProperty("java.io.tmpdir"), "gpf4med-snapshot-" + System.nanoTime());
+			try {
+				// add the reports to the cache
+				final LocalCache cache = LocalCache.open(cacheDir);
+				final Map<String, Document> expected = new HashMap<>();
+				for (final File reportFile : FileUtils.listFiles(TestUtils.getTestReportsDirectoy(), new String[] { "xml" }, false)) {
+					final String id = FilenameUtils.getBaseName(reportFile.getName());
+					final Document report = DocumentLoader.create(reportFile).load();
+					cache.put(id, new File(cacheDir, reportFile.getName()), REPORT_XMLB.typeToBytes(report));
+					expected.put(id, DocumentLoader.create(reportFile).load());
+				}
+				// write the snapshot and read it back
+				final File snapshotFile = new File(cacheDir, DocumentSnapshot.SNAPSHOT_FILENAME);
+				final int count = DocumentSnapshot.write(snapshotFile, expected.keySet(), cache, 
+						Functions.forMap(expected));
+				assertThat("all the reports were written to the snapshot", count, equalTo(expected.size()));
+				final DocumentSnapshot snapshot = DocumentSnapshot.open(snapshotFile);
+				assertThat("snapshot is not null", snapshot, notNullValue());
+				assertThat("snapshot size coincides with the expected", snapshot.size(), equalTo(expected.size()));
+				for (final Map.Entry<String, Document> entry : expected.entrySet()) {
+					final Document report = snapshot.get(entry.getKey(), cache.getHash(entry.getKey()));
+					assertThat("report from snapshot coincides with the expected", report, equalTo(entry.getValue()));
+					assertThat("changed report is not read from snapshot", snapshot.get(entry.getKey(), "changed"), 
+							nullValue());
+				}
+			} finally {
+				FileUtils.deleteQuietly(cacheDir);
+			}
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			fail("ReportSnapshot() failed: " + e.getMessage());
+		} finally {			
+			System.out.println("ReportSnapshot() has finished");
+		}
+	}
+
+}
@@ -27,7 +27,6 @@ import java.util.LinkedList;
 import java.util.Queue;
 
 import org.grycap.gpf4med.CloserServiceIf;
-import org.grycap.gpf4med.DocumentManager;
 import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.event.EventBusHandler;
 
@@ -57,8 +56,6 @@ public enum CloserServiceMock implements CloserServiceIf {
 		// load document manager and register it for closing
 		//DocumentManager.INSTANCE.preload();
 		//register(DocumentManager.INSTANCE);
-		// register subscribers
-		EventBusHandler.INSTANCE.register(DocumentManager.INSTANCE);
 	}
 
 	@Override
@@ -22,59 +22,172 @@
 
 package org.grycap.gpf4med.data;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.annotation.Nullable;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.grycap.gpf4med.Closeable2;
-import org.grycap.gpf4med.DocumentQueue;
 import org.grycap.gpf4med.Statistics;
 import org.grycap.gpf4med.conf.ConfigurationManager;
-import org.grycap.gpf4med.event.DocumentEnqueuedEvent;
+import org.grycap.gpf4med.exec.DocumentSink;
 import org.grycap.gpf4med.ext.GraphConnector;
 import org.grycap.gpf4med.model.document.Document;
+import org.neo4j.graphdb.ConstraintViolationException;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Throwables;
-import com.google.common.eventbus.Subscribe;
+import com.google.common.collect.ImmutableList;
 
 /**
  * Graph database handler.
  * @author Erik Torres <ertorser@upv.es>
  */
-public enum GraphDatabaseHandler implements Closeable2 {
+public enum GraphDatabaseHandler implements Closeable2, DocumentSink {
 
 	INSTANCE;
 
+	private final static Logger LOGGER = LoggerFactory.getLogger(GraphDatabaseHandler.class);
+
 	public static final String NEO4J_PROPERTIES = "neo4j.properties";
+	public static final int DEFAULT_UNIQUE_NODE_CACHE_SIZE = 10000;
+	public static final int DEFAULT_WRITE_RETRIES = 3;
+	public static final long RETRY_BACKOFF_MILLIS = 10l;
+
+	// written under the lock of this class and read by the writers without locking: the database is published 
+	// last, so a writer that reads the database sees the index and the mode that belong to it
+	private volatile GraphDatabaseService graphDb = null;
+
+	private volatile GraphConnector connector = null;
 
-	private GraphDatabaseService graphDb = null;
+	private volatile UniqueNodeIndex uniqueNodes = null;
 
-	private GraphConnector connector = null;
+	private volatile boolean bulkImport = false;
 
-	@Subscribe
-	public void processDocumentEvent(final DocumentEnqueuedEvent event) {
+	/**
+	 * Loads a batch of documents into the graph in a single transaction. When the transaction fails, the 
+	 * documents are loaded again one by one, isolating the documents that cannot be loaded. In bulk import 
+	 * mode there are no transactions, so documents are loaded one by one and the changes made by a failed 
+	 * document are not undone. This method can be called concurrently from different writers: transactions 
+	 * that fail because of a deadlock or because other writer created the same unique node are retried. The 
+	 * objects that are shared by the documents are created by {@link GraphConnector#prepare(Document)} and 
+	 * committed before the transaction of the batch is opened.
+	 */
+	@Override
+	public ImmutableList<Document> write(final List<Document> documents) {
+		checkArgument(documents != null, "Uninitialized documents");
+		final GraphDatabaseService graphDb = this.graphDb;
+		final GraphConnector connector = this.connector;
+		final boolean bulkImport = this.bulkImport;
 		checkState(graphDb != null && connector != null, 
-				"New document enqueued event received, but database is not ready");
-		// load document
-		final Document document = DocumentQueue.INSTANCE.remove();
-		if (document != null) {
+				"New documents received, but database is not ready");
+		if (bulkImport) {
+			// batch inserters are not thread-safe
+			synchronized (this) {
+				checkState(this.bulkImport && this.graphDb != null && this.connector != null, 
+						"New documents received, but database is not ready");
+				return writeEach(this.graphDb, this.connector, true, documents);
+			}
+		}
+		final ImmutableList.Builder<Document> failed = new ImmutableList.Builder<Document>();
+		final List<Document> prepared = new ArrayList<Document>(documents.size());
+		for (final Document document : documents) {
 			try {
-				connector.add(document);
-				Statistics.INSTANCE.incSuccessGraphLoads(1);
+				connector.prepare(document);
+				prepared.add(document);
 			} catch (Exception e) {
-				Statistics.INSTANCE.incFailedGraphLoads(1);
+				failed.add(document);
+				LOGGER.warn("Failed to prepare the graph for document: " + document.getIDReport(), e);
 			}
 		}
+		if (prepared.size() > 1) {
+			try {
+				writeWithRetry(graphDb, connector, prepared);
+			} catch (Exception e) {
+				LOGGER.warn("Failed to load a batch of " + prepared.size() 
+						+ " documents, retrying documents individually", e);
+				failed.addAll(writeEach(graphDb, connector, false, prepared));
+			}
+		} else {
+			failed.addAll(writeEach(graphDb, connector, false, prepared));
+		}
+		return failed.build();
+	}
+
+	private static ImmutableList<Document> writeEach(final GraphDatabaseService graphDb, final GraphConnector connector, 
+			final boolean bulkImport, final List<Document> documents) {
+		final ImmutableList.Builder<Document> failed = new ImmutableList.Builder<Document>();
+		for (final Document document : documents) {
+			try {
+				if (bulkImport) {
+					connector.add(document);
+				} else {
+					writeWithRetry(graphDb, connector, ImmutableList.of(document));
+				}
+			} catch (Exception e) {
+				failed.add(document);
+				LOGGER.warn("Failed to load document: " + document.getIDReport(), e);
+			}
+		}
+		return failed.build();
+	}
+
+	private static void writeWithRetry(final GraphDatabaseService graphDb, final GraphConnector connector, 
+			final List<Document> documents) throws Exception {
+		final int retries = writeRetries();
+		for (int attempt = 1; ; attempt++) {
+			try (final Transaction tx = graphDb.beginTx()) {
+				for (final Document document : documents) {
+					connector.add(document);
+				}
+				tx.success();
+			} catch (Exception e) {
+				if (attempt > retries || !isTransient(e)) {
+					throw e;
+				}
+				LOGGER.debug("Transaction failed by a lock conflict, retrying (attempt " + attempt + " of " 
+						+ retries + "): " + e.getMessage());
+				try {
+					Thread.sleep(ThreadLocalRandom.current().nextLong(RETRY_BACKOFF_MILLIS << attempt));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+				continue;
+			}
+			return;
+		}
+	}
+
+	private static boolean isTransient(final Throwable cause) {
+		for (final Throwable t : Throwables.getCausalChain(cause)) {
+			if (t instanceof DeadlockDetectedException || t instanceof ConstraintViolationException) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	@Override
@@ -88,7 +201,7 @@ public enum GraphDatabaseHandler implements Closeable2 {
 	}
 
 	@Override
-	public void close() throws IOException {		
+	public synchronized void close() throws IOException {		
 		try {
 			if (graphDb != null) {
 				graphDb.shutdown();
@@ -97,11 +210,16 @@ public enum GraphDatabaseHandler implements Closeable2 {
 			Throwables.propagateIfInstanceOf(t, IOException.class);
 			throw Throwables.propagate(t);
 		} finally {
+			if (uniqueNodes != null) {
+				uniqueNodes.invalidate();
+			}
 			graphDb = null;
+			uniqueNodes = null;
+			bulkImport = false;
 		}
 	}	
 
-	public final void restart() {
+	public final synchronized void restart() {
 		// drop current database
 		try {
 			close();
@@ -115,6 +233,54 @@ public enum GraphDatabaseHandler implements Closeable2 {
 		create();
 	}
 
+	/**
+	 * Replaces the current database with an empty store that is written with a non-transactional batch 
+	 * inserter. The store is not available for queries until {@link #finishBulkImport()} is called.
+	 */
+	public synchronized void startBulkImport() {
+		try {
+			close();
+		} catch (Exception ignore) { }
+		final GraphDatabaseService batchDb = BatchInserters.batchDatabase(prepareStoreDir(), neo4jProperties());
+		bulkImport = true;
+		uniqueNodes = UniqueNodeIndex.inMemory(batchDb);
+		graphDb = batchDb;
+		LOGGER.info("Bulk import started");
+	}
+
+	/**
+	 * Flushes the store written in bulk import mode and opens it as the live database. The schema of the 
+	 * connector is created in the live database, which validates the unique nodes created during the import.
+	 */
+	public synchronized void finishBulkImport() {
+		if (!bulkImport) {
+			return;
+		}
+		try {
+			close();
+		} catch (Exception ignore) { }
+		open(newDatabase(storeDir()));
+		LOGGER.info("Bulk import finished");
+	}
+
+	public boolean isBulkImport() {
+		return bulkImport;
+	}
+
+	/**
+	 * Gets the node that is identified by the specified label and key-value pair, creating a new node when 
+	 * no such node exists.
+	 * @param label the label of the node.
+	 * @param key the key that identifies the node.
+	 * @param value the value that identifies the node.
+	 * @return the unique node.
+	 */
+	public Node getOrCreateUniqueNode(final Label label, final String key, final Object value) {
+		final UniqueNodeIndex uniqueNodes = this.uniqueNodes;
+		checkState(uniqueNodes != null, "Database is not ready");
+		return uniqueNodes.getOrCreate(label, key, value);
+	}
+
 	public @Nullable GraphDatabaseService service() {
 		return graphDb;
 	}
@@ -123,22 +289,73 @@ public enum GraphDatabaseHandler implements Closeable2 {
 		return connector;
 	}
 
-	public void setConnector(final GraphConnector connector) {
+	/**
+	 * Sets the connector that loads the documents into the graph, creating the schema (constraints and indexes) 
+	 * that the connector declares in {@link GraphConnector#create()}.
+	 * @param connector the connector.
+	 */
+	public synchronized void setConnector(final GraphConnector connector) {
 		this.connector = checkNotNull(connector, "Uninitialized connector");
+		createSchema();
+	}
+
+	private synchronized void create() {
+		open(newDatabase(prepareStoreDir()));
+	}
+
+	private void open(final GraphDatabaseService newDb) {
+		uniqueNodes = UniqueNodeIndex.transactional(newDb, uniqueNodeCacheSize());
+		graphDb = newDb;
+		createSchema();
+	}
+
+	private void createSchema() {
+		if (graphDb != null && connector != null && !bulkImport) {
+			connector.create();
+		}
+	}
+
+	private static GraphDatabaseService newDatabase(final String storePath) {
+		return new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(storePath)
+				.loadPropertiesFromURL(GraphDatabaseHandler.class.getClassLoader().getResource(NEO4J_PROPERTIES))
+				.newGraphDatabase();
+	}
+
+	private static int uniqueNodeCacheSize() {
+		return Math.max(0, ConfigurationManager.INSTANCE.getIntProperty("graph.unique-node-cache-size", 
+				DEFAULT_UNIQUE_NODE_CACHE_SIZE));
+	}
+
+	private static int writeRetries() {
+		return Math.max(0, ConfigurationManager.INSTANCE.getIntProperty("graph.write-retries", DEFAULT_WRITE_RETRIES));
+	}
+
+	private static Map<String, String> neo4jProperties() {
+		try (final InputStream is = GraphDatabaseHandler.class.getClassLoader().getResourceAsStream(NEO4J_PROPERTIES)) {
+			return MapUtil.load(is);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read the graph database properties", e);
+		}
 	}
 
-	private void create() {
+	private static String prepareStoreDir() {
 		String storePath = null;
 		try {
-			final File storeDir = new File(ConfigurationManager.INSTANCE.getLocalCacheDir(), "graphdb");
+			final File storeDir = new File(storeDir());
 			FileUtils.deleteQuietly(storeDir);
 			storeDir.mkdirs();		
 			storePath = storeDir.getCanonicalPath();
 		} catch (Exception ignore) { }
 		checkState(StringUtils.isNotBlank(storePath), "Cannot create the graph store directory");
-		graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(storePath)
-				.loadPropertiesFromURL(GraphDatabaseHandler.class.getClassLoader().getResource(NEO4J_PROPERTIES))
-				.newGraphDatabase();
+		return storePath;
+	}
+
+	private static String storeDir() {
+		try {
+			return new File(ConfigurationManager.INSTANCE.getLocalCacheDir(), "graphdb").getCanonicalPath();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot find the graph store directory", e);
+		}
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Institute for Molecular Imaging Instrumentation (I3M)
+ * 
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by 
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ *   http://ec.europa.eu/idabc/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and 
+ * limitations under the Licence.
+ * 
+ * This product combines work with different licenses. See the "NOTICE" text
+ * file for details on the various modules and licenses.
+ * The "NOTICE" text file is part of the distribution. Any derivative works
+ * that you distribute must include a readable copy of the "NOTICE" text file.
+ */
+
+package org.grycap.gpf4med.data;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.ResourceIterator;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Finds or creates the nodes that must be unique in the graph, such as patients or modalities. Nodes are 
+ * identified by a label and a key-value pair. In the transactional mode, the lookups are backed by the 
+ * schema of the database, which should declare a unique constraint on the label and the key, and a bounded 
+ * cache of node identifiers avoids most of the lookups. In the in-memory mode, which is used with the 
+ * non-transactional writers of the bulk import, the identifiers of the nodes are kept in a map, since the 
+ * schema is created when the import finishes.
+ * @author Erik Torres <ertorser@upv.es>
+ */
+public class UniqueNodeIndex {
+
+	private final GraphDatabaseService graphDb;
+	private final ConcurrentMap<IndexKey, Long> inMemory;
+	private final Cache<IndexKey, Long> cache;
+
+	private UniqueNodeIndex(final GraphDatabaseService graphDb, final boolean inMemory, final int cacheSize) {
+		checkArgument(graphDb != null, "Uninitialized graph database");
+		this.graphDb = graphDb;
+		this.inMemory = inMemory ? new ConcurrentHashMap<IndexKey, Long>() : null;
+		this.cache = inMemory ? null : CacheBuilder.newBuilder().maximumSize(cacheSize).<IndexKey, Long>build();
+	}
+
+	/**
+	 * Creates an index that uses the schema of the database, with a cache of node identifiers in front.
+	 * @param graphDb the transactional database.
+	 * @param cacheSize the maximum number of node identifiers that are kept in the cache.
+	 * @return a new index.
+	 */
+	public static UniqueNodeIndex transactional(final GraphDatabaseService graphDb, final int cacheSize) {
+		checkArgument(cacheSize >= 0, "Invalid cache size");
+		return new UniqueNodeIndex(graphDb, false, cacheSize);
+	}
+
+	public static UniqueNodeIndex inMemory(final GraphDatabaseService graphDb) {
+		return new UniqueNodeIndex(graphDb, true, 0);
+	}
+
+	/**
+	 * Gets the node that is identified by the specified label and key-value pair, creating a new node when 
+	 * no such node exists. New nodes are created with the label and with the property {@code key} set to 
+	 * {@code value}.
+	 * @param label the label of the node.
+	 * @param key the key that identifies the node.
+	 * @param value the value that identifies the node.
+	 * @return the unique node.
+	 */
+	public Node getOrCreate(final Label label, final String key, final Object value) {
+		checkArgument(label != null, "Uninitialized label");
+		checkArgument(StringUtils.isNotBlank(key), "Uninitialized or invalid key");
+		checkArgument(value != null, "Uninitialized value");
+		final IndexKey indexKey = new IndexKey(label.name(), key, value);
+		Node node = null;
+		if (inMemory != null) {
+			final Long id = inMemory.get(indexKey);
+			if (id != null) {
+				node = graphDb.getNodeById(id);
+			} else {
+				node = create(label, key, value);
+				inMemory.put(indexKey, node.getId());
+			}
+		} else {
+			final Long id = cache.getIfPresent(indexKey);
+			if (id != null) {
+				// nodes created in transactions that were rolled back, or that are not committed yet, are 
+				// not found, so the schema index is used instead
+				try {
+					node = graphDb.getNodeById(id);
+					if (!node.hasLabel(label) || !value.equals(node.getProperty(key, null))) {
+						node = null;
+					}
+				} catch (NotFoundException e) {
+					node = null;
+				}
+				if (node == null) {
+					cache.invalidate(indexKey);
+				}
+			}
+			if (node == null) {
+				try (final ResourceIterator<Node> it = graphDb.findNodesByLabelAndProperty(label, key, value)
+						.iterator()) {
+					node = it.hasNext() ? it.next() : null;
+				}
+				if (node == null) {
+					// the unique constraint rejects the node if another transaction creates it concurrently
+					node = create(label, key, value);
+				}
+				cache.put(indexKey, node.getId());
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Discards the node identifiers that are kept in memory.
+	 */
+	public void invalidate() {
+		if (cache != null) {
+			cache.invalidateAll();
+		}
+	}
+
+	private Node create(final Label label, final String key, final Object value) {
+		final Node node = graphDb.createNode(label);
+		node.setProperty(key, value);
+		return node;
+	}
+
+	/* Inner classes */
+
+	private static class IndexKey {
+		private final String label;
+		private final String key;
+		private final Object value;
+		public IndexKey(final String label, final String key, final Object value) {
+			this.label = label;
+			this.key = key;
+			this.value = value;
+		}
+		@Override
+		public boolean equals(final Object obj) {
+			if (obj == null || !(obj instanceof IndexKey)) {
+				return false;
+			}
+			final IndexKey other = (IndexKey)obj;
+			return Objects.equal(label, other.label) && Objects.equal(key, other.key) 
+					&& Objects.equal(value, other.value);
+		}
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(label, key, value);
+		}
+		@Override
+		public String toString() {
+			return toStringHelper(this)
+					.add("label", label)
+					.add("key", key)
+					.add("value", value)
+					.toString();
+		}
+	}
+
+}
@@ -28,6 +28,7 @@ import java.util.Queue;
 
 import org.grycap.gpf4med.CloserServiceIf;
 import org.grycap.gpf4med.DocumentManager;
+import org.grycap.gpf4med.IngestionPipeline;
 import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.data.GraphDatabaseHandler;
 import org.grycap.gpf4med.event.EventBusHandler;
@@ -58,9 +59,9 @@ public enum CloserServiceMock implements CloserServiceIf {
 		// load document manager and register it for closing
 		DocumentManager.INSTANCE.preload();
 		register(DocumentManager.INSTANCE);
-		// register subscribers
-		EventBusHandler.INSTANCE.register(DocumentManager.INSTANCE);
-		EventBusHandler.INSTANCE.register(GraphDatabaseHandler.INSTANCE);
+		// connect the ingestion pipeline to the graph and register it for closing
+		IngestionPipeline.INSTANCE.setSink(GraphDatabaseHandler.INSTANCE);
+		register(IngestionPipeline.INSTANCE);
 	}
 
 	@Override
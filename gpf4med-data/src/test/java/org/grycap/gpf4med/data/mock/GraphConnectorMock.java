@@ -71,6 +71,9 @@ public class GraphConnectorMock implements GraphConnector {
 	@Override
 	public void clear() { }
 
+	@Override
+	public void prepare(final Document document) { }
+
 	@Override
 	public void add(final Document document) {
 		checkArgument(document != null, "Uninitialized document");
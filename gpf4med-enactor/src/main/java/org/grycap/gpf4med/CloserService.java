@@ -26,6 +26,7 @@ import java.io.Closeable;
 import java.util.LinkedList;
 import java.util.Queue;
 
+import org.grycap.gpf4med.akka.AkkaApplication;
 import org.grycap.gpf4med.cloud.CloudService;
 import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.event.EventBusHandler;
@@ -60,6 +61,8 @@ public enum CloserService implements CloserServiceIf {
 		// load cloud service and register it for closing
 		CloudService.INSTANCE.preload();
 		register(CloudService.INSTANCE);
+		// the actor system used to download reports is started on demand, register it for closing
+		register(AkkaApplication.INSTANCE);
 	}
 
 	@Override
@@ -26,11 +26,11 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.util.Locale;
-import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import org.apache.commons.lang.StringUtils;
+import org.grycap.gpf4med.data.GraphDatabaseHandler;
 import org.grycap.gpf4med.graph.base.model.LabelTypes;
 import org.grycap.gpf4med.graph.base.model.RelTypes;
 import org.grycap.gpf4med.model.document.Children;
@@ -48,10 +48,10 @@ import org.grycap.gpf4med.model.util.DateUtils;
 import org.grycap.gpf4med.model.util.Id;
 import org.grycap.gpf4med.util.TemplateUtils;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.index.UniqueFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -76,12 +76,7 @@ public abstract class BaseDocumentCreator {
 	public static final String COMPOSITION_PROPERTY = "composition";
 	public static final String VALUE_PROPERTY = "value";
 
-	public static final String PATIENT_NODE = "Patient";
-	public static final String MODALITY_NODE = "Modality";
-	public static final String BI_RADS_NODE = "BI-RADS";
-	public static final String TUMOUR_LOCATION_NODE = "Tumour Location";
-	public static final String FINDING_NODE = "Finding";
-	public static final String LESION_PROPERTY_NODE = "Lesion Property";
+	public static final String BI_RADS_CODE = "RID36027@RADLEX";
 	
 	public BaseDocumentCreator() { }
 
@@ -92,18 +87,9 @@ public abstract class BaseDocumentCreator {
 		final String id = Id.getId(conceptName);
 		checkState(StringUtils.isNotBlank(id), "Patient concept name is invalid");
 		
-		final UniqueFactory<Node> uniqueFactory = new UniqueFactory.UniqueNodeFactory(graphDb, PATIENT_NODE) {
-			@Override
-			protected void initialize(final Node created, final Map<String, Object> properties) {
-				created.setProperty(ID_PATIENT_PROPERTY, properties.get(ID_PATIENT_PROPERTY));	
-			}
-		};
-		final Node node = uniqueFactory.getOrCreate(ID_PATIENT_PROPERTY, patient.getVALUE());
+		final Node node = getOrCreateUniqueNode(graphDb, LabelTypes.PATIENT, ID_PATIENT_PROPERTY, patient.getVALUE());
 		node.setProperty(ID_PROPERTY, id);
 		node.setProperty(ID_PATIENT_PROPERTY, patient.getVALUE());
-		if (!node.hasLabel(LabelTypes.PATIENT)) {
-			node.addLabel(LabelTypes.PATIENT);
-		}
 		return node;
 	}
 
@@ -114,16 +100,7 @@ public abstract class BaseDocumentCreator {
 		final ConceptNameTemplate conceptName = template.getCONTAINER().getCONCEPTNAME();
 		final String id = Id.getId(conceptName);
 		checkState(StringUtils.isNotBlank(id), "Template concept name is invalid");
-		final UniqueFactory<Node> uniqueFactory = new UniqueFactory.UniqueNodeFactory(graphDb, MODALITY_NODE) {
-			@Override
-			protected void initialize(final Node created, final Map<String, Object> properties) {
-				created.setProperty(ID_PROPERTY, properties.get(ID_PROPERTY));	
-			}
-		};
-		final Node node = uniqueFactory.getOrCreate(ID_PROPERTY, id);
-		if (!node.hasLabel(LabelTypes.MODALITY)) {
-			node.addLabel(LabelTypes.MODALITY);
-		}
+		final Node node = getOrCreateUniqueNode(graphDb, LabelTypes.MODALITY, ID_PROPERTY, id);
 		if (!node.hasProperty(TYPE_PROPERTY) && StringUtils.isNotBlank(conceptName.getCODEMEANING2())) {
 			node.setProperty(TYPE_PROPERTY, conceptName.getCODEMEANING2());
 		}
@@ -138,16 +115,7 @@ public abstract class BaseDocumentCreator {
 		checkState(StringUtils.isNotBlank(id), "Text concept name is invalid");
 		final String ref = StringUtils.trimToNull(text.getVALUE());
 		checkState(StringUtils.isNotBlank(ref), "uninitialized or invalid reference");
-		final UniqueFactory<Node> uniqueFactory = new UniqueFactory.UniqueNodeFactory(graphDb, PATIENT_NODE) {
-			@Override
-			protected void initialize(final Node created, final Map<String, Object> properties) {
-				created.setProperty(ID_PROPERTY, properties.get(ID_PROPERTY));	
-			}
-		};
-		final Node node = uniqueFactory.getOrCreate(ID_PROPERTY, id + ":" + ref);
-		if (!node.hasLabel(LabelTypes.DICOM_REF)) {
-			node.addLabel(LabelTypes.DICOM_REF);
-		}
+		final Node node = getOrCreateUniqueNode(graphDb, LabelTypes.DICOM_REF, ID_PROPERTY, id + ":" + ref);
 		parent.createRelationshipTo(node, RelTypes.REFERS);
 		return node;		
 	}
@@ -243,16 +211,7 @@ public abstract class BaseDocumentCreator {
 
 		final String id = Id.getId(conceptNameValue);
 		checkState(StringUtils.isNotBlank(id), "Finding property id is invalid");
-		final UniqueFactory<Node> uniqueFactory = new UniqueFactory.UniqueNodeFactory(graphDb, LESION_PROPERTY_NODE) {
-			@Override
-			protected void initialize(final Node created, final Map<String, Object> properties) {
-				created.setProperty(ID_PROPERTY, properties.get(ID_PROPERTY));	
-			}
-		};
-		final Node node = uniqueFactory.getOrCreate(ID_PROPERTY, id);
-		if (!node.hasLabel(LabelTypes.LESION_PROPERTY)) {
-			node.addLabel(LabelTypes.LESION_PROPERTY);
-		}
+		final Node node = getOrCreateUniqueNode(graphDb, LabelTypes.LESION_PROPERTY, ID_PROPERTY, id);
 		if (!node.hasProperty(TYPE_PROPERTY)) {
 			if (StringUtils.isNotBlank(type)) {
 				node.setProperty(TYPE_PROPERTY, type);
@@ -281,22 +240,15 @@ public abstract class BaseDocumentCreator {
 
 		final String id = Id.getId(conceptName);
 		checkState(StringUtils.isNotBlank(id), "Finding property id is invalid");
-		final UniqueFactory<Node> uniqueFactory = new UniqueFactory.UniqueNodeFactory(graphDb, LESION_PROPERTY_NODE) {
-			@Override
-			protected void initialize(final Node created, final Map<String, Object> properties) {
-				created.setProperty(ID_NUM_PROPERTY, properties.get(ID_NUM_PROPERTY));
-			}
-		};
-		
 		final Node node;
 		if ("000000001@UNIT_MEASUREMENT".equals(Id.getId(unitMeasurement))) {  
-			node = uniqueFactory.getOrCreate(ID_NUM_PROPERTY, id + ":" + (valueFromString(value) == 1.0d));
+			node = getOrCreateUniqueNode(graphDb, LabelTypes.LESION_PROPERTY, ID_NUM_PROPERTY, id + ":" + (valueFromString(value) == 1.0d));
 			node.setProperty(ID_NUM_PROPERTY, id + ":" + (valueFromString(value) == 1.0d));
 			if (!node.hasProperty(VALUE_PROPERTY)) {
 				node.setProperty(VALUE_PROPERTY, valueFromString(value) == 1.0d);
 			}
 		} else if ("000000002@UNIT_MEASUREMENT".equals(Id.getId(unitMeasurement))) {
-			node = uniqueFactory.getOrCreate(ID_NUM_PROPERTY, id + ":" + valueFromString(value));
+			node = getOrCreateUniqueNode(graphDb, LabelTypes.LESION_PROPERTY, ID_NUM_PROPERTY, id + ":" + valueFromString(value));
 			node.setProperty(ID_NUM_PROPERTY, id + ":" + valueFromString(value));
 			if (!node.hasProperty(VALUE_PROPERTY)) {
 				node.setProperty(VALUE_PROPERTY, valueFromString(value));
@@ -305,9 +257,6 @@ public abstract class BaseDocumentCreator {
 			node = null;
 			LOGGER.warn("Invalid Unit Measurement for " + Id.getId(num.getCONCEPTNAME()));
 		}
-		if (!node.hasLabel(LabelTypes.LESION_PROPERTY)) {
-			node.addLabel(LabelTypes.LESION_PROPERTY);
-		}
 		if (!node.hasProperty(TYPE_PROPERTY)) {
 			if (StringUtils.isNotBlank(type)) {
 				node.setProperty(TYPE_PROPERTY, type);
@@ -331,31 +280,38 @@ public abstract class BaseDocumentCreator {
 			final Code code, final Node parent, final Template template) {
 		checkArgument(code != null && code.getVALUE() != null, "Uninitialized or invalid code");
 		final Value value = code.getVALUE();
-		final ConceptName conceptName = new ConceptName().withCODEVALUE(value.getCODEVALUE()).withCODESCHEMA(value.getCODESCHEMA());
+		final Node node = getOrCreateBiRads(graphDb, new ConceptNameTemplate().withCODEVALUE(value.getCODEVALUE())
+				.withCODESCHEMA(value.getCODESCHEMA()), template);
+		parent.createRelationshipTo(node, RelTypes.IS_CLASSIFIED);
+		return node;
+	}
+
+	private Node getOrCreateBiRads(final GraphDatabaseService graphDb, final ConceptNameTemplate conceptName, 
+			final Template template) {
 		final String id = Id.getId(conceptName);
 		checkState(StringUtils.isNotBlank(id), "BI-RADS value is invalid");
-		final UniqueFactory<Node> uniqueFactory = new UniqueFactory.UniqueNodeFactory(graphDb, BI_RADS_NODE) {
-			@Override
-			protected void initialize(final Node created, final Map<String, Object> properties) {
-				created.setProperty(ID_PROPERTY, properties.get(ID_PROPERTY));	
-			}
-		};
-		final Node node = uniqueFactory.getOrCreate(ID_PROPERTY, id);
-		if (!node.hasLabel(LabelTypes.BI_RADS)) {
-			node.addLabel(LabelTypes.BI_RADS);
-		}
+		final Node node = getOrCreateUniqueNode(graphDb, LabelTypes.BI_RADS, ID_PROPERTY, id);
 		if (!node.hasProperty(BI_RADS_CLASSIFICATION)) {
-			ConceptNameTemplate conceptNameTemplate = new ConceptNameTemplate().withCODEVALUE(conceptName.getCODEVALUE())
-																			   .withCODESCHEMA(conceptName.getCODESCHEMA());
-			final String classification = TemplateUtils.getMeaning(conceptNameTemplate, template, null);
+			final String classification = TemplateUtils.getMeaning(conceptName, template, null);
 			if (StringUtils.isNotBlank(classification)) {
 				node.setProperty(BI_RADS_CLASSIFICATION, classification);
 			}
 		}
-		parent.createRelationshipTo(node, RelTypes.IS_CLASSIFIED);
 		return node;
 	}
 
+	/**
+	 * Creates the nodes that are shared by all the documents of the template: the modality and the 
+	 * BI-RADS categories. Creating these nodes before loading the documents prevents concurrent writers 
+	 * from competing to create them.
+	 */
+	public void createDictionary(final Transaction tx, final GraphDatabaseService graphDb, final Template template) {
+		getOrCreateModality(tx, graphDb, template);
+		for (final ConceptNameTemplate category : TemplateUtils.getCodeValues(BI_RADS_CODE, template)) {
+			getOrCreateBiRads(graphDb, category, template);
+		}
+	}
+
 	public Node createSize(final Transaction tx, final GraphDatabaseService graphDb, final Node parent) {
 		final Node node = graphDb.createNode();
 		node.addLabel(LabelTypes.TUMOUR_SIZE);
@@ -369,16 +325,7 @@ public abstract class BaseDocumentCreator {
 		final ConceptName conceptName = num.getCONCEPTNAME();		
 		final String id = Id.getId(conceptName);
 		checkState(StringUtils.isNotBlank(id), "Tumour location id is invalid");
-		final UniqueFactory<Node> uniqueFactory = new UniqueFactory.UniqueNodeFactory(graphDb, TUMOUR_LOCATION_NODE) {
-			@Override
-			protected void initialize(final Node created, final Map<String, Object> properties) {
-				created.setProperty(ID_PROPERTY, properties.get(ID_PROPERTY));	
-			}
-		};
-		final Node node = uniqueFactory.getOrCreate(ID_PROPERTY, id);
-		if (!node.hasLabel(LabelTypes.TUMOUR_LOCATION)) {
-			node.addLabel(LabelTypes.TUMOUR_LOCATION);
-		}
+		final Node node = getOrCreateUniqueNode(graphDb, LabelTypes.TUMOUR_LOCATION, ID_PROPERTY, id);
 		if (!node.hasProperty(DESCRIPTION_PROPERTY)) {
 			ConceptNameTemplate conceptNameTemplate = new ConceptNameTemplate().withCODEVALUE(conceptName.getCODEVALUE())
 																			   .withCODESCHEMA(conceptName.getCODESCHEMA());
@@ -409,16 +356,7 @@ public abstract class BaseDocumentCreator {
 		}
 		final String id = Id.getId(conceptName);
 		checkState(StringUtils.isNotBlank(id), "Finding id is invalid");
-		final UniqueFactory<Node> uniqueFactory = new UniqueFactory.UniqueNodeFactory(graphDb, FINDING_NODE) {
-			@Override
-			protected void initialize(final Node created, final Map<String, Object> properties) {
-				created.setProperty(ID_PROPERTY, properties.get(ID_PROPERTY));	
-			}
-		};
-		final Node node = uniqueFactory.getOrCreate(ID_PROPERTY, id);
-		if (!node.hasLabel(LabelTypes.FINDING)) {
-			node.addLabel(LabelTypes.FINDING);
-		}
+		final Node node = getOrCreateUniqueNode(graphDb, LabelTypes.FINDING, ID_PROPERTY, id);
 		if (!node.hasProperty(DESCRIPTION_PROPERTY)) {
 			ConceptNameTemplate conceptNameTemplate = new ConceptNameTemplate().withCODEVALUE(conceptName.getCODEVALUE())
 																			   .withCODESCHEMA(conceptName.getCODESCHEMA());
@@ -441,6 +379,16 @@ public abstract class BaseDocumentCreator {
 		return otherNode;
 	}
 
+	/**
+	 * Gets the node that is identified by the specified label and key-value pair, creating a new node when 
+	 * no such node exists. See {@link GraphDatabaseHandler#getOrCreateUniqueNode(Label, String, Object)}.
+	 */
+	protected Node getOrCreateUniqueNode(final GraphDatabaseService graphDb, final Label label, final String key, 
+			final Object value) {
+		checkState(graphDb == GraphDatabaseHandler.INSTANCE.service(), "Unsupported graph database");
+		return GraphDatabaseHandler.INSTANCE.getOrCreateUniqueNode(label, key, value);
+	}
+
 	public @Nullable Date getDate(final Document document) {		
 		checkArgument(document != null &&  document.getCONTAINER() != null, 
 				"Uninitialized or invalid document");
@@ -24,11 +24,19 @@ package org.grycap.gpf4med.graph.base;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import net.xeoh.plugins.base.annotations.PluginImplementation;
 import net.xeoh.plugins.base.annotations.meta.Author;
 import net.xeoh.plugins.base.annotations.meta.Version;
 
 import org.grycap.gpf4med.TemplateManager;
+import org.grycap.gpf4med.data.GraphDatabaseHandler;
+import org.grycap.gpf4med.graph.base.model.LabelTypes;
 import org.grycap.gpf4med.graph.base.rest.GraphBaseResource;
 import org.grycap.gpf4med.graph.base.rest.GraphBaseResourceImpl;
 import org.grycap.gpf4med.ext.GraphConnector;
@@ -37,9 +45,19 @@ import org.grycap.gpf4med.model.document.Document;
 import org.grycap.gpf4med.model.template.ConceptNameTemplate;
 import org.grycap.gpf4med.model.template.Template;
 import org.grycap.gpf4med.model.util.Id;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+
 /**
  * Base graph connector.
  * @author Erik Torres <ertorser@upv.es>
@@ -51,6 +69,46 @@ public class BaseGraphConnector implements GraphConnector {
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(BaseGraphConnector.class);
 
+	public static final int SCHEMA_TIMEOUT_MINUTES = 10;
+
+	public static final String MAMMOGRAPHY_TYPE = "RID10357@RADLEX";
+	public static final String ECOGRAPHY_TYPE = "RID10326@RADLEX";
+	public static final String MAGNETIC_RESONANCE_TYPE = "RID10312@RADLEX";
+
+	/**
+	 * Types of document that are supported by this connector.
+	 */
+	public static final ImmutableSet<String> DOCUMENT_TYPES = ImmutableSet.of(MAMMOGRAPHY_TYPE, ECOGRAPHY_TYPE, 
+			MAGNETIC_RESONANCE_TYPE);
+
+	/**
+	 * Nodes that are unique in the graph, identified by label and property.
+	 */
+	public static final ImmutableMultimap<LabelTypes, String> UNIQUE_KEYS = new ImmutableMultimap.Builder<LabelTypes, String>()
+			.put(LabelTypes.PATIENT, BaseDocumentCreator.ID_PATIENT_PROPERTY)
+			.put(LabelTypes.MODALITY, BaseDocumentCreator.ID_PROPERTY)
+			.put(LabelTypes.DICOM_REF, BaseDocumentCreator.ID_PROPERTY)
+			.put(LabelTypes.LESION_PROPERTY, BaseDocumentCreator.ID_PROPERTY)
+			.put(LabelTypes.BI_RADS, BaseDocumentCreator.ID_PROPERTY)
+			.put(LabelTypes.TUMOUR_LOCATION, BaseDocumentCreator.ID_PROPERTY)
+			.put(LabelTypes.FINDING, BaseDocumentCreator.ID_PROPERTY)
+			.build();
+
+	/**
+	 * Properties that are frequently used to look up nodes in the graph.
+	 */
+	public static final ImmutableMultimap<LabelTypes, String> INDEXED_KEYS = new ImmutableMultimap.Builder<LabelTypes, String>()
+			.put(LabelTypes.RADIOLOGICAL_STUDY, BaseDocumentCreator.ID_PROPERTY)
+			.put(LabelTypes.RADIOLOGICAL_STUDY, BaseDocumentCreator.ID_REPORT_PROPERTY)
+			.put(LabelTypes.LESION, BaseDocumentCreator.ID_PROPERTY)
+			.build();
+
+	/**
+	 * Types of document whose dictionary was created in the graph {@link #dictionaryGraph}.
+	 */
+	private final Set<String> dictionaries = new HashSet<String>();
+	private GraphDatabaseService dictionaryGraph = null;
+
 	@Override
 	public String path() {
 		return GraphBaseResource.PATH_STRING;
@@ -71,9 +129,34 @@ public class BaseGraphConnector implements GraphConnector {
 		return "Base graph implementation";
 	}	
 
+	/**
+	 * Creates the unique constraints and the indexes of the graph, waiting for the indexes to come online. 
+	 * The templates are not loaded here: the dictionary of each type of document is created when the first 
+	 * document of the type is prepared.
+	 */
 	@Override
 	public void create() {
-		// TODO
+		final GraphDatabaseService graphDb = GraphDatabaseHandler.INSTANCE.service();
+		checkState(graphDb != null, "Uninitialized graph database service");
+		try (final Transaction tx = graphDb.beginTx()) {
+			final Schema schema = graphDb.schema();
+			for (final Map.Entry<LabelTypes, String> entry : UNIQUE_KEYS.entries()) {
+				if (!hasConstraint(schema, entry.getKey(), entry.getValue())) {
+					schema.constraintFor(entry.getKey()).assertPropertyIsUnique(entry.getValue()).create();
+				}
+			}
+			for (final Map.Entry<LabelTypes, String> entry : INDEXED_KEYS.entries()) {
+				if (!hasIndex(schema, entry.getKey(), entry.getValue())) {
+					schema.indexFor(entry.getKey()).on(entry.getValue()).create();
+				}
+			}
+			tx.success();
+		}
+		try (final Transaction tx = graphDb.beginTx()) {
+			graphDb.schema().awaitIndexesOnline(SCHEMA_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+			tx.success();
+		}
+		LOGGER.trace("Graph schema created");
 	}
 
 	@Override
@@ -81,31 +164,87 @@ public class BaseGraphConnector implements GraphConnector {
 		// TODO		
 	}
 
+	/**
+	 * Creates the nodes that are shared by all the documents of a template the first time that a document 
+	 * of the template is prepared, so that the documents can be loaded in parallel without competing for 
+	 * these nodes. The nodes are created in their own transaction, which is committed before the type of 
+	 * document is marked as created.
+	 */
+	@Override
+	public void prepare(final Document document) {
+		final Template template = getTemplate(document);
+		final String type = Id.getId(document.getCONTAINER().getCONCEPTNAME());
+		checkState(DOCUMENT_TYPES.contains(type), "Unsupported document type: " 
+				+ Id.getIdMeaning(template.getCONTAINER().getCONCEPTNAME()));
+		final GraphDatabaseService graphDb = GraphDatabaseHandler.INSTANCE.service();
+		checkState(graphDb != null, "Uninitialized graph database service");
+		// the caller holds no locks in the graph, so the writers waiting here cannot block the creator
+		synchronized (dictionaries) {
+			if (dictionaryGraph != graphDb) {
+				dictionaries.clear();
+				dictionaryGraph = graphDb;
+			}
+			if (!dictionaries.contains(type)) {
+				try (final Transaction tx = graphDb.beginTx()) {
+					new BaseDocumentCreator() { }.createDictionary(tx, graphDb, template);
+					tx.success();
+				}
+				dictionaries.add(type);
+				LOGGER.trace("Graph dictionary created: " + type);
+			}
+		}
+	}
+
 	@Override
 	public void add(final Document document) {
-		checkArgument(document != null && document.getCONTAINER() != null 
-				&& document.getCONTAINER().getCONCEPTNAME() != null, 
-				"Uninitialized or invalid document");
-		// find the template for the type of document
-		ConceptName conceptName = document.getCONTAINER().getCONCEPTNAME();
-		ConceptNameTemplate conceptNameTemplate = new ConceptNameTemplate().withCODEVALUE(conceptName.getCODEVALUE())
-																		   .withCODESCHEMA(conceptName.getCODESCHEMA())
-																		   .withCODEMEANING(conceptName.getCODEMEANING())
-																		   .withCODEMEANING2(conceptName.getCODEMEANING2());
-		final Template template = TemplateManager.INSTANCE.getTemplate(conceptNameTemplate);
-		checkState(template != null, "No document template was found for the concept name: " + conceptName);
-		conceptNameTemplate = template.getCONTAINER().getCONCEPTNAME();
+		final Template template = getTemplate(document);
+		final ConceptNameTemplate conceptNameTemplate = template.getCONTAINER().getCONCEPTNAME();
 		LOGGER.info("Loading document of type: " + Id.getIdMeaning(conceptNameTemplate));
+		final String type = Id.getId(document.getCONTAINER().getCONCEPTNAME());
+		checkState(DOCUMENT_TYPES.contains(type), "Unsupported document type: " + Id.getIdMeaning(conceptNameTemplate));
 		// create a new entry in the graph
-		if ("RID10357@RADLEX".equals(Id.getId(conceptName))) {
+		if (MAMMOGRAPHY_TYPE.equals(type)) {
 			new MammographyCreator().create(document, template);
-		} else if ("RID10326@RADLEX".equals(Id.getId(conceptName))) {
+		} else if (ECOGRAPHY_TYPE.equals(type)) {
 			new EcographyCreator().create(document, template);
-		} else if ("RID10312@RADLEX".equals(Id.getId(conceptName))) {
-			new MagneticResonanceCreator().create(document, template);
 		} else {
-			throw new IllegalStateException("Unsupported document type: " + Id.getIdMeaning(conceptNameTemplate));
+			new MagneticResonanceCreator().create(document, template);
+		}
+	}
+
+	/**
+	 * Finds the template for the type of document.
+	 */
+	private static Template getTemplate(final Document document) {
+		checkArgument(document != null && document.getCONTAINER() != null 
+				&& document.getCONTAINER().getCONCEPTNAME() != null, 
+				"Uninitialized or invalid document");
+		final ConceptName conceptName = document.getCONTAINER().getCONCEPTNAME();
+		final ConceptNameTemplate conceptNameTemplate = new ConceptNameTemplate().withCODEVALUE(conceptName.getCODEVALUE())
+																				 .withCODESCHEMA(conceptName.getCODESCHEMA())
+																				 .withCODEMEANING(conceptName.getCODEMEANING())
+																				 .withCODEMEANING2(conceptName.getCODEMEANING2());
+		final Template template = TemplateManager.INSTANCE.getTemplate(conceptNameTemplate);
+		checkState(template != null, "No document template was found for the concept name: " + conceptName);
+		return template;
+	}
+
+	private static boolean hasConstraint(final Schema schema, final Label label, final String key) {
+		for (final ConstraintDefinition constraint : schema.getConstraints(label)) {
+			if (Iterables.contains(constraint.getPropertyKeys(), key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasIndex(final Schema schema, final Label label, final String key) {
+		for (final IndexDefinition index : schema.getIndexes(label)) {
+			if (Iterables.contains(index.getPropertyKeys(), key)) {
+				return true;
+			}
 		}
+		return false;
 	}
 
 }
\ No newline at end of file
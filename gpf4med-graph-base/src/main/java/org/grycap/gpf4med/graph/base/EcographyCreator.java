@@ -40,6 +40,8 @@ import org.neo4j.graphdb.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+
 /**
  * Loads echographies to the graph.
  * @author Lorena Calabuig <locamo@inf.upv.es>
@@ -101,6 +103,7 @@ public class EcographyCreator extends BaseDocumentCreator {
 			tx.success();
 		} catch (Exception e) {
 			LOGGER.warn("Failed to create ecography in the graph", e);
+			throw Throwables.propagate(e);
 		}
 	}
 	
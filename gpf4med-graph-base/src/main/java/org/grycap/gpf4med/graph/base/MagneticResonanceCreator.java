@@ -40,6 +40,8 @@ import org.neo4j.graphdb.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+
 /**
  * Loads magnetic resonances to the graph.
  * @author Lorena Calabuig <locamo@inf.upv.es>
@@ -97,6 +99,7 @@ public class MagneticResonanceCreator extends BaseDocumentCreator {
 			tx.success();
 		} catch (Exception e) {
 			LOGGER.warn("Failed to create magnetic resonance in the graph", e);
+			throw Throwables.propagate(e);
 		}
 	}
 	
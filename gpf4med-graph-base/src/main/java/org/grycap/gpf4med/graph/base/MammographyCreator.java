@@ -40,6 +40,8 @@ import org.neo4j.graphdb.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+
 /**
  * Loads mammograms to the graph.
  * @author Erik Torres <ertorser@upv.es>
@@ -99,6 +101,7 @@ public class MammographyCreator extends BaseDocumentCreator {
 			tx.success();
 		} catch (Exception e) {
 			LOGGER.warn("Failed to create mammography in the graph", e);
+			throw Throwables.propagate(e);
 		}
 	}
 	
@@ -22,6 +22,7 @@
 
 package org.grycap.gpf4med.graph.base;
 
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.fail;
@@ -31,11 +32,13 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.commons.lang.StringUtils;
 import org.grycap.gpf4med.DocumentFetcher;
+import org.grycap.gpf4med.IngestionPipeline;
 import org.grycap.gpf4med.Statistics;
 import org.grycap.gpf4med.TemplateManager;
 import org.grycap.gpf4med.data.GraphDatabaseHandler;
@@ -74,6 +77,12 @@ public class PipelineTest {
 			Statistics.INSTANCE.setTotalSubmitted(reportFiles.size());
 			// start asynchronously load
 			DocumentFetcher.INSTANCE.fetch(urls);
+			// wait for the pipeline to complete the load
+			final long deadline = System.currentTimeMillis() + 60000l;
+			while (System.currentTimeMillis() < deadline 
+					&& Statistics.INSTANCE.getTotalCompleted() < reportFiles.size()) {
+				Thread.sleep(100l);
+			}
 			graphvizFile = GraphvizPrinter.print(GraphDatabaseHandler.INSTANCE.service(),
 					RandomStringUtils.random(8, true, true) + ".dot");
 			assertThat("graphviz file is not null", graphvizFile, notNullValue());
@@ -93,4 +102,38 @@ public class PipelineTest {
 		}
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testBulkImport() throws IOException {
+		System.out.println("PipelineTest.testBulkImport()");
+		final File brokenFile = new File(FileUtils.getTempDirectory(), RandomStringUtils.random(8, true, true) + ".xml");
+		try {
+			// an unparseable document must not prevent the bulk import from completing
+			FileUtils.writeStringToFile(brokenFile, "<DICOM_SR><CONTAINER><CONCEPT_NAME>");
+			final Collection<File> reportFiles = TestUtils.getReportFiles();
+			final ImmutableList<URL> urls = new ImmutableList.Builder<URL>()
+					.add(FileUtils.toURLs(reportFiles.toArray(new File[reportFiles.size()])))
+					.add(brokenFile.toURI().toURL()).build();
+			IngestionPipeline.INSTANCE.restart();
+			GraphDatabaseHandler.INSTANCE.restart();
+			GraphDatabaseHandler.INSTANCE.setConnector(new BaseGraphConnector());
+			GraphDatabaseHandler.INSTANCE.startBulkImport();
+			Statistics.INSTANCE.setTotalSubmitted(urls.size());
+			DocumentFetcher.INSTANCE.fetch(urls);
+			assertThat("all the documents left the pipeline", 
+					IngestionPipeline.INSTANCE.awaitCompletion(urls.size(), 60l, TimeUnit.SECONDS), equalTo(true));
+			assertThat("unparseable document is counted as failed", Statistics.INSTANCE.getFailedParses(), equalTo(1));
+			assertThat("parsed documents are written to the graph", Statistics.INSTANCE.getSuccessGraphLoads() 
+					+ Statistics.INSTANCE.getFailedGraphLoads(), equalTo(reportFiles.size()));
+			GraphDatabaseHandler.INSTANCE.finishBulkImport();
+			assertThat("graph is available after the bulk import", GraphDatabaseHandler.INSTANCE.service(), notNullValue());
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+			fail("PipelineTest.testBulkImport() failed: " + e.getMessage());
+		} finally {
+			GraphDatabaseHandler.INSTANCE.close();
+			FileUtils.deleteQuietly(brokenFile);
+			System.out.println("PipelineTest.testBulkImport() has finished");
+		}
+	}
+
+}
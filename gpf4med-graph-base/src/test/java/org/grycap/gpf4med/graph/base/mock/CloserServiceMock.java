@@ -27,7 +27,7 @@ import java.util.LinkedList;
 import java.util.Queue;
 
 import org.grycap.gpf4med.CloserServiceIf;
-import org.grycap.gpf4med.DocumentManager;
+import org.grycap.gpf4med.IngestionPipeline;
 import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.data.GraphDatabaseHandler;
 import org.grycap.gpf4med.event.EventBusHandler;
@@ -65,9 +65,9 @@ public enum CloserServiceMock implements CloserServiceIf {
 		// load graph graph database handler and register it for closing
 		GraphDatabaseHandler.INSTANCE.preload();
 		register(GraphDatabaseHandler.INSTANCE);
-		// register subscribers
-		EventBusHandler.INSTANCE.register(DocumentManager.INSTANCE);
-		EventBusHandler.INSTANCE.register(GraphDatabaseHandler.INSTANCE);
+		// connect the ingestion pipeline to the graph and register it for closing
+		IngestionPipeline.INSTANCE.setSink(GraphDatabaseHandler.INSTANCE);
+		register(IngestionPipeline.INSTANCE);
 	}
 
 	@Override
@@ -26,6 +26,7 @@ import java.io.Closeable;
 import java.util.LinkedList;
 import java.util.Queue;
 
+import org.grycap.gpf4med.akka.AkkaApplication;
 import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.data.GraphDatabaseHandler;
 import org.grycap.gpf4med.event.EventBusHandler;
@@ -54,6 +55,9 @@ public enum CloserService implements CloserServiceIf {
 		// load event bus and register it for closing
 		EventBusHandler.INSTANCE.preload();
 		register(EventBusHandler.INSTANCE);
+		// start the actor system used to download reports and register it for closing
+		AkkaApplication.INSTANCE.preload();
+		register(AkkaApplication.INSTANCE);
 		// load document manager and register it for closing
 		DocumentManager.INSTANCE.preload();
 		register(DocumentManager.INSTANCE);
@@ -63,9 +67,10 @@ public enum CloserService implements CloserServiceIf {
 		// load graph graph database handler and register it for closing
 		GraphDatabaseHandler.INSTANCE.preload();
 		register(GraphDatabaseHandler.INSTANCE);
-		// register subscribers
-		EventBusHandler.INSTANCE.register(DocumentManager.INSTANCE);
-		EventBusHandler.INSTANCE.register(GraphDatabaseHandler.INSTANCE);
+		// load ingestion pipeline, connect it to the graph and register it for closing
+		IngestionPipeline.INSTANCE.setSink(GraphDatabaseHandler.INSTANCE);
+		IngestionPipeline.INSTANCE.preload();
+		register(IngestionPipeline.INSTANCE);
 	}
 
 	@Override
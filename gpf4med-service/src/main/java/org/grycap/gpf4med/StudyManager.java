@@ -28,11 +28,15 @@ import static com.google.common.base.Preconditions.checkState;
 import java.net.URL;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
+import org.grycap.gpf4med.conf.ConfigurationManager;
 import org.grycap.gpf4med.data.GraphDatabaseHandler;
 import org.grycap.gpf4med.ext.GraphConnector;
 import org.grycap.gpf4med.ext.GraphConnectorManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
 
@@ -44,6 +48,10 @@ public enum StudyManager {
 
 	INSTANCE;
 
+	private final static Logger LOGGER = LoggerFactory.getLogger(StudyManager.class);
+
+	public static final int DEFAULT_BULK_IMPORT_TIMEOUT_SECONDS = 3600;
+
 	public void create(final String graph, final ImmutableList<URL> urls) {
 		checkArgument(StringUtils.isNotBlank(graph), "Uninitialized or invalid graph");
 		checkArgument(urls != null, "Uninitialized URLs");
@@ -54,20 +62,60 @@ public enum StudyManager {
 		destroy();
 		GraphDatabaseHandler.INSTANCE.setConnector(connector);
 		Statistics.INSTANCE.setTotalSubmitted(urls.size());
-		// start asynchronously load
+		// start asynchronously load, optionally writing the new graph with a batch inserter
+		final boolean bulkImport = Boolean.parseBoolean(ConfigurationManager.INSTANCE.getProperty("graph.bulk-import", 
+				"false"));
+		if (bulkImport) {
+			GraphDatabaseHandler.INSTANCE.startBulkImport();
+		}
 		final ExecutorService executor = Executors.newSingleThreadExecutor();
 		executor.execute(new Runnable() {			
 			@Override
 			public void run() {
 				DocumentFetcher.INSTANCE.fetch(urls);
+				if (bulkImport) {
+					try {
+						awaitBulkImport(urls.size());
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					} finally {
+						GraphDatabaseHandler.INSTANCE.finishBulkImport();
+					}
+				}
 			}
 		});
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits until the documents have left the pipeline, the bulk import is cancelled or the timeout set in the 
+	 * configuration (<tt>graph.bulk-import-timeout-seconds</tt>) expires. Documents that failed in any stage 
+	 * of the pipeline are counted as completed.
+	 * @param count the number of documents.
+	 * @return {@code true} if the documents left the pipeline.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	boolean awaitBulkImport(final int count) throws InterruptedException {
+		final int timeout = ConfigurationManager.INSTANCE.getIntProperty("graph.bulk-import-timeout-seconds", 
+				DEFAULT_BULK_IMPORT_TIMEOUT_SECONDS);
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(1, timeout));
+		boolean completed = false;
+		while (!completed && GraphDatabaseHandler.INSTANCE.isBulkImport() && System.nanoTime() < deadline) {
+			completed = IngestionPipeline.INSTANCE.awaitCompletion(count, 1l, TimeUnit.SECONDS);
+		}
+		if (!completed) {
+			LOGGER.warn("Bulk import finished before loading all the documents: [documents=" + count + ", statistics=" 
+					+ Statistics.INSTANCE + "]");
+		} else if (Statistics.INSTANCE.getSuccessGraphLoads() < count) {
+			LOGGER.warn("Some documents failed to load: [documents=" + count + ", statistics=" 
+					+ Statistics.INSTANCE + "]");
+		}
+		return completed;
 	}
 
 	public void destroy() {
 		// restart data stores and facilities, including statistics restart
-		FileQueue.INSTANCE.restart();
-		DocumentQueue.INSTANCE.restart();
+		IngestionPipeline.INSTANCE.restart();
 		GraphDatabaseHandler.INSTANCE.restart();
 		Statistics.INSTANCE.setTotalSubmitted(0);
 	}	
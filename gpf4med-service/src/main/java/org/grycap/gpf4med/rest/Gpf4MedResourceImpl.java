@@ -23,26 +23,32 @@
 package org.grycap.gpf4med.rest;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static org.grycap.gpf4med.rest.ReportListings.page;
+import static org.grycap.gpf4med.rest.ReportListings.parseDate;
+import static org.grycap.gpf4med.rest.ReportListings.stream;
+import static org.grycap.gpf4med.rest.ReportListings.toAvailableReports;
 
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Map;
 
+import javax.ws.rs.core.StreamingOutput;
+
 import org.apache.commons.lang.StringUtils;
 import org.grycap.gpf4med.DocumentManager;
 import org.grycap.gpf4med.Group;
 import org.grycap.gpf4med.Statistics;
 import org.grycap.gpf4med.StudyManager;
 import org.grycap.gpf4med.TemplateManager;
+import org.grycap.gpf4med.akka.AkkaApplication;
 import org.grycap.gpf4med.ext.GraphConnector;
 import org.grycap.gpf4med.ext.GraphConnectorManager;
-import org.grycap.gpf4med.model.document.Document;
 import org.grycap.gpf4med.model.template.Template;
 import org.grycap.gpf4med.model.util.AvailableGraphs;
-import org.grycap.gpf4med.model.util.AvailableReport;
 import org.grycap.gpf4med.model.util.AvailableReports;
 import org.grycap.gpf4med.model.util.AvailableTemplate;
 import org.grycap.gpf4med.model.util.AvailableTemplates;
+import org.grycap.gpf4med.model.util.DownloadStatistics;
 import org.grycap.gpf4med.model.util.GraphStatistics;
 import org.grycap.gpf4med.model.util.LinkSet;
 import org.grycap.gpf4med.model.util.PingResponse;
@@ -91,78 +97,36 @@ public class Gpf4MedResourceImpl implements Gpf4MedResource {
 
 	@Override
 	public AvailableReports listReports() {
-		final AvailableReports reports = new AvailableReports();
-		reports.setReports(new ArrayList<AvailableReport>());
-		final ImmutableCollection<Document> documents = DocumentManager.INSTANCE.listDocuments();
-		if (documents != null) {
-			for (final Document item : documents) {
-				final AvailableReport report = new AvailableReport();
-				report.setIdOntology(Integer.parseInt(item.getIDOntology()));
-				report.setIdReport(item.getIDReport());
-				report.setIdTrencadisReport(item.getIDTRENCADISReport());
-				report.setDateStart(item.getDateTimeStart());
-				report.setDateEnd(item.getDateTimeEnd());
-				reports.getReports().add(report);
-			}
-		}
-		return reports;
+		return toAvailableReports(DocumentManager.INSTANCE.listReports());
 	}	
 
 	@Override
 	public AvailableReports listReports(int idCenter) {
-		final AvailableReports reports = new AvailableReports();
-		reports.setReports(new ArrayList<AvailableReport>());
-		final ImmutableCollection<Document> documents = DocumentManager.INSTANCE.listDocuments(idCenter);
-		if (documents != null) {
-			for (final Document item : documents) {
-				final AvailableReport report = new AvailableReport();
-				report.setIdOntology(Integer.parseInt(item.getIDOntology()));
-				report.setIdReport(item.getIDReport());
-				report.setIdTrencadisReport(item.getIDTRENCADISReport());
-				report.setDateStart(item.getDateTimeStart());
-				report.setDateEnd(item.getDateTimeEnd());
-				reports.getReports().add(report);
-			}
-		}
-		return reports;
+		return toAvailableReports(DocumentManager.INSTANCE.listReports(idCenter));
 	}
 
 	@Override
 	public AvailableReports listReports(String idOntology) {
-		final AvailableReports reports = new AvailableReports();
-		reports.setReports(new ArrayList<AvailableReport>());
-		final ImmutableCollection<Document> documents = DocumentManager.INSTANCE.listDocuments(idOntology);
-		if (documents != null) {
-			for (final Document item : documents) {
-				final AvailableReport report = new AvailableReport();
-				report.setIdOntology(Integer.parseInt(item.getIDOntology()));
-				report.setIdReport(item.getIDReport());
-				report.setIdTrencadisReport(item.getIDTRENCADISReport());
-				report.setDateStart(item.getDateTimeStart());
-				report.setDateEnd(item.getDateTimeEnd());
-				reports.getReports().add(report);
-			}
-		}
-		return reports;
+		return toAvailableReports(DocumentManager.INSTANCE.listReports(idOntology));
 	}
 
 	@Override
 	public AvailableReports listReports(int idCenter, String idOntology) {
-		final AvailableReports reports = new AvailableReports();
-		reports.setReports(new ArrayList<AvailableReport>());
-		final ImmutableCollection<Document> documents = DocumentManager.INSTANCE.listDocuments(idCenter, idOntology);
-		if (documents != null) {
-			for (final Document item : documents) {
-				final AvailableReport report = new AvailableReport();
-				report.setIdOntology(Integer.parseInt(item.getIDOntology()));
-				report.setIdReport(item.getIDReport());
-				report.setIdTrencadisReport(item.getIDTRENCADISReport());
-				report.setDateStart(item.getDateTimeStart());
-				report.setDateEnd(item.getDateTimeEnd());
-				reports.getReports().add(report);
-			}
-		}
-		return reports;
+		return toAvailableReports(DocumentManager.INSTANCE.listReports(idCenter, idOntology));
+	}
+
+	@Override
+	public AvailableReports listReports(final int idCenter, final String idOntology, final String modality, 
+			final String from, final String to, final int offset, final int limit) {
+		return page(DocumentManager.INSTANCE.listReports(idCenter, idOntology, modality, parseDate(from), 
+				parseDate(to)), offset, limit);
+	}
+
+	@Override
+	public StreamingOutput streamReports(final int idCenter, final String idOntology, final String modality, 
+			final String from, final String to, final int offset, final int limit) {
+		return stream(DocumentManager.INSTANCE.filterReports(idCenter, idOntology, modality, parseDate(from), 
+				parseDate(to)), offset, limit);
 	}
 
 	
@@ -215,4 +179,9 @@ public class Gpf4MedResourceImpl implements Gpf4MedResource {
 		return statistics;
 	}
 
+	@Override
+	public DownloadStatistics getDownloadStatistics() {
+		return AkkaApplication.INSTANCE.getDownloadStatistics();
+	}
+
 }
\ No newline at end of file